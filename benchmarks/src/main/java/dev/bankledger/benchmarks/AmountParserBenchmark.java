@@ -0,0 +1,51 @@
+package dev.bankledger.benchmarks;
+
+import dev.bankledger.Amount;
+import dev.bankledger.AmountParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Amount validation as the handlers used to do it (String.matches, then BigDecimal into minor
+ * units) against AmountParser's single pass. Run with -prof gc to compare allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AmountParserBenchmark {
+
+	@Param({"75.00", "1234567.8", "abc.0"})
+	public String amount;
+
+	@Benchmark
+	public long regexAndBigDecimal() {
+		if (!amount.matches("\\d+(\\.\\d{1,2})?")) {
+			return AmountParser.INVALID_FORMAT;
+		}
+		try {
+			return Amount.toMinorUnits(new BigDecimal(amount));
+		}
+		catch (ArithmeticException e) {
+			return AmountParser.TOO_LARGE;
+		}
+	}
+
+	@Benchmark
+	public long amountParser() {
+		return AmountParser.parse(amount);
+	}
+}
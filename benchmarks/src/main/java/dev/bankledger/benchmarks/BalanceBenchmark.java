@@ -0,0 +1,65 @@
+package dev.bankledger.benchmarks;
+
+import dev.bankledger.BalanceEngine;
+import dev.bankledger.LedgerBalance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credits, debits and reads against the balance engines. Run with -t 1..N to vary the number of
+ * threads; the key distribution decides whether they contend on one account or spread out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceBenchmark {
+	private static final int ACCOUNTS = 1024;
+	// Large enough that debits are never denied during a run.
+	private static final long OPENING_BALANCE = Long.MAX_VALUE / 4;
+
+	@Param({"LOCKING", "FIXED_POINT", "HOT_ACCOUNT"})
+	public BalanceEngine engine;
+
+	@Param({"HOT_KEY", "UNIFORM"})
+	public KeyDistribution distribution;
+
+	private LedgerBalance[] balances;
+
+	@Setup
+	public void setUp() {
+		balances = new LedgerBalance[ACCOUNTS];
+		for (int i = 0; i < ACCOUNTS; i++) {
+			balances[i] = engine.create(OPENING_BALANCE);
+		}
+	}
+
+	@Benchmark
+	public long credit() throws InterruptedException {
+		return balances[distribution.next(ACCOUNTS)].credit(1);
+	}
+
+	@Benchmark
+	public long debit() throws InterruptedException {
+		return balances[distribution.next(ACCOUNTS)].debit(1);
+	}
+
+	@Benchmark
+	public BigDecimal read() {
+		return balances[distribution.next(ACCOUNTS)].getBalance();
+	}
+}
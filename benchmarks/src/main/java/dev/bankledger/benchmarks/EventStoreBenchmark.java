@@ -0,0 +1,163 @@
+package dev.bankledger.benchmarks;
+
+import dev.bankledger.Amount;
+import dev.bankledger.DebitCredit;
+import dev.bankledger.EventJournal;
+import dev.bankledger.EventStore;
+import dev.bankledger.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Appending events to the EventStore and recomputing a balance from an account's history.
+ *
+ * appendToAccount compares the store's per-account event lists, appended under the account's
+ * monitor and read without locking, with the synchronized ArrayList per account they replaced,
+ * for one hot account and for many cold ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class EventStoreBenchmark {
+	private static final int ACCOUNTS = 1024;
+
+	/**
+	 * A fresh store per iteration, so the in-memory lists and journal files do not grow without bound.
+	 */
+	@State(Scope.Benchmark)
+	public static class AppendState {
+		@Param({"MEMORY", "JOURNAL"})
+		public String store;
+
+		@Param({"false"})
+		public boolean fsync;
+
+		EventStore eventStore;
+		private Path dir;
+
+		@Setup(Level.Iteration)
+		public void setUp() throws IOException {
+			if ("JOURNAL".equals(store)) {
+				dir = Files.createTempDirectory("bankledger-bench");
+				eventStore = new EventStore(EventJournal.open(dir, EventJournal.DEFAULT_SEGMENT_SIZE, fsync));
+			}
+			else {
+				eventStore = new EventStore();
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() throws IOException {
+			eventStore.close();
+			if (dir != null) {
+				deleteRecursively(dir);
+			}
+		}
+	}
+
+	/**
+	 * One account with `historyLength` events. Snapshotting is disabled unless an interval is given,
+	 * so computeBalance folds the whole history.
+	 */
+	@State(Scope.Benchmark)
+	public static class HistoryState {
+		@Param({"10", "1000", "100000", "1000000"})
+		public int historyLength;
+
+		@Param({"2147483647", "1000"})
+		public int snapshotInterval;
+
+		EventStore eventStore;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			eventStore = new EventStore(snapshotInterval);
+			for (int i = 0; i < historyLength; i++) {
+				eventStore.append(transaction("user1", i % 4 == 3 ? DebitCredit.DEBIT : DebitCredit.CREDIT));
+			}
+		}
+	}
+
+	/**
+	 * Per-account event lists, fresh per iteration: the EventStore's, or a synchronized ArrayList per account.
+	 */
+	@State(Scope.Benchmark)
+	public static class AccountListState {
+		@Param({"EVENT_STORE", "SYNCHRONIZED_LIST"})
+		public String list;
+
+		@Param({"HOT_KEY", "UNIFORM"})
+		public KeyDistribution distribution;
+
+		EventStore eventStore;
+		Map<String, List<Transaction>> lists;
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			eventStore = new EventStore();
+			lists = new ConcurrentHashMap<>();
+		}
+
+		void append(Transaction transaction) {
+			if ("EVENT_STORE".equals(list)) {
+				eventStore.append(transaction);
+			}
+			else {
+				lists.computeIfAbsent(transaction.getUserId(), k -> Collections.synchronizedList(new ArrayList<>())).add(transaction);
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void appendToAccount(AccountListState state) {
+		state.append(transaction("user" + state.distribution.next(ACCOUNTS), DebitCredit.CREDIT));
+	}
+
+	@Benchmark
+	public void addTransaction(AppendState state) {
+		state.eventStore.addTransaction(transaction("user" + KeyDistribution.UNIFORM.next(ACCOUNTS), DebitCredit.CREDIT));
+	}
+
+	@Benchmark
+	public BigDecimal computeBalance(HistoryState state) {
+		return state.eventStore.computeBalance("user1");
+	}
+
+	private static Transaction transaction(String userId, DebitCredit debitOrCredit) {
+		return new Transaction(userId, new Amount("1.25", "USD", debitOrCredit), "APPROVED");
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
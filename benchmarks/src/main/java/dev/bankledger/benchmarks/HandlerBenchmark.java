@@ -0,0 +1,96 @@
+package dev.bankledger.benchmarks;
+
+import dev.bankledger.BalanceEngine;
+import dev.bankledger.BankLedgerApp;
+import dev.bankledger.EventStore;
+import dev.bankledger.Ledger;
+import dev.bankledger.LedgerPipeline;
+import io.javalin.Javalin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full HTTP round-trips through loadHandler and authorizationHandler against an embedded Javalin server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+	private static final int ACCOUNTS = 1024;
+
+	@Param({"LOCKING", "FIXED_POINT", "HOT_ACCOUNT"})
+	public BalanceEngine engine;
+
+	@Param({"0"})
+	public int pipelineShards;
+
+	@Param({"UNIFORM"})
+	public KeyDistribution distribution;
+
+	private Javalin app;
+	private LedgerPipeline pipeline;
+	private String baseUrl;
+
+	@Setup
+	public void setUp() {
+		Ledger ledger = new Ledger(new EventStore(), engine);
+		pipeline = pipelineShards > 0 ? new LedgerPipeline(ledger, pipelineShards, LedgerPipeline.DEFAULT_RING_SIZE) : null;
+		BankLedgerApp.configure(ledger, pipeline);
+		app = Javalin.create(BankLedgerApp::configureServer).start(0);
+		BankLedgerApp.defineRoutes(app);
+		baseUrl = "http://127.0.0.1:" + app.port();
+	}
+
+	@TearDown
+	public void tearDown() {
+		app.stop();
+		if (pipeline != null) {
+			pipeline.close();
+		}
+	}
+
+	@Benchmark
+	public int load() throws IOException {
+		return put("/load?userId=user" + distribution.next(ACCOUNTS) + "&amount=1.00");
+	}
+
+	@Benchmark
+	public int authorization() throws IOException {
+		return put("/authorization?userId=user" + distribution.next(ACCOUNTS) + "&amount=1.00");
+	}
+
+	private int put(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(0);
+		int status = connection.getResponseCode();
+		// Drain the body so the keep-alive connection is reused.
+		try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+			byte[] buffer = new byte[512];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+		}
+		return status;
+	}
+}
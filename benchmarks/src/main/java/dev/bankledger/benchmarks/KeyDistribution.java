@@ -0,0 +1,20 @@
+package dev.bankledger.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How benchmark operations pick the account they touch.
+ */
+public enum KeyDistribution {
+	/** Every operation hits the same account, the worst case for contention. */
+	HOT_KEY,
+	/** Operations are spread uniformly over all accounts. */
+	UNIFORM;
+
+	/**
+	 * Returns the index of the next account to use, in [0, accounts).
+	 */
+	public int next(int accounts) {
+		return this == HOT_KEY ? 0 : ThreadLocalRandom.current().nextInt(accounts);
+	}
+}
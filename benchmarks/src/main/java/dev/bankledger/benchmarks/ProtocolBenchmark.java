@@ -0,0 +1,145 @@
+package dev.bankledger.benchmarks;
+
+import dev.bankledger.BalanceEngine;
+import dev.bankledger.BankLedgerApp;
+import dev.bankledger.BinaryLedgerServer;
+import dev.bankledger.BinaryProtocol;
+import dev.bankledger.EventStore;
+import dev.bankledger.Ledger;
+import io.javalin.Javalin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorizations per second over the JSON REST route and over the binary protocol, against
+ * the same ledger. Each benchmark thread is one client connection. Client and server share the
+ * machine, so dividing the throughput by the number of cores gives requests per core including
+ * the client's cost; run with -t equal to the core count to keep every core busy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+	private static final int ACCOUNTS = 1024;
+	private static final int PIPELINE_DEPTH = 64;
+	// Large enough that authorizations are never denied during a run.
+	private static final long OPENING_BALANCE = Long.MAX_VALUE / 4 / ACCOUNTS;
+
+	private Javalin app;
+	private BinaryLedgerServer binaryServer;
+	private String baseUrl;
+
+	@Setup
+	public void setUp() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		for (int i = 0; i < ACCOUNTS; i++) {
+			ledger.balanceOf("user" + i).credit(OPENING_BALANCE);
+		}
+		BankLedgerApp.configure(ledger, null);
+		app = Javalin.create(BankLedgerApp::configureServer).start(0);
+		BankLedgerApp.defineRoutes(app);
+		baseUrl = "http://127.0.0.1:" + app.port();
+		binaryServer = new BinaryLedgerServer(ledger, 0, BinaryLedgerServer.DEFAULT_EVENT_LOOPS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		app.stop();
+		binaryServer.close();
+	}
+
+	/**
+	 * One binary protocol connection per benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class BinaryClient {
+		SocketChannel channel;
+		final ByteBuffer requests = ByteBuffer.allocateDirect(PIPELINE_DEPTH * 64);
+		final ByteBuffer responses = ByteBuffer.allocateDirect(PIPELINE_DEPTH * BinaryProtocol.RESPONSE_SIZE);
+		long requestId;
+
+		@Setup(Level.Trial)
+		public void connect(ProtocolBenchmark benchmark) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", benchmark.binaryServer.getPort()));
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws IOException {
+			channel.close();
+		}
+
+		/**
+		 * Sends `count` authorizations in one write and waits for all their responses.
+		 */
+		long authorize(int count) throws IOException {
+			requests.clear();
+			for (int i = 0; i < count; i++) {
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_AUTHORIZATION, ++requestId,
+						"user" + KeyDistribution.UNIFORM.next(ACCOUNTS), 100);
+			}
+			requests.flip();
+			while (requests.hasRemaining()) {
+				channel.write(requests);
+			}
+			responses.clear().limit(count * BinaryProtocol.RESPONSE_SIZE);
+			while (responses.hasRemaining()) {
+				if (channel.read(responses) < 0) {
+					throw new IOException("Connection closed");
+				}
+			}
+			return responses.getLong(responses.limit() - 24);
+		}
+	}
+
+	@Benchmark
+	public int jsonAuthorization() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl
+				+ "/authorization?userId=user" + KeyDistribution.UNIFORM.next(ACCOUNTS) + "&amount=1.00").openConnection();
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(0);
+		int status = connection.getResponseCode();
+		// Drain the body so the keep-alive connection is reused.
+		try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+			byte[] buffer = new byte[512];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+		}
+		return status;
+	}
+
+	@Benchmark
+	public long binaryAuthorization(BinaryClient client) throws IOException {
+		return client.authorize(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIPELINE_DEPTH)
+	public long binaryPipelinedAuthorization(BinaryClient client) throws IOException {
+		return client.authorize(PIPELINE_DEPTH);
+	}
+}
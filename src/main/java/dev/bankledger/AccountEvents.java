@@ -0,0 +1,309 @@
+package dev.bankledger;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The events of one account, a user's balance in one currency, in order, as indexes of their
+ * records in an EventArena.
+ *
+ * The list is a lazy read-only view: get() materializes a Transaction from the off-heap record
+ * on every call, while the index itself costs four bytes of heap per event. Indexes live in
+ * chunks of doubling size (8, 16, 32, ...) that are never copied, so an append never copies the
+ * list. The EventStore serializes the appends to each account and numbers each event as part of
+ * its append, so sequence numbers grow along the list; append() rejects an event that would break
+ * that. Reads never lock and see every event appended before size() was read.
+ *
+ * Every CHECKPOINT_INTERVAL events a checkpoint records the running balance change and the
+ * latest serverTime so far. Balance changes over any range, and the balance as of any time, are
+ * then found with a binary search over the checkpoints plus a scan of the events after the last
+ * one. Checkpoints are added by the append that completes each interval.
+ */
+final class AccountEvents extends AbstractList<Transaction> implements RandomAccess {
+	private static final int CHECKPOINT_SHIFT = 6;
+	private static final int CHECKPOINT_INTERVAL = 1 << CHECKPOINT_SHIFT;
+	private static final int FIRST_CHUNK_SHIFT = 3;
+
+	private final String userId;
+	private final String currency;
+	private final EventArena arena;
+	private final BigDecimal baseBalance;
+	// Slots hold arena index + 1, so zero marks a free slot. The directory is copied on growth, the chunks never are.
+	private final AtomicReference<AtomicIntegerArray[]> chunks =
+			new AtomicReference<>(new AtomicIntegerArray[] {new AtomicIntegerArray(1 << FIRST_CHUNK_SHIFT)});
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+	private volatile long[] checkpointChanges = new long[4];
+	private volatile long[] checkpointTimes = new long[4];
+	// The number of valid checkpoints, published after the arrays.
+	private volatile int checkpoints = 1;
+	// Only touched while holding `checkpointing`.
+	private long runningChange;
+	private long latestTime;
+
+	AccountEvents(String userId, String currency, EventArena arena) {
+		this(userId, currency, arena, BigDecimal.ZERO, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Creates the index of an account whose earlier events were folded into a restored snapshot.
+	 *
+	 * @param baseBalance The balance before the first event of this list.
+	 * @param baseTime The serverTime of the last folded event; no balance before it can be computed.
+	 */
+	AccountEvents(String userId, String currency, EventArena arena, BigDecimal baseBalance, long baseTime) {
+		this.userId = userId;
+		this.currency = currency;
+		this.arena = arena;
+		this.baseBalance = baseBalance;
+		this.latestTime = baseTime;
+		this.checkpointTimes[0] = baseTime;
+	}
+
+	String getUserId() {
+		return userId;
+	}
+
+	String getCurrency() {
+		return currency;
+	}
+
+	/**
+	 * Appends the record at `index` and returns the new number of events. Not thread-safe: the
+	 * caller serializes the appends to an account.
+	 *
+	 * @throws IllegalStateException if the record's sequence number is not above the last event's.
+	 */
+	int append(int index) {
+		int slot = size.get();
+		if (slot > 0 && arena.sequence(index) <= arena.sequence(slot(slot - 1))) {
+			throw new IllegalStateException("Event " + arena.sequence(index) + " appended to " + userId
+					+ " after event " + arena.sequence(slot(slot - 1)));
+		}
+		chunkOf(slot, true).set(offsetOf(slot), index + 1);
+		// Published after the slot: readers only look below the size they read.
+		size.set(slot + 1);
+		if (((slot + 1) & (CHECKPOINT_INTERVAL - 1)) == 0) {
+			addCheckpoints();
+		}
+		return slot + 1;
+	}
+
+	/**
+	 * Returns the chunk holding slot `i`: chunk k holds 8 << k slots, starting at slot 8 * (2^k - 1).
+	 *
+	 * @param create Whether to add the chunk, and any before it, if it does not exist yet.
+	 */
+	private AtomicIntegerArray chunkOf(int i, boolean create) {
+		int chunk = chunkIndex(i);
+		AtomicIntegerArray[] current = chunks.get();
+		while (create && chunk >= current.length) {
+			AtomicIntegerArray[] grown = Arrays.copyOf(current, chunk + 1);
+			for (int k = current.length; k <= chunk; k++) {
+				grown[k] = new AtomicIntegerArray(1 << (FIRST_CHUNK_SHIFT + k));
+			}
+			if (chunks.compareAndSet(current, grown)) {
+				return grown[chunk];
+			}
+			current = chunks.get();
+		}
+		return current[chunk];
+	}
+
+	private static int chunkIndex(int i) {
+		return 31 - Integer.numberOfLeadingZeros((i >>> FIRST_CHUNK_SHIFT) + 1);
+	}
+
+	private static int offsetOf(int i) {
+		return i + (1 << FIRST_CHUNK_SHIFT) - (1 << (FIRST_CHUNK_SHIFT + chunkIndex(i)));
+	}
+
+	/**
+	 * Returns the arena index in slot `i`, which must be below a size read beforehand.
+	 */
+	private int slot(int i) {
+		return chunkOf(i, false).get(offsetOf(i)) - 1;
+	}
+
+	/**
+	 * Adds the checkpoints of every completed interval, unless another append is already doing so.
+	 */
+	private void addCheckpoints() {
+		while (checkpointing.compareAndSet(false, true)) {
+			try {
+				int checkpoint = checkpoints;
+				int target = size.get() >>> CHECKPOINT_SHIFT;
+				for (; checkpoint <= target; checkpoint++) {
+					for (int i = (checkpoint - 1) << CHECKPOINT_SHIFT; i < checkpoint << CHECKPOINT_SHIFT; i++) {
+						int record = slot(i);
+						runningChange += arena.balanceChange(record);
+						latestTime = Math.max(latestTime, arena.serverTime(record));
+					}
+					long[] changes = checkpointChanges;
+					long[] times = checkpointTimes;
+					if (checkpoint == changes.length) {
+						changes = Arrays.copyOf(changes, changes.length * 2);
+						times = Arrays.copyOf(times, times.length * 2);
+					}
+					changes[checkpoint] = runningChange;
+					times[checkpoint] = latestTime;
+					checkpointChanges = changes;
+					checkpointTimes = times;
+					checkpoints = checkpoint + 1;
+				}
+			}
+			finally {
+				checkpointing.set(false);
+			}
+			// An interval completed while the flag was held would otherwise wait for the next one.
+			if (checkpoints > size.get() >>> CHECKPOINT_SHIFT) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the arena index of the i-th event.
+	 */
+	int recordAt(int i) {
+		// Read size before the chunks: every slot below it has been written.
+		int end = size.get();
+		if (i < 0 || i >= end) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + end);
+		}
+		return slot(i);
+	}
+
+	/**
+	 * Returns the sum of the balance changes of events [from, to), in minor units.
+	 */
+	long balanceChange(int from, int to) {
+		int end = size.get();
+		if (to > end) {
+			throw new IndexOutOfBoundsException("Index: " + to + ", Size: " + end);
+		}
+		return changeBefore(to) - changeBefore(from);
+	}
+
+	/**
+	 * Returns the balance after the first `count` events.
+	 */
+	BigDecimal balanceAfter(int count) {
+		return baseBalance.add(Amount.fromMinorUnits(balanceChange(0, count)));
+	}
+
+	/**
+	 * Returns the sum of the balance changes of the first `count` events, starting from the
+	 * nearest checkpoint at or below it.
+	 */
+	private long changeBefore(int count) {
+		// Read the count before the arrays: they hold at least that many checkpoints.
+		int checkpoint = Math.min(count >>> CHECKPOINT_SHIFT, checkpoints - 1);
+		long change = checkpointChanges[checkpoint];
+		for (int i = checkpoint << CHECKPOINT_SHIFT; i < count; i++) {
+			change += arena.balanceChange(slot(i));
+		}
+		return change;
+	}
+
+	/**
+	 * Returns the balance as of a point in time: the balance after the events recorded before the
+	 * first one whose serverTime is later than `asOf`.
+	 *
+	 * @return The balance, or null if the events before `asOf` were folded into a restored snapshot.
+	 */
+	BigDecimal balanceAsOf(long asOf) {
+		int end = size.get();
+		int valid = checkpoints;
+		long[] changes = checkpointChanges;
+		long[] times = checkpointTimes;
+		if (asOf < times[0]) {
+			return null;
+		}
+
+		// The last checkpoint whose latest serverTime is not after asOf.
+		int low = 0;
+		int high = Math.min(end >>> CHECKPOINT_SHIFT, valid - 1);
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (times[middle] <= asOf) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		long change = changes[low];
+		long latest = times[low];
+		for (int i = low << CHECKPOINT_SHIFT; i < end; i++) {
+			int record = slot(i);
+			latest = Math.max(latest, arena.serverTime(record));
+			if (latest > asOf) {
+				break;
+			}
+			change += arena.balanceChange(record);
+		}
+		return baseBalance.add(Amount.fromMinorUnits(change));
+	}
+
+	/**
+	 * Returns the position of the first event with a sequence number above `sequence`, or size()
+	 * if there is none. Sequence numbers grow along the list, so this is a binary search.
+	 */
+	int firstAfter(long sequence) {
+		int low = 0;
+		int high = size.get();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (arena.sequence(slot(middle)) <= sequence) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Passes the events matching a query to `consumer`, oldest first, decoding only the matches.
+	 *
+	 * @return The sequence number to continue after if the page is full, otherwise 0.
+	 */
+	long query(TransactionQuery query, Consumer<Transaction> consumer) {
+		int end = size.get();
+		int statusCode = query.getStatus() == null ? -1 : Transaction.statusCode(query.getStatus());
+		int matched = 0;
+		for (int i = firstAfter(query.getAfterSequence()); i < end; i++) {
+			int record = slot(i);
+			long serverTime = arena.serverTime(record);
+			if (serverTime < query.getFromTime() || serverTime >= query.getToTime()
+					|| (statusCode >= 0 && arena.status(record) != statusCode)) {
+				continue;
+			}
+			consumer.accept(arena.read(userId, record));
+			if (++matched == query.getLimit()) {
+				return arena.sequence(record);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public Transaction get(int i) {
+		return arena.read(userId, recordAt(i));
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+}
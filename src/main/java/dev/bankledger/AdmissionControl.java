@@ -0,0 +1,270 @@
+package dev.bankledger;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.micrometer.core.instrument.Counter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of the ledger routes, so an overload is shed cheaply at the door
+ * instead of piling request threads up on balance locks until they time out.
+ *
+ * A request first takes a token from its client's bucket and, for a write, from its account's
+ * bucket; an empty bucket is answered with 429 and a Retry-After. A write turned away by its
+ * account's bucket gets its client's token back, so it does not count against the client. It then needs a slot under the
+ * concurrency limit, or it is answered with 503. The limit adapts to the handler latency (AIMD):
+ * it grows by one per limit's worth of requests completed within the latency target and shrinks
+ * by a tenth when a request that started after the last shrink is slower or fails with a 5xx, so
+ * the requests admitted keep their latency near the target while the rest are rejected at once.
+ *
+ * Clients are identified by the X-Client-Id header, e.g. set by an authenticating gateway, or
+ * else by their address. Each check is a map lookup and a few atomic updates.
+ */
+public class AdmissionControl {
+	public static final String CLIENT_ID_HEADER = "X-Client-Id";
+	public static final long DEFAULT_LATENCY_TARGET_MILLIS = 50;
+	static final int MAX_BUCKETS = 100_000;
+	private static final int MIN_LIMIT = 4;
+	private static final double BACKOFF = 0.9;
+	private static final String START_ATTRIBUTE = "admission.start";
+	// Health, metrics and the long-lived change feed streams are never shed or counted.
+	private static final Set<String> EXEMPT_PATHS = Set.of("/ping", "/metrics", "/events");
+
+	private final TokenBuckets clients;
+	private final TokenBuckets accounts;
+	private final int maxConcurrency;
+	private final long latencyTargetNanos;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong limitBits;
+	private volatile long lastBackoffNanos = System.nanoTime();
+
+	/**
+	 * @param clientRate Requests per second each client may send, with a burst of one second's worth; 0 for no limit.
+	 * @param accountRate Writes per second to each account, with a burst of one second's worth; 0 for no limit.
+	 * @param maxConcurrency The most requests handled at once, the ceiling of the adaptive limit; 0 for no limit.
+	 * @param latencyTargetMillis The handler latency above which the concurrency limit shrinks.
+	 */
+	public AdmissionControl(double clientRate, double accountRate, int maxConcurrency, long latencyTargetMillis) {
+		this.clients = clientRate > 0 ? new TokenBuckets(clientRate) : null;
+		this.accounts = accountRate > 0 ? new TokenBuckets(accountRate) : null;
+		this.maxConcurrency = maxConcurrency;
+		this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+		this.limitBits = new AtomicLong(Double.doubleToLongBits(maxConcurrency));
+	}
+
+	/**
+	 * Returns whether any limit is set.
+	 */
+	public boolean isEnabled() {
+		return clients != null || accounts != null || maxConcurrency > 0;
+	}
+
+	/**
+	 * Returns the current concurrency limit, or 0 if there is none.
+	 */
+	public int getLimit() {
+		return (int) limit();
+	}
+
+	/**
+	 * Returns the number of admitted requests still being handled.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Before-handler: admits the request, or answers it with 429 or 503 and skips its handlers.
+	 */
+	public void admit(Context ctx) {
+		if (!isEnabled() || EXEMPT_PATHS.contains(ctx.path()) || ctx.path().startsWith("/partition/")) {
+			return;
+		}
+		long now = System.nanoTime();
+		String client = null;
+		if (clients != null) {
+			String clientId = ctx.header(CLIENT_ID_HEADER);
+			client = clientId != null && !clientId.isEmpty() ? clientId : ctx.ip();
+			long wait = clients.tryAcquire(client, now);
+			if (wait > 0) {
+				reject(ctx, 429, "Too many requests from this client. Please retry later.", wait, LedgerMetrics.ADMISSION_REJECTED_CLIENT);
+				return;
+			}
+		}
+		String userId = ctx.queryParam("userId");
+		if (accounts != null && userId != null && ctx.method() != HandlerType.GET) {
+			long wait = accounts.tryAcquire(userId, now);
+			if (wait > 0) {
+				if (client != null) {
+					clients.refund(client);
+				}
+				reject(ctx, 429, "Too many requests for this account. Please retry later.", wait, LedgerMetrics.ADMISSION_REJECTED_ACCOUNT);
+				return;
+			}
+		}
+		if (maxConcurrency > 0) {
+			if (!tryAcquireSlot()) {
+				reject(ctx, 503, "Server is busy. Please retry.", TimeUnit.SECONDS.toNanos(1), LedgerMetrics.ADMISSION_REJECTED_CONCURRENCY);
+				return;
+			}
+			ctx.attribute(START_ATTRIBUTE, now);
+		}
+	}
+
+	/**
+	 * After-handler: frees the request's slot and adapts the limit to its latency and status.
+	 */
+	public void complete(Context ctx) {
+		Long start = ctx.attribute(START_ATTRIBUTE);
+		if (start == null) {
+			return;
+		}
+		ctx.attribute(START_ATTRIBUTE, null);
+		inFlight.decrementAndGet();
+		onSample(start, System.nanoTime(), ctx.statusCode() >= 500);
+	}
+
+	private boolean tryAcquireSlot() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= (int) limit()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adapts the limit to one completed request.
+	 */
+	void onSample(long startNanos, long endNanos, boolean failed) {
+		boolean congested = failed || endNanos - startNanos > latencyTargetNanos;
+		// Requests already in flight at the last backoff saw the same congestion; only back off once for it.
+		if (congested && startNanos - lastBackoffNanos < 0) {
+			return;
+		}
+		while (true) {
+			long bits = limitBits.get();
+			double limit = Double.longBitsToDouble(bits);
+			double updated = congested ? Math.max(MIN_LIMIT, limit * BACKOFF) : Math.min(maxConcurrency, limit + 1 / limit);
+			if (updated == limit || limitBits.compareAndSet(bits, Double.doubleToLongBits(updated))) {
+				break;
+			}
+		}
+		if (congested) {
+			lastBackoffNanos = endNanos;
+		}
+	}
+
+	private double limit() {
+		return Double.longBitsToDouble(limitBits.get());
+	}
+
+	private static void reject(Context ctx, int status, String message, long waitNanos, Counter counter) {
+		counter.increment();
+		ctx.header("Retry-After", Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
+		ctx.status(status).json(new Error(message, Integer.toString(status)));
+		ctx.skipRemainingHandlers();
+	}
+
+	/**
+	 * Token buckets by key, each refilled at `rate` tokens per second up to one second's worth.
+	 * When MAX_BUCKETS keys are tracked, buckets that have refilled completely are dropped, as a
+	 * new bucket for their key would be the same; if every bucket is still in use, keys without
+	 * one are not limited until some refill.
+	 */
+	static final class TokenBuckets {
+		private final double rate;
+		private final double capacity;
+		private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+		private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+		TokenBuckets(double rate) {
+			this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+			this.capacity = Math.max(1, rate);
+		}
+
+		/**
+		 * Takes a token from the key's bucket.
+		 *
+		 * @return 0 if a token was taken, otherwise the nanoseconds until one is available.
+		 */
+		long tryAcquire(String key, long now) {
+			TokenBucket bucket = buckets.get(key);
+			if (bucket == null) {
+				if (buckets.size() >= MAX_BUCKETS && !sweep(now)) {
+					return 0;
+				}
+				bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(capacity, now));
+			}
+			return bucket.tryAcquire(now, rate, capacity);
+		}
+
+		/**
+		 * Returns a token taken by tryAcquire() to the key's bucket, up to its capacity.
+		 */
+		void refund(String key) {
+			TokenBucket bucket = buckets.get(key);
+			if (bucket != null) {
+				bucket.refund(capacity);
+			}
+		}
+
+		/**
+		 * Drops the full buckets, at most once a second. Returns whether there is room for another.
+		 */
+		private boolean sweep(long now) {
+			long last = lastSweep.get();
+			if (now - last >= TimeUnit.SECONDS.toNanos(1) && lastSweep.compareAndSet(last, now)) {
+				buckets.values().removeIf(bucket -> bucket.isFull(now, rate, capacity));
+			}
+			return buckets.size() < MAX_BUCKETS;
+		}
+
+		int size() {
+			return buckets.size();
+		}
+	}
+
+	private static final class TokenBucket {
+		private double tokens;
+		private long refilled;
+
+		TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.refilled = now;
+		}
+
+		synchronized long tryAcquire(long now, double rate, double capacity) {
+			refill(now, rate, capacity);
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) / rate);
+		}
+
+		synchronized void refund(double capacity) {
+			tokens = Math.min(capacity, tokens + 1);
+		}
+
+		synchronized boolean isFull(long now, double rate, double capacity) {
+			refill(now, rate, capacity);
+			return tokens >= capacity;
+		}
+
+		private void refill(long now, double rate, double capacity) {
+			if (now - refilled > 0) {
+				tokens = Math.min(capacity, tokens + (now - refilled) * rate);
+				refilled = now;
+			}
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package dev.bankledger;
 
+import java.math.BigDecimal;
+
 public class Amount {
+	/** The currency of an account's main balance, which cross-currency authorizations are converted into. */
+	public static final String BASE_CURRENCY = "USD";
+
 	private String amount;
 	private String currency;
 	private DebitCredit debitOrCredit;
@@ -22,4 +27,34 @@ public class Amount {
 	public DebitCredit getDebitOrCredit() {
 		return debitOrCredit;
 	}
+
+	/**
+	 * Returns whether `currency` looks like an ISO 4217 code: three upper-case letters.
+	 */
+	public static boolean isCurrencyCode(String currency) {
+		return currency != null && currency.length() == 3 && currency.chars().allMatch(c -> c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * Converts a decimal amount with at most two decimal places into minor units (cents).
+	 *
+	 * @throws ArithmeticException if the amount has more precision or does not fit in a long.
+	 */
+	public static long toMinorUnits(BigDecimal amount) {
+		return amount.movePointRight(2).longValueExact();
+	}
+
+	/**
+	 * Converts minor units (cents) into a decimal amount with two decimal places.
+	 */
+	public static BigDecimal fromMinorUnits(long minorUnits) {
+		return BigDecimal.valueOf(minorUnits, 2);
+	}
+
+	/**
+	 * Formats minor units the way BigDecimal prints them, e.g. 2500 -> "25.00".
+	 */
+	public static String formatMinorUnits(long minorUnits) {
+		return fromMinorUnits(minorUnits).toString();
+	}
 }
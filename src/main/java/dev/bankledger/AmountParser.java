@@ -0,0 +1,90 @@
+package dev.bankledger;
+
+/**
+ * Parses client amounts such as "10", "10.5" or "10.50" straight into minor units.
+ *
+ * Accepts exactly what the pattern \d+(\.\d{1,2})? accepts, as long as the amount in minor
+ * units fits in a long. Parsing is a single pass over the characters with no regex, no
+ * BigDecimal and no allocation; failures are returned as negative codes rather than thrown.
+ */
+public final class AmountParser {
+	/** The amount is not a non-negative number with up to two decimal places. */
+	public static final long INVALID_FORMAT = -1;
+	/** The amount in minor units does not fit in a long. */
+	public static final long TOO_LARGE = -2;
+
+	static final String INVALID_FORMAT_MESSAGE = "Amount must be a non-negative number with up to two decimal places";
+	static final String TOO_LARGE_MESSAGE = "Amount is too large";
+
+	private static final long MAX_MAJOR_UNITS = Long.MAX_VALUE / 100;
+
+	private AmountParser() {
+	}
+
+	/**
+	 * Returns the amount in minor units, or INVALID_FORMAT or TOO_LARGE.
+	 */
+	public static long parse(String amount) {
+		if (amount == null) {
+			return INVALID_FORMAT;
+		}
+		int length = amount.length();
+		int i = 0;
+		long major = 0;
+		boolean tooLarge = false;
+		while (i < length) {
+			int digit = amount.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			// Keep validating the rest of the string after an overflow: bad format wins over too large.
+			if (!tooLarge) {
+				if (major > (MAX_MAJOR_UNITS - digit) / 10) {
+					tooLarge = true;
+				}
+				else {
+					major = major * 10 + digit;
+				}
+			}
+			i++;
+		}
+		if (i == 0) {
+			return INVALID_FORMAT;
+		}
+
+		long minor = 0;
+		if (i < length) {
+			if (amount.charAt(i) != '.' || length - i < 2 || length - i > 3) {
+				return INVALID_FORMAT;
+			}
+			for (int j = i + 1; j < length; j++) {
+				int digit = amount.charAt(j) - '0';
+				if (digit < 0 || digit > 9) {
+					return INVALID_FORMAT;
+				}
+				minor = minor * 10 + digit;
+			}
+			if (length - i == 2) {
+				minor *= 10;
+			}
+		}
+		if (tooLarge || major * 100 > Long.MAX_VALUE - minor) {
+			return TOO_LARGE;
+		}
+		return major * 100 + minor;
+	}
+
+	/**
+	 * Returns whether a result of parse() is an amount rather than an error code.
+	 */
+	public static boolean isValid(long result) {
+		return result >= 0;
+	}
+
+	/**
+	 * Returns the client-facing message for an error code returned by parse().
+	 */
+	static String errorMessage(long result) {
+		return result == TOO_LARGE ? TOO_LARGE_MESSAGE : INVALID_FORMAT_MESSAGE;
+	}
+}
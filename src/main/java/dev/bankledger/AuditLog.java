@@ -0,0 +1,355 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous audit log of loads, authorizations and balance checks.
+ *
+ * Records are written into pre-allocated slots of a ring buffer, so logging on a request thread
+ * is a CAS plus a few field stores and never touches the file or the console. A background
+ * thread drains the slots, encodes them as JSON lines and appends them to audit.log, rotating
+ * it to audit.log.1 .. audit.log.N once it exceeds the maximum file size. When the buffer is
+ * full, records are dropped (and counted) or the caller waits for space, depending on the
+ * overflow policy.
+ */
+public class AuditLog implements Closeable {
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 10;
+	static final String FILE_NAME = "audit.log";
+
+	private static final byte LOAD = 1;
+	private static final byte AUTHORIZATION = 2;
+	private static final byte BALANCE = 3;
+	private static final long PARK_NANOS = 1_000_000;
+	private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+	// Strings are truncated to 256 chars of at most 6 encoded bytes each, so a record always fits.
+	private static final int MAX_RECORD_SIZE = 8192;
+
+	/**
+	 * What to do when a record is logged while the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** Discard the record and count it in bankledger.audit.dropped. */
+		DROP,
+		/** Wait until the writer has freed a slot. */
+		BLOCK;
+
+		public static OverflowPolicy fromName(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	private final Record[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final OverflowPolicy overflowPolicy;
+	private final Path directory;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final Thread writer;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private FileChannel channel;
+	private long fileSize;
+	private volatile boolean running = true;
+	private IOException failure;
+
+	/**
+	 * Opens the audit log in `directory` and starts its writer thread.
+	 *
+	 * @param bufferSize The number of ring buffer slots; must be a power of two.
+	 * @param overflowPolicy What to do when the ring buffer is full.
+	 * @param maxFileSize The size in bytes after which the file is rotated.
+	 * @param maxFiles The number of rotated files to keep.
+	 */
+	public AuditLog(Path directory, int bufferSize, OverflowPolicy overflowPolicy, long maxFileSize, int maxFiles) throws IOException {
+		if (bufferSize <= 0 || Integer.bitCount(bufferSize) != 1) {
+			throw new IllegalArgumentException("Audit buffer size must be a power of two");
+		}
+		this.slots = new Record[bufferSize];
+		this.sequences = new AtomicLongArray(bufferSize);
+		this.mask = bufferSize - 1;
+		for (int i = 0; i < bufferSize; i++) {
+			slots[i] = new Record();
+			sequences.set(i, i);
+		}
+		this.overflowPolicy = overflowPolicy;
+		this.directory = directory;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+
+		Files.createDirectories(directory);
+		openFile();
+		this.writer = new Thread(this::drain, "audit-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Logs a load and the balance it resulted in.
+	 */
+	public void load(String userId, String messageId, long amountMinorUnits, long balanceMinorUnits) {
+		log(LOAD, userId, messageId, null, amountMinorUnits, balanceMinorUnits);
+	}
+
+	/**
+	 * Logs an authorization, its outcome and the balance it left.
+	 */
+	public void authorization(String userId, String messageId, String status, long amountMinorUnits, long balanceMinorUnits) {
+		log(AUTHORIZATION, userId, messageId, status, amountMinorUnits, balanceMinorUnits);
+	}
+
+	/**
+	 * Logs a balance check.
+	 */
+	public void balance(String userId, long balanceMinorUnits) {
+		log(BALANCE, userId, null, null, 0, balanceMinorUnits);
+	}
+
+	private void log(byte type, String userId, String messageId, String status, long amount, long balance) {
+		long time = System.currentTimeMillis();
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index].set(type, time, userId, messageId, status, amount, balance);
+					sequences.set(index, position + 1);
+					return;
+				}
+				position = tail.get();
+			}
+			else if (difference < 0) {
+				if (overflowPolicy == OverflowPolicy.DROP || !running) {
+					LedgerMetrics.AUDIT_DROPPED.increment();
+					return;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(PARK_NANOS / 100);
+				position = tail.get();
+			}
+			else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Writes the records that are still buffered, then closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void drain() {
+		long head = 0;
+		while (true) {
+			// Read the flag before polling, so nothing logged before close() is left behind.
+			boolean stopping = !running;
+			int index = (int) head & mask;
+			if (sequences.get(index) == head + 1) {
+				Record record = slots[index];
+				if (buffer.remaining() < MAX_RECORD_SIZE) {
+					flush();
+				}
+				record.encode(buffer);
+				record.clear();
+				sequences.set(index, head + mask + 1);
+				head++;
+				continue;
+			}
+
+			flush();
+			if (stopping) {
+				return;
+			}
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+	}
+
+	private void flush() {
+		buffer.flip();
+		try {
+			if (fileSize >= maxFileSize && buffer.hasRemaining()) {
+				rotate();
+			}
+			while (buffer.hasRemaining()) {
+				fileSize += channel.write(buffer);
+			}
+		}
+		catch (IOException e) {
+			// Keep draining so loggers never block on a broken disk; report the error on close.
+			failure = e;
+		}
+		buffer.clear();
+	}
+
+	private void rotate() throws IOException {
+		channel.close();
+		Files.deleteIfExists(directory.resolve(FILE_NAME + "." + maxFiles));
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			Path rotated = directory.resolve(FILE_NAME + "." + i);
+			if (Files.exists(rotated)) {
+				Files.move(rotated, directory.resolve(FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(directory.resolve(FILE_NAME), directory.resolve(FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		openFile();
+	}
+
+	private void openFile() throws IOException {
+		channel = FileChannel.open(directory.resolve(FILE_NAME),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileSize = channel.size();
+	}
+
+	/**
+	 * One pre-allocated ring buffer slot, reused for every record that passes through it.
+	 */
+	private static final class Record {
+		byte type;
+		long time;
+		String userId;
+		String messageId;
+		String status;
+		long amount;
+		long balance;
+
+		void set(byte type, long time, String userId, String messageId, String status, long amount, long balance) {
+			this.type = type;
+			this.time = time;
+			this.userId = userId;
+			this.messageId = messageId;
+			this.status = status;
+			this.amount = amount;
+			this.balance = balance;
+		}
+
+		void clear() {
+			userId = null;
+			messageId = null;
+			status = null;
+		}
+
+		/**
+		 * Writes the record as one JSON line, e.g.
+		 * {"time":1700000000000,"event":"AUTHORIZATION","userId":"user1","messageId":"...","status":"APPROVED","amount":"5.00","balance":"95.00"}
+		 */
+		void encode(ByteBuffer out) {
+			putAscii(out, "{\"time\":");
+			putLong(out, time);
+			putAscii(out, type == LOAD ? ",\"event\":\"LOAD\"" : type == AUTHORIZATION ? ",\"event\":\"AUTHORIZATION\"" : ",\"event\":\"BALANCE\"");
+			putAscii(out, ",\"userId\":");
+			putString(out, userId);
+			if (type != BALANCE) {
+				putAscii(out, ",\"messageId\":");
+				putString(out, messageId);
+				if (status != null) {
+					putAscii(out, ",\"status\":");
+					putString(out, status);
+				}
+				putAscii(out, ",\"amount\":\"");
+				putMinorUnits(out, amount);
+				out.put((byte) '"');
+			}
+			putAscii(out, ",\"balance\":\"");
+			putMinorUnits(out, balance);
+			putAscii(out, "\"}\n");
+		}
+
+		private static void putAscii(ByteBuffer out, String s) {
+			for (int i = 0; i < s.length(); i++) {
+				out.put((byte) s.charAt(i));
+			}
+		}
+
+		private static void putLong(ByteBuffer out, long value) {
+			if (value < 0) {
+				out.put((byte) '-');
+				value = -value;
+			}
+			long divisor = 1;
+			while (value / divisor >= 10) {
+				divisor *= 10;
+			}
+			for (; divisor > 0; divisor /= 10) {
+				out.put((byte) ('0' + (value / divisor) % 10));
+			}
+		}
+
+		private static void putMinorUnits(ByteBuffer out, long minorUnits) {
+			if (minorUnits < 0) {
+				out.put((byte) '-');
+				minorUnits = -minorUnits;
+			}
+			putLong(out, minorUnits / 100);
+			out.put((byte) '.');
+			out.put((byte) ('0' + (minorUnits % 100) / 10));
+			out.put((byte) ('0' + minorUnits % 10));
+		}
+
+		/**
+		 * Writes a quoted, escaped JSON string in UTF-8, truncated to keep the record within MAX_RECORD_SIZE.
+		 */
+		private static void putString(ByteBuffer out, String s) {
+			out.put((byte) '"');
+			int length = Math.min(s.length(), 256);
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					out.put((byte) '\\');
+					out.put((byte) c);
+				}
+				else if (c < 0x20) {
+					putAscii(out, "\\u00");
+					out.put((byte) Character.forDigit(c >> 4, 16));
+					out.put((byte) Character.forDigit(c & 0xF, 16));
+				}
+				else if (c < 0x80) {
+					out.put((byte) c);
+				}
+				else if (c < 0x800) {
+					out.put((byte) (0xC0 | c >> 6));
+					out.put((byte) (0x80 | c & 0x3F));
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					out.put((byte) (0xF0 | codePoint >> 18));
+					out.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+					out.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+					out.put((byte) (0x80 | codePoint & 0x3F));
+				}
+				else {
+					out.put((byte) (0xE0 | c >> 12));
+					out.put((byte) (0x80 | c >> 6 & 0x3F));
+					out.put((byte) (0x80 | c & 0x3F));
+				}
+			}
+			out.put((byte) '"');
+		}
+	}
+}
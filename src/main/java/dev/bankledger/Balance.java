@@ -2,78 +2,218 @@ package dev.bankledger;
 
 import java.math.BigDecimal;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import io.javalin.http.BadRequestResponse;
 
-public class Balance {
-	private BigDecimal balance;
-	private String currency;
-	private DebitCredit debitOrCredit;
+/**
+ * Balance guarded by a lock for updates. The value is an immutable BigDecimal published through a
+ * volatile field, so reads never take the lock and always see the latest complete update.
+ *
+ * In hot-account mode a balance whose lock is repeatedly found held, or that times out a credit,
+ * is promoted: from then on credits are added to CreditStripes without locking, and the pending credits are folded into
+ * the balance by the next update that takes the lock, so debits still check the exact balance.
+ */
+public class Balance implements LedgerBalance {
+	/** How far contended lock acquisitions must outnumber uncontended ones before promotion. */
+	static final int PROMOTION_THRESHOLD = 32;
+
+	private volatile BigDecimal balance;
+	private final String currency;
+	private final DebitCredit debitOrCredit;
+	private final boolean promoteWhenContended;
+	private final AtomicReference<CreditStripes> stripes = new AtomicReference<>();
+	// Only touched under the lock.
+	private int contention;
 	public final ReentrantLock lock = new ReentrantLock();
 
 	public Balance() {
-		this.balance = new BigDecimal("0");
-		this.currency = "USD";
-		this.debitOrCredit = DebitCredit.DEBIT;
+		this(new BigDecimal("0"), Amount.BASE_CURRENCY, DebitCredit.DEBIT);
 	}
 
 	public Balance(BigDecimal balance, String currency, DebitCredit debitOrCredit) {
+		this(balance, currency, debitOrCredit, false);
+	}
+
+	/**
+	 * @param promoteWhenContended Whether to switch to striped credits once the lock is contended.
+	 */
+	public Balance(BigDecimal balance, String currency, DebitCredit debitOrCredit, boolean promoteWhenContended) {
 		this.balance = balance;
 		this.currency = currency;
 		this.debitOrCredit = debitOrCredit;
+		this.promoteWhenContended = promoteWhenContended;
 	}
 
-	public BigDecimal add(BigDecimal a) throws Exception
+	public BigDecimal add(BigDecimal a) throws InterruptedException
 	{
-		boolean lockAcquired = false;
+		acquire();
 		try {
-			lockAcquired = lock.tryLock(100, TimeUnit.MILLISECONDS);
-			if (lockAcquired) {
-				balance = balance.add(a);
-			}
-			else {
-				throw new BadRequestResponse("Server is busy. Please retry.");
-			}
+			balance = foldPendingCredits().add(a);
+			return balance;
 		}
 		finally {
-			if (lockAcquired) {
-				lock.unlock();
-			}
-		}       
-		return balance;
+			lock.unlock();
+		}
 	}
 
-	public BigDecimal subtract(BigDecimal s) throws Exception
+	public BigDecimal subtract(BigDecimal s) throws InterruptedException
 	{
-		boolean lockAcquired = false;
+		acquire();
 		try {
-			lockAcquired = lock.tryLock(100, TimeUnit.MILLISECONDS);
-			if (lockAcquired) {
-				if (balance.compareTo(s) >= 0) {
-					balance = balance.subtract(s);
+			BigDecimal current = foldPendingCredits();
+			if (current.compareTo(s) >= 0) {
+				balance = current.subtract(s);
+			}
+			return balance;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Credits the account.
+	 *
+	 * @return The balance after the credit, in minor units. Once the balance is hot this is only an
+	 *         estimate: the balance read just before the credit plus the credit. Credits running
+	 *         concurrently are not counted, so it need not be a balance the account ever had.
+	 */
+	@Override
+	public long credit(long minorUnits) throws InterruptedException {
+		CreditStripes pending = stripes.get();
+		if (pending == null) {
+			if (tryAcquire()) {
+				try {
+					balance = foldPendingCredits().add(Amount.fromMinorUnits(minorUnits));
+					return Amount.toMinorUnits(balance);
+				}
+				finally {
+					lock.unlock();
 				}
 			}
-			else {
-				throw new BadRequestResponse("Server is busy. Please retry.");
+			if (!promoteWhenContended) {
+				throw busy();
 			}
+			// A credit that waited out the whole timeout is as contended as it gets.
+			promote();
+			pending = stripes.get();
+		}
+		// Read before adding: a read after it may miss the credit while a debit folds the stripes in.
+		long before = Amount.toMinorUnits(getBalance());
+		pending.add(minorUnits);
+		return before + minorUnits;
+	}
+
+	@Override
+	public long debit(long minorUnits) throws InterruptedException
+	{
+		BigDecimal s = Amount.fromMinorUnits(minorUnits);
+		acquire();
+		try {
+			BigDecimal current = foldPendingCredits();
+			if (current.compareTo(s) >= 0) {
+				balance = current.subtract(s);
+				return Amount.toMinorUnits(balance);
+			}
+			return -1 - Amount.toMinorUnits(current);
 		}
 		finally {
-			if (lockAcquired) {
-				lock.unlock();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether credits to this balance go to striped accumulators.
+	 */
+	public boolean isHot() {
+		return stripes.get() != null;
+	}
+
+	/**
+	 * Switches credits to striped accumulators.
+	 */
+	void promote() {
+		if (stripes.get() == null && stripes.compareAndSet(null, new CreditStripes())) {
+			LedgerMetrics.HOT_ACCOUNT_PROMOTIONS.increment();
+		}
+	}
+
+	/**
+	 * Moves the pending striped credits into the balance and returns it. Must hold the lock.
+	 */
+	private BigDecimal foldPendingCredits() {
+		CreditStripes pending = stripes.get();
+		if (pending != null) {
+			long credits = pending.drain();
+			if (credits != 0) {
+				balance = balance.add(Amount.fromMinorUnits(credits));
 			}
-		}       
+		}
 		return balance;
 	}
 
+	/**
+	 * Acquires the lock.
+	 *
+	 * @throws BadRequestResponse if the lock is not acquired within 100 ms.
+	 */
+	private void acquire() throws InterruptedException {
+		if (!tryAcquire()) {
+			throw busy();
+		}
+	}
+
+	/**
+	 * Tries to acquire the lock for up to 100 ms, recording how long that took and, in
+	 * hot-account mode, whether it was contended.
+	 */
+	private boolean tryAcquire() throws InterruptedException {
+		long start = System.nanoTime();
+		boolean contended = !lock.tryLock();
+		boolean lockAcquired = !contended || lock.tryLock(100, TimeUnit.MILLISECONDS);
+		LedgerMetrics.LOCK_WAIT.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		if (!lockAcquired) {
+			LedgerMetrics.LOCK_TIMEOUTS.increment();
+			return false;
+		}
+		if (promoteWhenContended && stripes.get() == null) {
+			if (!contended) {
+				contention = Math.max(0, contention - 1);
+			}
+			else if (++contention >= PROMOTION_THRESHOLD) {
+				promote();
+			}
+		}
+		return true;
+	}
+
+	private static BadRequestResponse busy() {
+		return new BadRequestResponse("Server is busy. Please retry.");
+	}
+
+	/**
+	 * Returns the balance including pending striped credits. While a debit folds them in, a
+	 * concurrent read may briefly miss some of them, but never counts a credit twice.
+	 */
+	@Override
 	public BigDecimal getBalance() {
-		return balance;
+		CreditStripes pending = stripes.get();
+		// Read the balance before the cells: a fold drains the cells before it publishes the balance.
+		BigDecimal folded = balance;
+		if (pending == null) {
+			return folded;
+		}
+		return folded.add(Amount.fromMinorUnits(pending.sum()));
 	}
 
+	@Override
 	public String getCurrency() {
 		return currency;
 	}
 
+	@Override
 	public DebitCredit getDebitOrCredit() {
 		return debitOrCredit;
-	}	
+	}
 }
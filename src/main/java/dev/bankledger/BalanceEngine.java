@@ -0,0 +1,41 @@
+package dev.bankledger;
+
+/**
+ * The available LedgerBalance implementations.
+ */
+public enum BalanceEngine {
+	/** BigDecimal balance guarded by a ReentrantLock. */
+	LOCKING,
+	/** Lock-free minor-unit balance updated with CAS. */
+	FIXED_POINT,
+	/** Like LOCKING, but accounts whose lock is contended switch to striped, lock-free credits. */
+	HOT_ACCOUNT;
+
+	/**
+	 * Creates a balance in the base currency holding the given amount.
+	 *
+	 * @param minorUnits The opening balance, in minor units.
+	 */
+	public LedgerBalance create(long minorUnits) {
+		return create(minorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Creates a balance in `currency` holding the given amount.
+	 *
+	 * @param minorUnits The opening balance, in minor units.
+	 */
+	public LedgerBalance create(long minorUnits, String currency) {
+		if (this == FIXED_POINT) {
+			return new FixedPointBalance(minorUnits, currency, DebitCredit.DEBIT);
+		}
+		return new Balance(Amount.fromMinorUnits(minorUnits), currency, DebitCredit.DEBIT, this == HOT_ACCOUNT);
+	}
+
+	/**
+	 * Parses a configuration value such as "locking", "fixed-point" or "hot-account".
+	 */
+	public static BalanceEngine fromName(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
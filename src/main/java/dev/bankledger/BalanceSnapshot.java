@@ -0,0 +1,43 @@
+package dev.bankledger;
+
+import java.math.BigDecimal;
+
+/**
+ * Folded balance of one account up to a point in its event history.
+ * Only events after the snapshot need to be replayed to obtain the current balance.
+ */
+public class BalanceSnapshot {
+	private final BigDecimal balance;
+	private final long sequence;
+	private final int eventCount;
+	private final long serverTime;
+
+	/**
+	 * @param balance The balance after folding the covered events.
+	 * @param sequence The sequence number of the last event covered by the snapshot.
+	 * @param eventCount The number of events in the in-memory history that the snapshot covers.
+	 * @param serverTime The serverTime of the last event covered by the snapshot.
+	 */
+	public BalanceSnapshot(BigDecimal balance, long sequence, int eventCount, long serverTime) {
+		this.balance = balance;
+		this.sequence = sequence;
+		this.eventCount = eventCount;
+		this.serverTime = serverTime;
+	}
+
+	public BigDecimal getBalance() {
+		return balance;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	public long getServerTime() {
+		return serverTime;
+	}
+}
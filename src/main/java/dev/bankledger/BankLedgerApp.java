@@ -1,31 +1,234 @@
 package dev.bankledger;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.Javalin;
+import io.javalin.config.JavalinConfig;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+import io.javalin.micrometer.MicrometerPlugin;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.math.BigDecimal;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class BankLedgerApp {
-	private static final EventStore eventStore = new EventStore();
-	private static final ConcurrentHashMap<String, Balance> balances = new ConcurrentHashMap<>();
+	private static Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+	private static LedgerPipeline pipeline;
+	// Created by configure(), or on first use if the handlers run unconfigured; each one owns a thread pool.
+	private static LedgerVerifier verifier;
+	private static ExecutorService batchAppliers;
+	private static IdempotencyCache idempotencyCache = new IdempotencyCache(IdempotencyCache.DEFAULT_MAX_KEYS, IdempotencyCache.DEFAULT_TTL_SECONDS);
+	private static ChangeFeed changeFeed = new ChangeFeed(ledger.getEventStore(), ChangeFeed.DEFAULT_RING_SIZE);
+	private static int changeFeedBufferSize = ChangeFeed.DEFAULT_BUFFER_SIZE;
+	private static final long CHANGE_FEED_KEEP_ALIVE_MILLIS = 15_000;
+	private static AdmissionControl admissionControl = new AdmissionControl(0, 0, 0, AdmissionControl.DEFAULT_LATENCY_TARGET_MILLIS);
+	private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static boolean follower;
 
 	/**
 	 * Main method to set up and start the server.
 	 */
-	public static void main(String[] args) {
-		Javalin app = Javalin.create(config -> config.http.defaultContentType = "application/json").start(7000);
+	public static void main(String[] args) throws IOException {
+		LedgerConfig ledgerConfig = LedgerConfig.fromSystemProperties();
+		EventStore eventStore = new EventStore();
+		FxRateTable fxRates = new FxRateTable();
+		if (ledgerConfig.journalDir != null) {
+			fxRates = new FxRateTable(ledgerConfig.journalDir.resolve("fx-rates.dat"));
+			EventJournal journal = EventJournal.open(ledgerConfig.journalDir, ledgerConfig.journalSegmentSize, ledgerConfig.journalFsync);
+			eventStore = new EventStore(journal, ledgerConfig.snapshotInterval);
+
+			EventStore persisted = eventStore;
+			ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "snapshot-writer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshotter.scheduleWithFixedDelay(() -> {
+				try {
+					persisted.persistSnapshots();
+				} catch (IOException e) {
+					System.err.println("Failed to persist balance snapshots: " + e.getMessage());
+				}
+			}, ledgerConfig.snapshotPersistSeconds, ledgerConfig.snapshotPersistSeconds, TimeUnit.SECONDS);
+		}
+		AuditLog auditLog = ledgerConfig.auditDir == null ? null : new AuditLog(ledgerConfig.auditDir,
+				ledgerConfig.auditBufferSize, ledgerConfig.auditOverflow, ledgerConfig.auditMaxFileSize, ledgerConfig.auditMaxFiles);
+		Ledger ledger = new Ledger(eventStore, ledgerConfig.balanceEngine, auditLog, TimeUnit.SECONDS.toMillis(ledgerConfig.holdTtlSeconds), fxRates);
+		ReplicationLeader replicationLeader = null;
+		if (!ledgerConfig.replicationFollowers.isEmpty()) {
+			List<ReplicationTransport> followers = new ArrayList<>();
+			for (InetSocketAddress follower : ledgerConfig.replicationFollowers) {
+				followers.add(new TcpReplicationTransport(follower.getHostString(), follower.getPort()));
+			}
+			int quorum = ledgerConfig.replicationQuorum > 0 ? ledgerConfig.replicationQuorum : ReplicationLeader.majority(followers.size());
+			replicationLeader = new ReplicationLeader(eventStore, followers, quorum,
+					ledgerConfig.replicationTimeoutMillis, ReplicationLeader.DEFAULT_MAX_LAG);
+		}
+		ReplicationServer replicationServer = ledgerConfig.replicationPort > 0
+				? new ReplicationServer(new ReplicationFollower(ledger), ledgerConfig.replicationPort)
+				: null;
+		if (replicationServer == null) {
+			ledger.startHoldExpiry();
+			ScheduledExecutorService holdExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "hold-expiry");
+				thread.setDaemon(true);
+				return thread;
+			});
+			holdExpiry.scheduleWithFixedDelay(() -> {
+				try {
+					ledger.expireHolds(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					System.err.println("Failed to expire holds: " + e.getMessage());
+				}
+			}, Ledger.HOLD_EXPIRY_TICK_MILLIS, Ledger.HOLD_EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		LedgerPipeline pipeline = ledgerConfig.pipelineShards > 0
+				? new LedgerPipeline(ledger, ledgerConfig.pipelineShards, ledgerConfig.pipelineRingSize)
+				: null;
+		configure(ledger, pipeline, ledgerConfig);
+
+		LedgerMetrics.bindEventStore(eventStore);
+		LedgerMetrics.bindAdmissionControl(admissionControl);
+
+		Javalin app = Javalin.create(BankLedgerApp::configureServer).start(ledgerConfig.port);
+		if (ledgerConfig.partitionSelf != null) {
+			new PartitionRouter(ledger, ledgerConfig.partitionSelf, new HashRing(ledgerConfig.partitions)).install(app);
+		}
 		defineRoutes(app);
+		if (ledgerConfig.binaryPort > 0 && replicationServer != null) {
+			System.err.println("The binary protocol is not served by a replication follower");
+		}
+		// Only the HTTP routes are guarded by the partition router, so the binary port would write accounts this node does not own.
+		if (ledgerConfig.binaryPort > 0 && ledgerConfig.partitionSelf != null) {
+			System.err.println("The binary protocol is not served by a partitioned node");
+		}
+		BinaryLedgerServer binaryServer = ledgerConfig.binaryPort > 0 && replicationServer == null && ledgerConfig.partitionSelf == null
+				? new BinaryLedgerServer(ledger, ledgerConfig.binaryHost, ledgerConfig.binaryPort, ledgerConfig.binaryEventLoops)
+				: null;
+		ReplicationLeader leader = replicationLeader;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			app.stop();
+			if (binaryServer != null) {
+				try {
+					binaryServer.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close binary protocol server: " + e.getMessage());
+				}
+			}
+			try {
+				if (replicationServer != null) {
+					replicationServer.close();
+				}
+				if (leader != null) {
+					leader.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to stop replication: " + e.getMessage());
+			}
+			if (pipeline != null) {
+				pipeline.close();
+			}
+			synchronized (BankLedgerApp.class) {
+				batchAppliers.shutdown();
+			}
+			try {
+				ledger.getEventStore().close();
+			} catch (IOException e) {
+				System.err.println("Failed to close event store: " + e.getMessage());
+			}
+			if (auditLog != null) {
+				try {
+					auditLog.close();
+				} catch (IOException e) {
+					System.err.println("Failed to write audit log: " + e.getMessage());
+				}
+			}
+		}));
 	}
 	
 	/**
-	 * Method to define all server routes for the application.
+	 * Sets the ledger the handlers operate on and, optionally, the pipeline they route
+	 * loads and authorizations through.
+	 */
+	public static void configure(Ledger ledger, LedgerPipeline pipeline) {
+		configure(ledger, pipeline, LedgerConfig.fromSystemProperties());
+	}
+
+	/**
+	 * Same as configure(ledger, pipeline), taking the verification, idempotency, replication,
+	 * change feed and admission control settings from `ledgerConfig`. A replication follower
+	 * rejects loads, authorizations and batches. The verifier, batch appliers and change feed of
+	 * an earlier configuration are closed.
+	 */
+	public static void configure(Ledger ledger, LedgerPipeline pipeline, LedgerConfig ledgerConfig) {
+		BankLedgerApp.ledger = ledger;
+		BankLedgerApp.pipeline = pipeline;
+		synchronized (BankLedgerApp.class) {
+			if (verifier != null) {
+				verifier.close();
+			}
+			verifier = new LedgerVerifier(ledger, ledgerConfig.verifyParallelism);
+			if (batchAppliers != null) {
+				batchAppliers.shutdown();
+			}
+			batchAppliers = TransactionBatch.newAppliers();
+		}
+		BankLedgerApp.idempotencyCache = new IdempotencyCache(ledgerConfig.idempotencyMaxKeys, ledgerConfig.idempotencyTtlSeconds);
+		BankLedgerApp.follower = ledgerConfig.replicationPort > 0;
+		BankLedgerApp.changeFeed.close();
+		BankLedgerApp.changeFeed = new ChangeFeed(ledger.getEventStore(), ledgerConfig.changeFeedRingSize);
+		BankLedgerApp.changeFeedBufferSize = ledgerConfig.changeFeedBufferSize;
+		BankLedgerApp.admissionControl = new AdmissionControl(ledgerConfig.admissionClientRate, ledgerConfig.admissionAccountRate,
+				ledgerConfig.admissionMaxConcurrency, ledgerConfig.admissionLatencyTargetMillis);
+	}
+
+	/**
+	 * Applies the server settings: JSON responses by default and request metrics for every route.
+	 */
+	public static void configureServer(JavalinConfig config) {
+		config.http.defaultContentType = "application/json";
+		config.registerPlugin(new MicrometerPlugin(micrometer -> micrometer.registry = LedgerMetrics.REGISTRY));
+	}
+
+	/**
+	 * Method to define all server routes for the application, behind admission control.
 	 */
 	public static void defineRoutes(Javalin app) {
+		app.before(ctx -> admissionControl.admit(ctx));
+		app.after(ctx -> admissionControl.complete(ctx));
 		app.get("/ping", BankLedgerApp::pingHandler);
 		app.put("/load", BankLedgerApp::loadHandler);
 		app.put("/authorization", BankLedgerApp::authorizationHandler);
+		app.put("/hold", BankLedgerApp::holdHandler);
+		app.put("/hold/capture", BankLedgerApp::captureHandler);
+		app.put("/hold/release", BankLedgerApp::releaseHandler);
 		app.get("/balance/{userId}", BankLedgerApp::balanceHandler);
 		app.get("/verify/{userId}", BankLedgerApp::verifyHandler);
+		app.post("/verify", BankLedgerApp::verifyAllHandler);
+		app.get("/verify/jobs/{jobId}", BankLedgerApp::verifyJobHandler);
+		app.post("/transactions/batch", BankLedgerApp::batchHandler);
+		app.get("/transactions/{userId}", BankLedgerApp::transactionsHandler);
+		app.sse("/events", BankLedgerApp::eventsHandler);
+		app.get("/fx/rates", BankLedgerApp::fxRatesHandler);
+		app.put("/fx/rates", BankLedgerApp::updateFxRatesHandler);
+		app.get("/metrics", BankLedgerApp::metricsHandler);
 	}
 
 	/**
@@ -40,10 +243,22 @@ public class BankLedgerApp {
 	}
     
     /**
-     * Handler for loading funds into a user's account.
+     * Handler exposing all metrics in the Prometheus text format.
+     */
+    private static void metricsHandler(Context ctx) {
+    	ctx.contentType(TextFormat.CONTENT_TYPE_004).result(LedgerMetrics.REGISTRY.scrape());
+    }
+    
+    /**
+     * Handler for loading funds into a user's account, in the base currency or, with the currency
+     * query parameter, into the user's balance in that currency.
      */
     public static void loadHandler(Context ctx) {
         try {
+            if (follower) {
+            	rejectWrite(ctx);
+            	return;
+            }
             String userId = ctx.queryParam("userId");
             String amount = ctx.queryParam("amount");
 
@@ -52,25 +267,30 @@ public class BankLedgerApp {
             	return;
             }
 
-            if (amount == null || !amount.matches("\\d+(\\.\\d{1,2})?")) {
-            	ctx.status(400).json(new Error("Amount must be a non-negative number with up to two decimal places", "400"));
+            long amountMinorUnits = AmountParser.parse(amount);
+            if (!AmountParser.isValid(amountMinorUnits)) {
+            	ctx.status(400).json(new Error(AmountParser.errorMessage(amountMinorUnits), "400"));
+            	return;
+            }
+            String currency = currencyParam(ctx);
+            if (currency == null) {
             	return;
             }
 
-            BigDecimal amountDecimal = new BigDecimal(amount);
-            balances.computeIfAbsent(userId, k -> new Balance());
-            Balance b = balances.get(userId);
-            b.add(amountDecimal);
-            
-            Transaction transaction = new Transaction(
-                userId, 
-                new Amount(amount, "USD", DebitCredit.CREDIT),
-                "APPROVED"
-            );
-            eventStore.addTransaction(transaction);
-
-            LoadResponse lr = new LoadResponse(userId, transaction.getMessageId(), new Amount(b.getBalance().toString(), "USD", DebitCredit.CREDIT));
-            System.out.println(lr);
+            String idempotencyKey = ctx.header(IDEMPOTENCY_KEY_HEADER);
+            if (idempotencyKey != null) {
+            	executeOnce(ctx, idempotencyKey, "load " + userId + " " + amount + " " + currency, () -> pipeline != null
+            			? pipeline.load(userId, amount, amountMinorUnits, currency)
+            			: CompletableFuture.completedFuture(ledger.load(userId, amount, amountMinorUnits, currency)));
+            	return;
+            }
+
+            if (pipeline != null) {
+            	ctx.future(() -> pipeline.load(userId, amount, amountMinorUnits, currency).handle((lr, error) -> respond(ctx, lr, error)));
+            	return;
+            }
+
+            LoadResponse lr = ledger.load(userId, amount, amountMinorUnits, currency);
             ctx.json(lr);
         }
         catch (Exception e) {
@@ -79,10 +299,68 @@ public class BankLedgerApp {
     }
     
     /**
-     * Handler for authorizing transactions from a user's account.
+     * Handler for authorizing transactions from a user's account. With the currency query
+     * parameter the amount is in that currency: it is debited from the user's balance in that
+     * currency or, if the user has none, converted with the current FX rates.
      */
     public static void authorizationHandler(Context ctx) {
     	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
+    		String userId = ctx.queryParam("userId");
+    		String amount = ctx.queryParam("amount");
+
+    		if (userId == null || userId.trim().isEmpty()) {
+    			ctx.status(400).json(new Error("User ID cannot be empty", "400"));
+    			return;
+    		}
+
+    		long transactionAmount = AmountParser.parse(amount);
+    		if (!AmountParser.isValid(transactionAmount)) {
+    			ctx.status(400).json(new Error(AmountParser.errorMessage(transactionAmount), "400"));
+    			return;
+    		}
+    		String currency = currencyParam(ctx);
+    		if (currency == null) {
+    			return;
+    		}
+
+            String idempotencyKey = ctx.header(IDEMPOTENCY_KEY_HEADER);
+            if (idempotencyKey != null) {
+            	executeOnce(ctx, idempotencyKey, "authorization " + userId + " " + amount + " " + currency, () -> pipeline != null
+            			? pipeline.authorize(userId, amount, transactionAmount, currency)
+            			: CompletableFuture.completedFuture(ledger.authorize(userId, amount, transactionAmount, currency)));
+            	return;
+            }
+
+            if (pipeline != null) {
+            	ctx.future(() -> pipeline.authorize(userId, amount, transactionAmount, currency).handle((ar, error) -> respond(ctx, ar, error)));
+            	return;
+            }
+
+            AuthorizationResponse ar = ledger.authorize(userId, amount, transactionAmount, currency);
+            ctx.json(ar);
+        }
+        catch (IllegalArgumentException e) {
+            ctx.status(400).json(new Error(e.getMessage(), "400"));
+        }
+        catch (Exception e) {
+            ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+        }
+    }
+    
+    /**
+     * Handler for placing a hold on funds of a user's account, to be captured or released later.
+     * Responds with the hold ID, the available balance and the ledger balance including holds.
+     */
+    public static void holdHandler(Context ctx) {
+    	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
     		String userId = ctx.queryParam("userId");
     		String amount = ctx.queryParam("amount");
 
@@ -91,52 +369,223 @@ public class BankLedgerApp {
     			return;
     		}
 
-    		if (amount == null || !amount.matches("\\d+(\\.\\d{1,2})?")) {
-    			ctx.status(400).json(new Error("Amount must be a non-negative number with up to two decimal places", "400"));
+    		long amountMinorUnits = AmountParser.parse(amount);
+    		if (!AmountParser.isValid(amountMinorUnits)) {
+    			ctx.status(400).json(new Error(AmountParser.errorMessage(amountMinorUnits), "400"));
     			return;
     		}
 
-    		BigDecimal transactionAmount = new BigDecimal(amount);
-            balances.computeIfAbsent(userId, k -> new Balance());
-
-            Balance balance = balances.get(userId);
-            BigDecimal currentBalance = balance.getBalance();
-            BigDecimal newBalance = balance.subtract(transactionAmount);
-            
-            if (newBalance.compareTo(currentBalance) < 0) {
-                Transaction transaction = new Transaction(
-                    userId, 
-                    new Amount(amount, "USD", DebitCredit.DEBIT),
-                    "APPROVED"
-                );
-                eventStore.addTransaction(transaction);
-                
-                AuthorizationResponse ar = new AuthorizationResponse(userId, transaction.getMessageId(), "APPROVED", 
-                		new Amount(newBalance.toString(), "USD", DebitCredit.DEBIT));
-                System.out.println(ar);
-                ctx.json(ar);
+            String idempotencyKey = ctx.header(IDEMPOTENCY_KEY_HEADER);
+            if (idempotencyKey != null) {
+            	executeOnce(ctx, idempotencyKey, "hold " + userId + " " + amount, () -> pipeline != null
+            			? pipeline.hold(userId, amount, amountMinorUnits)
+            			: CompletableFuture.completedFuture(ledger.hold(userId, amount, amountMinorUnits)));
+            	return;
             }
-            else {
-                Transaction transaction = new Transaction(
-                    userId, 
-                    new Amount(amount, "USD", DebitCredit.DEBIT),
-                    "DENIED"
-                );
-                eventStore.addTransaction(transaction);
-
-                AuthorizationResponse ar = new AuthorizationResponse(userId, transaction.getMessageId(), "DENIED", 
-                		new Amount(currentBalance.toString(), "USD", DebitCredit.DEBIT));
-                System.out.println(ar);
-                ctx.json(ar);
+
+            if (pipeline != null) {
+            	ctx.future(() -> pipeline.hold(userId, amount, amountMinorUnits).handle((hr, error) -> respond(ctx, hr, error)));
+            	return;
             }
+
+            ctx.json(ledger.hold(userId, amount, amountMinorUnits));
         }
         catch (Exception e) {
             ctx.status(500).json(new Error("An unexpected error occurred", "500"));
         }
     }
+
+    /**
+     * Handler for capturing an outstanding hold, in full or, with the amount parameter, in part.
+     * The part not captured is released.
+     */
+    public static void captureHandler(Context ctx) {
+    	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
+    		String amount = ctx.queryParam("amount");
+    		long amountMinorUnits = -1;
+    		if (amount != null) {
+    			amountMinorUnits = AmountParser.parse(amount);
+    			if (!AmountParser.isValid(amountMinorUnits)) {
+    				ctx.status(400).json(new Error(AmountParser.errorMessage(amountMinorUnits), "400"));
+    				return;
+    			}
+    		}
+    		long captureMinorUnits = amountMinorUnits;
+    		settleHold(ctx, (userId, holdId) -> pipeline != null
+    				? pipeline.capture(userId, holdId, captureMinorUnits)
+    				: CompletableFuture.completedFuture(ledger.capture(userId, holdId, captureMinorUnits)));
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
+
+    /**
+     * Handler for releasing an outstanding hold, returning its funds to the available balance.
+     */
+    public static void releaseHandler(Context ctx) {
+    	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
+    		settleHold(ctx, (userId, holdId) -> pipeline != null
+    				? pipeline.release(userId, holdId)
+    				: CompletableFuture.completedFuture(ledger.release(userId, holdId)));
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
+
+    private static void settleHold(Context ctx, HoldSettlement settlement) throws InterruptedException {
+    	String userId = ctx.queryParam("userId");
+    	String holdId = ctx.queryParam("holdId");
+
+    	if (userId == null || userId.trim().isEmpty() || holdId == null || holdId.trim().isEmpty()) {
+    		ctx.status(400).json(new Error("User ID and hold ID cannot be empty", "400"));
+    		return;
+    	}
+
+    	CompletableFuture<HoldResponse> settled;
+    	try {
+    		settled = settlement.settle(userId, holdId);
+    	} catch (IllegalArgumentException | IllegalStateException e) {
+    		settled = CompletableFuture.failedFuture(e);
+    	}
+    	CompletableFuture<HoldResponse> result = settled;
+    	ctx.future(() -> result.handle((response, error) -> {
+    		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    		if (cause instanceof IllegalArgumentException) {
+    			ctx.status(400).json(new Error(cause.getMessage(), "400"));
+    		}
+    		else if (cause instanceof IllegalStateException) {
+    			ctx.status(409).json(new Error(cause.getMessage(), "409"));
+    		}
+    		else if (cause != null) {
+    			respond(ctx, null, cause);
+    		}
+    		else if (response == null) {
+    			ctx.status(404).json(new Error("No outstanding hold " + holdId + " for user " + userId, "404"));
+    		}
+    		else {
+    			ctx.json(response);
+    		}
+    		return null;
+    	}));
+    }
+
+    private interface HoldSettlement {
+    	CompletableFuture<HoldResponse> settle(String userId, String holdId) throws InterruptedException;
+    }
+
+    /**
+     * Handler for applying a batch of loads and authorizations streamed in the request body.
+     * Accepts a JSON array or newline-delimited JSON and streams back one result per operation.
+     */
+    public static void batchHandler(Context ctx) {
+    	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
+    		String contentType = ctx.contentType();
+    		boolean ndjson = contentType != null && contentType.startsWith("application/x-ndjson");
+    		ctx.contentType(ndjson ? "application/x-ndjson" : "application/json");
+    		ExecutorService appliers;
+    		synchronized (BankLedgerApp.class) {
+    			appliers = batchAppliers;
+    		}
+    		new TransactionBatch(ledger, pipeline, appliers).process(ctx.bodyInputStream(), ctx.outputStream(), ndjson);
+    	}
+    	catch (BadRequestResponse e) {
+    		ctx.status(400).json(new Error(e.getMessage(), "400"));
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
     
     /**
-     * Handler for retrieving the current balance of a user's account.
+     * Handler for streaming one page of a user's transaction history. Supports the query parameters
+     * after (sequence number cursor), limit, from and to (serverTime range in epoch milliseconds)
+     * status (APPROVED, DENIED, HELD, CAPTURED, RELEASED or EXPIRED) and currency.
+     */
+    public static void transactionsHandler(Context ctx) {
+    	try {
+    		String userId = ctx.pathParam("userId");
+
+    		if (userId == null || userId.trim().isEmpty()) {
+    			ctx.status(400).json(new Error("User ID cannot be empty", "400"));
+    			return;
+    		}
+
+    		long after;
+    		long from;
+    		long to;
+    		long limit;
+    		try {
+    			after = longQueryParam(ctx, "after", 0);
+    			from = longQueryParam(ctx, "from", Long.MIN_VALUE);
+    			to = longQueryParam(ctx, "to", Long.MAX_VALUE);
+    			limit = longQueryParam(ctx, "limit", TransactionQuery.DEFAULT_LIMIT);
+    		} catch (NumberFormatException e) {
+    			ctx.status(400).json(new Error("after, from, to and limit must be whole numbers", "400"));
+    			return;
+    		}
+    		if (limit < 1 || limit > TransactionQuery.MAX_LIMIT) {
+    			ctx.status(400).json(new Error("Limit must be between 1 and " + TransactionQuery.MAX_LIMIT, "400"));
+    			return;
+    		}
+
+    		String status = ctx.queryParam("status");
+    		if (status != null && !Arrays.asList(Transaction.STATUSES).contains(status)) {
+    			ctx.status(400).json(new Error("Status must be one of " + String.join(", ", Transaction.STATUSES), "400"));
+    			return;
+    		}
+    		String currency = currencyParam(ctx);
+    		if (currency == null) {
+    			return;
+    		}
+
+    		ctx.contentType("application/json");
+    		new TransactionHistory(ledger.getEventStore())
+    				.write(userId, currency, new TransactionQuery(after, from, to, status, (int) limit), ctx.outputStream());
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
+
+    private static long longQueryParam(Context ctx, String name, long defaultValue) {
+    	String value = ctx.queryParam(name);
+    	return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Returns the currency query parameter, defaulting to the base currency, or answers 400 and
+     * returns null if it is not a currency code.
+     */
+    private static String currencyParam(Context ctx) {
+    	String currency = ctx.queryParam("currency");
+    	if (currency == null) {
+    		return Amount.BASE_CURRENCY;
+    	}
+    	if (!Amount.isCurrencyCode(currency)) {
+    		ctx.status(400).json(new Error("Currency must be a three-letter ISO 4217 code", "400"));
+    		return null;
+    	}
+    	return currency;
+    }
+    
+    /**
+     * Handler for retrieving the current balance of a user's account, or with the asOf query
+     * parameter (epoch milliseconds or an ISO-8601 instant) its balance at that point in time.
+     * The currency query parameter selects the user's balance in another currency.
      */
     public static void balanceHandler(Context ctx) {
     	try {
@@ -146,22 +595,54 @@ public class BankLedgerApp {
     			ctx.status(400).json(new Error("User ID cannot be empty", "400"));
     			return;
     		}
+    		String currency = currencyParam(ctx);
+    		if (currency == null) {
+    			return;
+    		}
 
-    		balances.computeIfAbsent(userId, k -> new Balance());
-    		BigDecimal currentBalance = balances.get(userId).getBalance();
-    		String currency = balances.get(userId).getCurrency();
-    		
-    		BalanceResponse response = new BalanceResponse(userId, currentBalance.toString(), currency);
-    		System.out.println("CHECK BALANCE: USER " + userId + ", BALANCE = " + currentBalance);
-    		ctx.json(response);
+    		String asOfParam = ctx.queryParam("asOf");
+    		if (asOfParam != null) {
+    			long asOf;
+    			try {
+    				asOf = parseAsOf(asOfParam);
+    			} catch (NumberFormatException | DateTimeParseException | ArithmeticException e) {
+    				ctx.status(400).json(new Error("asOf must be epoch milliseconds or an ISO-8601 instant", "400"));
+    				return;
+    			}
+    			BigDecimal balance = ledger.getEventStore().balanceAsOf(EventStore.accountKey(userId, currency), asOf);
+    			if (balance == null) {
+    				ctx.status(410).json(new Error("Balance history before that time is no longer retained", "410"));
+    				return;
+    			}
+    			ctx.json(new BalanceResponse(userId, balance.toString(), currency));
+    			return;
+    		}
+
+    		ctx.json(ledger.checkBalance(userId, currency));
     	}
     	catch (Exception e) {
     		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
     	}
     }
+
+    /**
+     * Parses an asOf parameter given as epoch milliseconds or an ISO-8601 instant. Digits are
+     * checked by hand, as this runs on every historical balance request.
+     */
+    private static long parseAsOf(String asOf) {
+    	int start = asOf.startsWith("-") ? 1 : 0;
+    	boolean digits = asOf.length() > start;
+    	for (int i = start; i < asOf.length() && digits; i++) {
+    		char c = asOf.charAt(i);
+    		digits = c >= '0' && c <= '9';
+    	}
+    	return digits ? Long.parseLong(asOf) : Instant.parse(asOf).toEpochMilli();
+    }
     
     /**
-     * Handler for verifying the consistency between the recorded balance and the event-log-reconstructed balance.
+     * Handler for verifying the consistency between the recorded balance and the event-log-reconstructed balance,
+     * of the base currency or of the currency query parameter. For the base currency it also replays
+     * every cross-currency conversion with the FX rate version it recorded.
      */
     public static void verifyHandler(Context ctx) {
     	try {
@@ -172,11 +653,22 @@ public class BankLedgerApp {
     			return;
     		}
 
-    		balances.computeIfAbsent(userId, k -> new Balance());
-    		BigDecimal currentBalance = balances.get(userId).getBalance();
-    		BigDecimal logBalance = eventStore.computeBalance(userId);
+    		String currency = currencyParam(ctx);
+    		if (currency == null) {
+    			return;
+    		}
+
+    		String account = EventStore.accountKey(userId, currency);
+    		LedgerBalance balance = ledger.findBalance(account);
+    		BigDecimal currentBalance = balance == null ? BigDecimal.ZERO : balance.getBalance();
+    		BigDecimal logBalance = ledger.getEventStore().computeBalance(account);
+    		int conversionMismatches = Amount.BASE_CURRENCY.equals(currency) ? ledger.verifyConversions(userId) : 0;
     		
-    		if (currentBalance.compareTo(logBalance) == 0) {
+    		if (conversionMismatches > 0) {
+    			ctx.status(409).json(new VerificationResponse(userId, currentBalance,
+    					"Conversion discrepancy detected in " + conversionMismatches + " authorizations", logBalance));
+    		}
+    		else if (currentBalance.compareTo(logBalance) == 0) {
                 ctx.json(new VerificationResponse(userId, currentBalance, "Balances match"));
             }
     		else {
@@ -187,6 +679,177 @@ public class BankLedgerApp {
     		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
     	}
     }
+
+    /**
+     * Handler starting a verification of every account in the ledger. Responds with the job,
+     * whose progress is then polled from /verify/jobs/{jobId}; if a job is already running,
+     * that job is returned instead of starting another.
+     */
+    public static void verifyAllHandler(Context ctx) {
+    	try {
+    		ctx.status(202).json(verifier().start());
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
+
+    private static synchronized LedgerVerifier verifier() {
+    	if (verifier == null) {
+    		verifier = new LedgerVerifier(ledger, LedgerVerifier.DEFAULT_PARALLELISM);
+    	}
+    	return verifier;
+    }
+
+    /**
+     * Handler reporting the progress and discrepancies of a verification job.
+     */
+    public static void verifyJobHandler(Context ctx) {
+    	LedgerVerifier.Job job = verifier().job(ctx.pathParam("jobId"));
+    	if (job == null) {
+    		ctx.status(404).json(new Error("Verification job not found", "404"));
+    		return;
+    	}
+    	ctx.json(job);
+    }
+
+    /**
+     * Applies a load or authorization at most once per Idempotency-Key and responds with its
+     * result, which for a repeated key is the response to the first request.
+     */
+    private static void executeOnce(Context ctx, String idempotencyKey, String request,
+    		Callable<? extends CompletableFuture<?>> operation) throws Exception {
+    	if (idempotencyKey.isEmpty() || idempotencyKey.length() > IdempotencyCache.MAX_KEY_LENGTH) {
+    		ctx.status(400).json(new Error("Idempotency-Key must be 1 to " + IdempotencyCache.MAX_KEY_LENGTH + " characters", "400"));
+    		return;
+    	}
+    	CompletableFuture<Object> result;
+    	try {
+    		// A request the ledger rejects fails its future, so it answers 400 rather than the 422 of a reused key.
+    		result = idempotencyCache.execute(idempotencyKey, request, () -> {
+    			try {
+    				return operation.call();
+    			} catch (IllegalArgumentException e) {
+    				return CompletableFuture.failedFuture(e);
+    			}
+    		});
+    	} catch (IllegalArgumentException e) {
+    		ctx.status(422).json(new Error(e.getMessage(), "422"));
+    		return;
+    	}
+    	ctx.future(() -> result.handle((response, error) -> respond(ctx, response, error)));
+    }
+
+    /**
+     * Streams the ledger's events to a change-data-capture consumer as server-sent events: one
+     * "transaction" event per ledger event, in sequence order, with its sequence number as the
+     * event ID. The stream starts after the Last-Event-ID header of a reconnecting client or the
+     * after query parameter, and by default with the next event. A consumer the feed can no
+     * longer serve gets an "error" event and is disconnected.
+     */
+    private static void eventsHandler(SseClient client) {
+    	Context ctx = client.ctx();
+    	long after;
+    	try {
+    		String lastEventId = ctx.header("Last-Event-ID");
+    		after = lastEventId != null ? Long.parseLong(lastEventId)
+    				: longQueryParam(ctx, "after", ledger.getEventStore().lastSequence());
+    	} catch (NumberFormatException e) {
+    		client.sendEvent("error", new Error("after must be a whole number", "400"));
+    		client.close();
+    		return;
+    	}
+
+    	ChangeFeed.Subscription subscription = changeFeed.subscribe(after, changeFeedBufferSize);
+    	client.onClose(subscription::close);
+    	try {
+    		while (!client.terminated()) {
+    			Transaction event = subscription.poll(CHANGE_FEED_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    			if (event == null) {
+    				client.sendComment("keep-alive");
+    			}
+    			else {
+    				client.sendEvent("transaction", event, Long.toString(event.getSequence()));
+    			}
+    		}
+    	} catch (IllegalStateException e) {
+    		client.sendEvent("error", new Error(e.getMessage(), "410"));
+    	} catch (IOException e) {
+    		client.sendEvent("error", new Error("An unexpected error occurred", "500"));
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} finally {
+    		subscription.close();
+    		client.close();
+    	}
+    }
+
+    /**
+     * Handler returning the current FX rates and their version.
+     */
+    public static void fxRatesHandler(Context ctx) {
+    	ctx.json(ledger.getFxRates().current());
+    }
+
+    /**
+     * Handler replacing the FX rates with the JSON object in the body, mapping each currency to
+     * the amount of the base currency one unit of it buys, as the next version.
+     */
+    public static void updateFxRatesHandler(Context ctx) {
+    	try {
+    		if (follower) {
+    			rejectWrite(ctx);
+    			return;
+    		}
+    		Map<String, BigDecimal> rates;
+    		try {
+    			rates = MAPPER.readValue(ctx.body(), new TypeReference<Map<String, BigDecimal>>() {});
+    		} catch (IOException e) {
+    			ctx.status(400).json(new Error("Rates must be a JSON object of currency codes to decimal rates", "400"));
+    			return;
+    		}
+    		for (Map.Entry<String, BigDecimal> entry : rates.entrySet()) {
+    			if (!Amount.isCurrencyCode(entry.getKey()) || entry.getValue() == null) {
+    				ctx.status(400).json(new Error("Invalid rate for " + entry.getKey(), "400"));
+    				return;
+    			}
+    		}
+    		ctx.json(ledger.getFxRates().update(rates));
+    	}
+    	catch (IllegalArgumentException e) {
+    		ctx.status(400).json(new Error(e.getMessage(), "400"));
+    	}
+    	catch (Exception e) {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    }
+
+    /**
+     * Answers a write sent to a replication follower, which only serves reads.
+     */
+    private static void rejectWrite(Context ctx) {
+    	ctx.status(503).json(new Error("This node is a read-only replication follower; send writes to the leader", "503"));
+    }
+
+    /**
+     * Completes an asynchronous load or authorization request with the pipeline's result.
+     */
+    private static Void respond(Context ctx, Object response, Throwable error) {
+    	if (error == null) {
+    		ctx.json(response);
+    	}
+    	else if (error instanceof RejectedExecutionException || error.getCause() instanceof RejectedExecutionException) {
+    		ctx.status(503).json(new Error("Server is busy. Please retry.", "503"));
+    	}
+    	else if (error instanceof IllegalArgumentException || error.getCause() instanceof IllegalArgumentException) {
+    		Throwable cause = error instanceof IllegalArgumentException ? error : error.getCause();
+    		ctx.status(400).json(new Error(cause.getMessage(), "400"));
+    	}
+    	else {
+    		ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+    	}
+    	return null;
+    }
 }
 
 
@@ -202,15 +865,34 @@ class Ping {
 	}
 }
 
-class LoadResponse {
+/**
+ * A response to a request that appended events to the ledger.
+ */
+interface Recorded {
+	/**
+	 * The sequence number of the last event the request appended, or 0 if it appended none or
+	 * its events were left to the caller to append in bulk.
+	 */
+	long sequence();
+}
+
+class LoadResponse implements Recorded {
 	private String userId;
 	private String messageId;
 	private Amount balance;
+	private long balanceMinorUnits;
+	private long sequence;
 
 	public LoadResponse(String userId, String messageId, Amount balance) {
+		this(userId, messageId, balance, Amount.toMinorUnits(new BigDecimal(balance.getAmount())), 0);
+	}
+
+	LoadResponse(String userId, String messageId, Amount balance, long balanceMinorUnits, long sequence) {
 		this.userId = userId;
 		this.messageId = messageId;
 		this.balance = balance;
+		this.balanceMinorUnits = balanceMinorUnits;
+		this.sequence = sequence;
 	}
 
 	public String getUserId() {
@@ -221,27 +903,51 @@ class LoadResponse {
 		return messageId;
 	}
 
+	/**
+	 * The balance after the load. For an account promoted to striped credits in hot-account mode
+	 * it is an estimate that leaves out concurrent credits; /balance reports the summed balance.
+	 */
 	public Amount getBalance() {
 		return balance;
 	}
 
+	/**
+	 * The balance in minor units, for encoders that do not print it as a decimal string.
+	 */
+	long balanceMinorUnits() {
+		return balanceMinorUnits;
+	}
+
+	@Override
+	public long sequence() {
+		return sequence;
+	}
+
 	@Override
 	public String toString() {
 		return "LOAD: USER " + userId + ", BALANCE = " + balance.getAmount();
 	}
 }
 
-class AuthorizationResponse {
+class AuthorizationResponse implements Recorded {
 	private String userId;
 	private String messageId;
 	private String responseCode;
 	private Amount balance;
+	private long balanceMinorUnits;
+	private long sequence;
 
 	public AuthorizationResponse(String userId, String messageId, String responseCode, Amount balance) {
+		this(userId, messageId, responseCode, balance, Amount.toMinorUnits(new BigDecimal(balance.getAmount())), 0);
+	}
+
+	AuthorizationResponse(String userId, String messageId, String responseCode, Amount balance, long balanceMinorUnits, long sequence) {
 		this.userId = userId;
 		this.messageId = messageId;
 		this.responseCode = responseCode;
 		this.balance = balance;
+		this.balanceMinorUnits = balanceMinorUnits;
+		this.sequence = sequence;
 	}
 
 	public String getUserId() {
@@ -260,6 +966,18 @@ class AuthorizationResponse {
 		return balance;
 	}
 
+	/**
+	 * The balance in minor units, for encoders that do not print it as a decimal string.
+	 */
+	long balanceMinorUnits() {
+		return balanceMinorUnits;
+	}
+
+	@Override
+	public long sequence() {
+		return sequence;
+	}
+
 	@Override
 	public String toString() {
 		return "AUTHORIZATION " + responseCode + ": USER " + userId + ", BALANCE = " + balance.getAmount();
@@ -270,11 +988,21 @@ class BalanceResponse {
 	private String userId;
 	private String balance;
 	private String currency;
+	private String ledgerBalance;
 
 	public BalanceResponse(String userId, String balance, String currency) {
+		this(userId, balance, currency, balance);
+	}
+
+	/**
+	 * @param balance The available balance.
+	 * @param ledgerBalance The available balance plus the outstanding holds.
+	 */
+	public BalanceResponse(String userId, String balance, String currency, String ledgerBalance) {
 		this.userId = userId;
 		this.balance = balance;
 		this.currency = currency;
+		this.ledgerBalance = ledgerBalance;
 	}
 
 	public String getUserId() {
@@ -288,6 +1016,80 @@ class BalanceResponse {
 	public String getCurrency() {
 		return currency;
 	}
+
+	public String getLedgerBalance() {
+		return ledgerBalance;
+	}
+}
+
+class HoldResponse implements Recorded {
+	private String userId;
+	private String holdId;
+	private String status;
+	private Amount amount;
+	private Amount balance;
+	private Amount ledgerBalance;
+	private long expiresAt;
+	private long sequence;
+
+	HoldResponse(String userId, String holdId, String status, Amount amount, Amount balance, Amount ledgerBalance, long expiresAt, long sequence) {
+		this.userId = userId;
+		this.holdId = holdId;
+		this.status = status;
+		this.amount = amount;
+		this.balance = balance;
+		this.ledgerBalance = ledgerBalance;
+		this.expiresAt = expiresAt;
+		this.sequence = sequence;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getHoldId() {
+		return holdId;
+	}
+
+	/**
+	 * HELD or DENIED for a new hold; CAPTURED, RELEASED or EXPIRED once settled.
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * The amount held, captured, or returned to the available balance.
+	 */
+	public Amount getAmount() {
+		return amount;
+	}
+
+	/**
+	 * The available balance.
+	 */
+	public Amount getBalance() {
+		return balance;
+	}
+
+	/**
+	 * The available balance plus the outstanding holds.
+	 */
+	public Amount getLedgerBalance() {
+		return ledgerBalance;
+	}
+
+	/**
+	 * When a new hold expires, in epoch milliseconds, or 0.
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public long sequence() {
+		return sequence;
+	}
 }
 
 class VerificationResponse {
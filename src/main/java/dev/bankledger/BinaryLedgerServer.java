@@ -0,0 +1,617 @@
+package dev.bankledger;
+
+import io.javalin.http.BadRequestResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves loads, authorizations and balance checks over the BinaryProtocol on a raw TCP port.
+ *
+ * Connections are spread over a few event loops, each one thread with its own selector. A loop
+ * decodes every complete frame it has read straight from the connection's buffer but never
+ * waits on a balance lock or for durability itself: with a LedgerPipeline attached to the
+ * ledger, loads and authorizations are submitted to it; otherwise the loop hands those of each
+ * pass to its writer thread, which applies them and waits once for the last of their events.
+ * Completed replies come back to the loop, which writes them in request order per connection.
+ * Frames carry amounts in minor units, so no text, regex or BigDecimal parsing and no JSON is
+ * involved. Connection buffers are direct buffers taken from a pool and returned when the
+ * connection closes.
+ *
+ * The port is meant for trusted clients inside the deployment, such as a gateway that has
+ * already authenticated, rate limited and deduplicated the requests. It has no admission control
+ * and no Idempotency-Key, so a retried write is applied again, and it listens on the loopback
+ * interface unless another host is given.
+ */
+public class BinaryLedgerServer implements Closeable {
+	public static final String DEFAULT_HOST = "127.0.0.1";
+	public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Ledger ledger;
+	private final ServerSocketChannel server;
+	private final int port;
+	private final EventLoop[] loops;
+	private final Thread acceptor;
+	private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+
+	/**
+	 * Same as BinaryLedgerServer(ledger, DEFAULT_HOST, port, eventLoops).
+	 */
+	public BinaryLedgerServer(Ledger ledger, int port, int eventLoops) throws IOException {
+		this(ledger, DEFAULT_HOST, port, eventLoops);
+	}
+
+	/**
+	 * Binds the port and starts the acceptor and event loop threads.
+	 *
+	 * @param host The address to listen on, e.g. 0.0.0.0 for every interface.
+	 * @param port The TCP port, or 0 for any free port.
+	 * @param eventLoops The number of event loop threads.
+	 */
+	public BinaryLedgerServer(Ledger ledger, String host, int port, int eventLoops) throws IOException {
+		this.ledger = ledger;
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(host, port));
+		this.port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+		this.loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].thread.start();
+		}
+		this.acceptor = new Thread(this::accept, "binary-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones. Responses still buffered are dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		server.close();
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+		try {
+			acceptor.join();
+			for (EventLoop loop : loops) {
+				loop.thread.join();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept() {
+		int next = 0;
+		while (running) {
+			try {
+				SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				loops[next++ % loops.length].register(channel);
+			}
+			catch (ClosedChannelException e) {
+				return;
+			}
+			catch (IOException e) {
+				if (running) {
+					System.err.println("Failed to accept binary protocol connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private ByteBuffer takeBuffer() {
+		ByteBuffer buffer = bufferPool.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private void returnBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		bufferPool.offer(buffer);
+	}
+
+	/**
+	 * One selector thread and the connections registered with it.
+	 */
+	private final class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		// Applies the writes of each pass when the ledger has no pipeline.
+		private final ExecutorService writer;
+		private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+		// Replies completed on the writer or pipeline threads, for this thread to write.
+		private final Queue<Reply> completions = new ConcurrentLinkedQueue<>();
+		private final List<Connection> toFlush = new ArrayList<>();
+		private final List<Connection> backlog = new ArrayList<>();
+		private List<Reply> writes = new ArrayList<>();
+		private final byte[] userIdBytes = new byte[BinaryProtocol.MAX_USER_ID_LENGTH];
+
+		EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "binary-event-loop-" + index);
+			this.thread.setDaemon(true);
+			this.writer = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "binary-writer-" + index);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Called from any thread once a reply is filled in.
+		 */
+		void complete(Reply reply) {
+			completions.add(reply);
+			selector.wakeup();
+		}
+
+		/**
+		 * Applies the loads and authorizations of one pass on the writer thread, in order, and
+		 * waits once for the last of their events before completing their replies.
+		 */
+		private void applyWrites(List<Reply> batch) {
+			try {
+				writer.execute(() -> {
+					long written = 0;
+					for (Reply reply : batch) {
+						reply.apply();
+						written = Math.max(written, reply.sequence);
+					}
+					try {
+						ledger.awaitDurable(written);
+					}
+					catch (RuntimeException e) {
+						for (Reply reply : batch) {
+							reply.status = BinaryProtocol.STATUS_ERROR;
+						}
+					}
+					for (Reply reply : batch) {
+						complete(reply);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// Closing.
+				for (Reply reply : batch) {
+					reply.status = BinaryProtocol.STATUS_ERROR;
+					complete(reply);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					if (backlog.isEmpty() && completions.isEmpty()) {
+						selector.select();
+					}
+					else {
+						selector.selectNow();
+					}
+					registerPending();
+
+					Reply completed;
+					while ((completed = completions.poll()) != null) {
+						completed.done = true;
+						completed.connection.drain();
+					}
+					// Connections whose output filled up before all their frames were handled.
+					for (Connection connection : backlog) {
+						connection.process();
+					}
+					backlog.clear();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						if (key.isValid() && key.isWritable()) {
+							connection.scheduleFlush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					}
+
+					if (!writes.isEmpty()) {
+						applyWrites(writes);
+						writes = new ArrayList<>();
+					}
+					for (Connection connection : toFlush) {
+						connection.flush();
+					}
+					toFlush.clear();
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Binary protocol event loop failed: " + e.getMessage());
+			}
+			finally {
+				writer.shutdown();
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				}
+				catch (IOException e) {
+					// Nothing left to release.
+				}
+			}
+		}
+
+		private void registerPending() {
+			SocketChannel channel;
+			while ((channel = registrations.poll()) != null) {
+				try {
+					Connection connection = new Connection(this, channel);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				}
+				catch (IOException e) {
+					try {
+						channel.close();
+					}
+					catch (IOException ignored) {
+						// Already broken.
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client connection: its pooled input and output buffers, both kept in write mode, and the
+	 * replies not written yet, in request order.
+	 */
+	private final class Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer in = takeBuffer();
+		private ByteBuffer out = takeBuffer();
+		private final ArrayDeque<Reply> replies = new ArrayDeque<>();
+		private boolean flushScheduled;
+
+		Connection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads what is available and handles the complete frames.
+		 */
+		void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+			}
+			catch (IOException e) {
+				close();
+				return;
+			}
+			process();
+		}
+
+		/**
+		 * Handles buffered frames while there is room for their responses and those still pending.
+		 */
+		void process() {
+			in.flip();
+			while (in.remaining() >= 4 && out.remaining() >= (replies.size() + 1) * BinaryProtocol.RESPONSE_SIZE) {
+				int length = in.getInt(in.position());
+				if (length < BinaryProtocol.REQUEST_HEADER_SIZE
+						|| length > BinaryProtocol.REQUEST_HEADER_SIZE + BinaryProtocol.MAX_USER_ID_LENGTH) {
+					// Not a frame of this protocol; there is no way to resynchronize.
+					close();
+					return;
+				}
+				if (in.remaining() < 4 + length) {
+					break;
+				}
+				handle(length);
+			}
+			in.compact();
+			if (out.position() > 0) {
+				scheduleFlush();
+			}
+		}
+
+		private void handle(int length) {
+			int frameEnd = in.position() + 4 + length;
+			in.getInt();
+			byte op = in.get();
+			long requestId = in.getLong();
+			long amount = in.getLong();
+			int userIdLength = in.getShort() & 0xFFFF;
+			if (userIdLength != length - BinaryProtocol.REQUEST_HEADER_SIZE) {
+				in.position(frameEnd);
+				answer(BinaryProtocol.STATUS_BAD_REQUEST, requestId);
+				return;
+			}
+			in.get(loop.userIdBytes, 0, userIdLength);
+			String userId = new String(loop.userIdBytes, 0, userIdLength, StandardCharsets.UTF_8);
+			if (userId.trim().isEmpty() || amount < 0) {
+				answer(BinaryProtocol.STATUS_BAD_REQUEST, requestId);
+				return;
+			}
+
+			if (op == BinaryProtocol.OP_BALANCE && replies.isEmpty()) {
+				try {
+					respond(BinaryProtocol.STATUS_OK, requestId, ledger.checkBalanceMinorUnits(userId), null);
+				}
+				catch (RuntimeException e) {
+					respond(BinaryProtocol.STATUS_ERROR, requestId, 0, null);
+				}
+			}
+			else if (op == BinaryProtocol.OP_LOAD || op == BinaryProtocol.OP_AUTHORIZATION || op == BinaryProtocol.OP_BALANCE) {
+				// A balance check behind writes goes the same way, so it reads the balance they leave.
+				Reply reply = new Reply(this, op, requestId, userId, amount);
+				replies.add(reply);
+				LedgerPipeline pipeline = ledger.getPipeline();
+				if (pipeline == null) {
+					loop.writes.add(reply);
+				}
+				else {
+					reply.submit(pipeline);
+				}
+			}
+			else {
+				answer(BinaryProtocol.STATUS_BAD_REQUEST, requestId);
+			}
+		}
+
+		/**
+		 * Answers a request without a balance, after the replies pending before it.
+		 */
+		private void answer(byte status, long requestId) {
+			if (replies.isEmpty()) {
+				respond(status, requestId, 0, null);
+				return;
+			}
+			Reply reply = new Reply(this, (byte) 0, requestId, null, 0);
+			reply.status = status;
+			reply.done = true;
+			replies.add(reply);
+		}
+
+		/**
+		 * Writes the replies at the head of the queue that are complete.
+		 */
+		void drain() {
+			if (out == null) {
+				return;
+			}
+			Reply reply;
+			while ((reply = replies.peek()) != null && reply.done) {
+				replies.poll();
+				respond(reply.status, reply.requestId, reply.balance, reply.messageId);
+			}
+			if (out.position() > 0) {
+				scheduleFlush();
+			}
+		}
+
+		private void respond(byte status, long requestId, long balance, String messageId) {
+			out.putInt(BinaryProtocol.RESPONSE_SIZE - 4);
+			out.put(status);
+			out.putLong(requestId);
+			out.putLong(balance);
+			if (messageId == null) {
+				out.putLong(0);
+				out.putLong(0);
+			}
+			else {
+				UUID uuid = UUID.fromString(messageId);
+				out.putLong(uuid.getMostSignificantBits());
+				out.putLong(uuid.getLeastSignificantBits());
+			}
+		}
+
+		void scheduleFlush() {
+			if (!flushScheduled) {
+				flushScheduled = true;
+				loop.toFlush.add(this);
+			}
+		}
+
+		/**
+		 * Writes the buffered responses. Reading pauses while the client is not keeping up with them.
+		 */
+		void flush() {
+			flushScheduled = false;
+			if (out == null) {
+				return;
+			}
+			try {
+				out.flip();
+				channel.write(out);
+				out.compact();
+			}
+			catch (IOException e) {
+				close();
+				return;
+			}
+			if (out.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+			else {
+				key.interestOps(SelectionKey.OP_READ);
+				if (in.position() >= 4) {
+					loop.backlog.add(this);
+				}
+			}
+		}
+
+		void close() {
+			if (in == null) {
+				return;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// Already broken.
+			}
+			returnBuffer(in);
+			returnBuffer(out);
+			in = null;
+			out = null;
+		}
+	}
+
+	/**
+	 * The reply to a request that is answered after it was read: a load or authorization, or a
+	 * request behind one on the same connection. Filled in by the thread that applies it and
+	 * then written by the connection's event loop; replies answered on the loop are done at once.
+	 */
+	private final class Reply {
+		final Connection connection;
+		final byte op;
+		final long requestId;
+		final String userId;
+		final long amount;
+		byte status;
+		long balance;
+		String messageId;
+		// The sequence of the event a load or authorization appended, or 0.
+		long sequence;
+		// Only read and written on the event loop thread.
+		boolean done;
+
+		Reply(Connection connection, byte op, long requestId, String userId, long amount) {
+			this.connection = connection;
+			this.op = op;
+			this.requestId = requestId;
+			this.userId = userId;
+			this.amount = amount;
+		}
+
+		/**
+		 * Applies the request to the ledger; called on the writer thread.
+		 */
+		void apply() {
+			try {
+				if (op == BinaryProtocol.OP_LOAD) {
+					loaded(ledger.applyLoad(userId, Amount.formatMinorUnits(amount), amount));
+				}
+				else if (op == BinaryProtocol.OP_AUTHORIZATION) {
+					authorized(ledger.applyAuthorization(userId, Amount.formatMinorUnits(amount), amount));
+				}
+				else {
+					checked(ledger.checkBalanceMinorUnits(userId));
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed(e);
+			}
+			catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+
+		/**
+		 * Submits the request to the account's shard of the pipeline, completing the reply once
+		 * it has been applied and is durable.
+		 */
+		void submit(LedgerPipeline pipeline) {
+			if (op == BinaryProtocol.OP_LOAD) {
+				pipeline.load(userId, Amount.formatMinorUnits(amount), amount).whenComplete((response, error) -> {
+					if (error == null) {
+						loaded(response);
+					}
+					completed(error);
+				});
+			}
+			else if (op == BinaryProtocol.OP_AUTHORIZATION) {
+				pipeline.authorize(userId, Amount.formatMinorUnits(amount), amount).whenComplete((response, error) -> {
+					if (error == null) {
+						authorized(response);
+					}
+					completed(error);
+				});
+			}
+			else {
+				pipeline.checkBalance(userId).whenComplete((response, error) -> {
+					if (error == null) {
+						checked(response);
+					}
+					completed(error);
+				});
+			}
+		}
+
+		private void completed(Throwable error) {
+			if (error != null) {
+				failed(error);
+			}
+			connection.loop.complete(this);
+		}
+
+		private void loaded(LoadResponse response) {
+			status = BinaryProtocol.STATUS_OK;
+			balance = response.balanceMinorUnits();
+			messageId = response.getMessageId();
+			sequence = response.sequence();
+		}
+
+		private void authorized(AuthorizationResponse response) {
+			status = "APPROVED".equals(response.getResponseCode()) ? BinaryProtocol.STATUS_OK : BinaryProtocol.STATUS_DENIED;
+			balance = response.balanceMinorUnits();
+			messageId = response.getMessageId();
+			sequence = response.sequence();
+		}
+
+		private void checked(long balanceMinorUnits) {
+			status = BinaryProtocol.STATUS_OK;
+			balance = balanceMinorUnits;
+		}
+
+		private void failed(Throwable error) {
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			// A balance lock that timed out or a full ring buffer: the client may retry.
+			status = cause instanceof BadRequestResponse || cause instanceof RejectedExecutionException
+					? BinaryProtocol.STATUS_BUSY : BinaryProtocol.STATUS_ERROR;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package dev.bankledger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame layout of the binary protocol served by BinaryLedgerServer. All numbers are big-endian
+ * and amounts are in minor units (cents).
+ *
+ * Request:  int length | byte op | long requestId | long amount | short userIdLength | userId (UTF-8)
+ * Response: int length | byte status | long requestId | long balance | long messageIdMsb | long messageIdLsb
+ *
+ * The length counts the bytes after the length field. A connection may send any number of
+ * requests without waiting; responses come back in request order, each echoing its requestId.
+ * The amount is ignored for balance requests, and the message ID is zero for them.
+ */
+public final class BinaryProtocol {
+	public static final byte OP_LOAD = 1;
+	public static final byte OP_AUTHORIZATION = 2;
+	public static final byte OP_BALANCE = 3;
+
+	/** Load applied, authorization approved or balance returned. */
+	public static final byte STATUS_OK = 0;
+	/** Authorization denied; the balance is left unchanged. */
+	public static final byte STATUS_DENIED = 1;
+	/** Unknown op, negative amount or empty user ID. */
+	public static final byte STATUS_BAD_REQUEST = 2;
+	/** The account is busy; retry. */
+	public static final byte STATUS_BUSY = 3;
+	public static final byte STATUS_ERROR = 4;
+
+	/** The bytes after the length field of a request, excluding the user ID. */
+	static final int REQUEST_HEADER_SIZE = 1 + 8 + 8 + 2;
+	public static final int MAX_USER_ID_LENGTH = 256;
+	public static final int RESPONSE_SIZE = 4 + 1 + 8 + 8 + 8 + 8;
+
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Writes one request frame into `out`.
+	 */
+	public static void writeRequest(ByteBuffer out, byte op, long requestId, String userId, long amountMinorUnits) {
+		byte[] user = userId.getBytes(StandardCharsets.UTF_8);
+		out.putInt(REQUEST_HEADER_SIZE + user.length);
+		out.put(op);
+		out.putLong(requestId);
+		out.putLong(amountMinorUnits);
+		out.putShort((short) user.length);
+		out.put(user);
+	}
+}
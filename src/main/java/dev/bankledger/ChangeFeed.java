@@ -0,0 +1,239 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Change-data-capture feed of every event appended to an EventStore, in sequence order, for
+ * downstream consumers such as fraud and analytics systems.
+ *
+ * An append publishes its event into a ring of the latest events, at the slot of its sequence
+ * number: one volatile store with no lock, no allocation and no waiting for subscribers, so the
+ * write path is never held up however many subscribers there are or however slow they are. Each
+ * subscriber reads the ring with its own cursor and only sees events once they are durable. A subscriber that starts from an older sequence number, or falls behind by more than
+ * the ring, reads from the journal instead, in batches of at most its buffer size, and returns to
+ * the ring once it has caught up. An in-memory store cannot go back that far, so there such a
+ * slow consumer is closed and has to resubscribe.
+ *
+ * A subscriber with nothing to read yields briefly and then parks until it is woken: by the next
+ * append, after its lock is released, or, when the journal syncs, by the flush that makes the
+ * event durable. Each parked subscriber is unparked once per wait; while none is parked, an append
+ * only pays one volatile read for this.
+ */
+public class ChangeFeed implements Closeable {
+	public static final int DEFAULT_RING_SIZE = 16384;
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+	private static final int SPINS_BEFORE_PARK = 100;
+	private static final AtomicReferenceFieldUpdater<Subscription, Thread> WAITER =
+			AtomicReferenceFieldUpdater.newUpdater(Subscription.class, Thread.class, "waiter");
+
+	private final EventStore eventStore;
+	private final AtomicReferenceArray<Transaction> ring;
+	private final int mask;
+	// Every event after this sequence number was published to the ring.
+	private final long baseline;
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+	// The number of subscribers parked, or about to park, in poll().
+	private final AtomicInteger waiting = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * Attaches to the event store, in place of any feed attached before.
+	 *
+	 * @param ringSize The number of latest events kept for subscribers, rounded up to a power of two.
+	 */
+	public ChangeFeed(EventStore eventStore, int ringSize) {
+		int size = Integer.highestOneBit(Math.max(1, ringSize - 1)) << 1;
+		this.eventStore = eventStore;
+		this.ring = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.baseline = eventStore.attachChangeFeed(this);
+	}
+
+	/**
+	 * Publishes an appended event. Called by the EventStore once the event is stored; the store
+	 * calls wakeWaiters() after releasing its lock.
+	 */
+	void publish(Transaction transaction) {
+		// A volatile store rather than a lazy one: it must not be reordered after the read of `waiting`
+		// in wakeWaiters(), or a subscriber that registered and then missed this event would not be woken.
+		ring.set((int) (transaction.getSequence() & mask), transaction);
+	}
+
+	/**
+	 * Unparks the subscribers waiting in poll(), each only once however often this is called
+	 * before it runs again. Called after events are published or become durable.
+	 */
+	void wakeWaiters() {
+		if (waiting.get() == 0) {
+			return;
+		}
+		for (Subscription subscription : subscriptions) {
+			Thread waiter = subscription.waiter;
+			if (waiter != null && WAITER.compareAndSet(subscription, waiter, null)) {
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Subscribes to the events after `afterSequence`.
+	 *
+	 * @param bufferSize The most events read ahead from the journal for this subscriber at once.
+	 */
+	public Subscription subscribe(long afterSequence, int bufferSize) {
+		Subscription subscription = new Subscription(afterSequence, bufferSize);
+		subscriptions.add(subscription);
+		if (closed) {
+			subscription.close("The change feed is closed");
+		}
+		return subscription;
+	}
+
+	/**
+	 * Returns the number of open subscriptions.
+	 */
+	public int subscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Closes every subscription. Appends still publish to the ring until another feed is attached.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Subscription subscription : subscriptions) {
+			subscription.close("The change feed is closed");
+		}
+	}
+
+	/**
+	 * One subscriber's position in the feed. Not thread-safe: a subscription is read by one consumer thread.
+	 */
+	public final class Subscription implements Closeable {
+		private final int bufferSize;
+		private final ArrayDeque<Transaction> buffer = new ArrayDeque<>();
+		private long cursor;
+		private volatile String closeReason;
+		// The thread parked in poll(), cleared by the first wakeWaiters() to unpark it.
+		volatile Thread waiter;
+
+		private Subscription(long afterSequence, int bufferSize) {
+			this.cursor = afterSequence;
+			this.bufferSize = Math.max(1, bufferSize);
+		}
+
+		/**
+		 * Returns the sequence number of the last event returned, which a consumer resubscribes after.
+		 */
+		public long getCursor() {
+			return cursor;
+		}
+
+		/**
+		 * Returns the next event, waiting up to `timeout` for it to become durable.
+		 *
+		 * @return The event, or null if there was none in time.
+		 * @throws IllegalStateException if the subscription was closed, e.g. because the consumer
+		 *         fell too far behind an in-memory store; the message says why.
+		 */
+		public Transaction poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			int idle = 0;
+			while (true) {
+				// Registered before checking for an event, so one published or made durable after the
+				// check wakes the park below.
+				boolean parking = ++idle > SPINS_BEFORE_PARK;
+				if (parking) {
+					waiter = Thread.currentThread();
+					waiting.incrementAndGet();
+				}
+				try {
+					String reason = closeReason;
+					if (reason != null) {
+						throw new IllegalStateException(reason);
+					}
+					Transaction event = buffer.isEmpty() ? next() : buffer.poll();
+					if (event != null) {
+						cursor = event.getSequence();
+						return event;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return null;
+					}
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					if (parking) {
+						LockSupport.parkNanos(this, remaining);
+					}
+					else {
+						Thread.yield();
+					}
+				}
+				finally {
+					if (parking) {
+						waiting.decrementAndGet();
+						waiter = null;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns the event after the cursor if it is durable and published, reading a batch from the
+		 * journal into the buffer if the ring no longer holds it.
+		 */
+		private Transaction next() throws IOException {
+			long sequence = cursor + 1;
+			long durable = eventStore.durableSequence();
+			if (sequence > durable) {
+				return null;
+			}
+			if (sequence > baseline) {
+				Transaction event = ring.get((int) (sequence & mask));
+				if (event == null || event.getSequence() < sequence) {
+					// Numbered but not published yet by a concurrent in-memory append.
+					return null;
+				}
+				if (event.getSequence() == sequence) {
+					return event;
+				}
+			}
+			// Overwritten in the ring, or appended before the feed was attached.
+			if (!eventStore.isJournaled()) {
+				LedgerMetrics.CHANGE_FEED_SLOW_CONSUMERS.increment();
+				close("Event " + sequence + " is no longer held; resubscribe from a later sequence number");
+				throw new IllegalStateException(closeReason);
+			}
+			eventStore.replay(sequence, Math.min(durable, sequence + bufferSize - 1), buffer::add);
+			return buffer.poll();
+		}
+
+		@Override
+		public void close() {
+			close("The subscription is closed");
+		}
+
+		private void close(String reason) {
+			if (closeReason == null) {
+				closeReason = reason;
+			}
+			subscriptions.remove(this);
+			Thread parked = waiter;
+			if (parked != null) {
+				LockSupport.unpark(parked);
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package dev.bankledger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped accumulator of pending credits, in minor units, in the style of LongAdder.
+ *
+ * Each thread adds to one of several cells picked by its thread ID, so concurrent credits to
+ * the same account rarely touch the same cache line. The cells are spaced STRIDE longs apart
+ * to keep them on separate cache lines. drain() empties the cells so their sum can be folded
+ * into the account balance.
+ */
+final class CreditStripes {
+	private static final int STRIDE = 16;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	CreditStripes() {
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+		this.cells = new AtomicLongArray(stripes * STRIDE);
+		this.mask = stripes - 1;
+	}
+
+	void add(long minorUnits) {
+		long id = Thread.currentThread().getId();
+		int stripe = (int) (id ^ (id >>> 16) ^ (id * 0x9E3779B9L >>> 32)) & mask;
+		cells.getAndAdd(stripe * STRIDE, minorUnits);
+	}
+
+	/**
+	 * Returns the credits pending so far. Not atomic: credits added while summing may or may not be included.
+	 */
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++) {
+			sum += cells.get(i * STRIDE);
+		}
+		return sum;
+	}
+
+	/**
+	 * Empties every cell and returns the credits taken out of them.
+	 */
+	long drain() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++) {
+			sum += cells.getAndSet(i * STRIDE, 0);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,196 @@
+package dev.bankledger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-heap storage for events as fixed-width records, addressed by an int index.
+ *
+ * Each record takes RECORD_SIZE bytes outside the Java heap: the 128-bit message id, the amount in
+ * minor units, the server time and the sequence number as longs, then one byte of flags
+ * (bit 0 = credit), one byte of status code and two bytes of currency code, then for an
+ * authorization converted from another currency the source currency code, the source amount in
+ * minor units and the FX rate version it was converted with (zero otherwise). Records are appended
+ * into direct buffers of CHUNK_RECORDS records each, so the heap only holds one small object per
+ * chunk no matter how many events are stored. The user ID is not stored; it is the key of the
+ * AccountEvents index that refers to the record.
+ *
+ * Appends from several threads are safe. A record may be read by any thread once its index has
+ * been published to it, e.g. through AccountEvents.
+ */
+final class EventArena {
+	static final int RECORD_SIZE = 64;
+	private static final int MESSAGE_ID_MSB = 0;
+	private static final int MESSAGE_ID_LSB = 8;
+	private static final int AMOUNT = 16;
+	private static final int SERVER_TIME = 24;
+	private static final int SEQUENCE = 32;
+	private static final int FLAGS = 40;
+	private static final int STATUS = 41;
+	private static final int CURRENCY = 42;
+	private static final int SOURCE_CURRENCY = 44;
+	private static final int SOURCE_AMOUNT = 48;
+	private static final int FX_RATE_VERSION = 56;
+	private static final int CREDIT_FLAG = 1;
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+	private final CopyOnWriteArrayList<String> currencies = new CopyOnWriteArrayList<>();
+	private final Map<String, Integer> currencyCodes = new ConcurrentHashMap<>();
+
+	/**
+	 * Stores an event and returns the index of its record.
+	 */
+	int append(Transaction transaction) {
+		Amount amount = transaction.getTransactionAmount();
+		long amountMinorUnits = AmountParser.parse(amount.getAmount());
+		if (!AmountParser.isValid(amountMinorUnits)) {
+			throw new IllegalArgumentException("Invalid event amount: " + amount.getAmount());
+		}
+		int flags = amount.getDebitOrCredit() == DebitCredit.CREDIT ? CREDIT_FLAG : 0;
+		int status = Transaction.statusCode(transaction.getStatus());
+		int currency = currencyCode(amount.getCurrency());
+		UUID messageId = UUID.fromString(transaction.getMessageId());
+		Amount source = transaction.getSourceAmount();
+		long sourceMinorUnits = source == null ? 0 : AmountParser.parse(source.getAmount());
+		if (source != null && !AmountParser.isValid(sourceMinorUnits)) {
+			throw new IllegalArgumentException("Invalid event source amount: " + source.getAmount());
+		}
+		int sourceCurrency = source == null ? 0 : currencyCode(source.getCurrency());
+
+		int index = next.getAndIncrement();
+		if (index < 0) {
+			throw new IllegalStateException("Event store is full");
+		}
+		ByteBuffer chunk = chunk(index >>> CHUNK_SHIFT);
+		int offset = (index & CHUNK_MASK) * RECORD_SIZE;
+		chunk.putLong(offset + MESSAGE_ID_MSB, messageId.getMostSignificantBits());
+		chunk.putLong(offset + MESSAGE_ID_LSB, messageId.getLeastSignificantBits());
+		chunk.putLong(offset + AMOUNT, amountMinorUnits);
+		chunk.putLong(offset + SERVER_TIME, transaction.getServerTime());
+		chunk.putLong(offset + SEQUENCE, transaction.getSequence());
+		chunk.put(offset + FLAGS, (byte) flags);
+		chunk.put(offset + STATUS, (byte) status);
+		chunk.putShort(offset + CURRENCY, (short) currency);
+		chunk.putShort(offset + SOURCE_CURRENCY, (short) sourceCurrency);
+		chunk.putLong(offset + SOURCE_AMOUNT, sourceMinorUnits);
+		chunk.putInt(offset + FX_RATE_VERSION, source == null ? 0 : transaction.getFxRateVersion());
+		return index;
+	}
+
+	/**
+	 * Returns the signed change an event makes to its account's balance, in minor units:
+	 * the amount for a credit, minus the amount for a debit, or zero if its status does not
+	 * change the balance.
+	 */
+	long balanceChange(int index) {
+		ByteBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+		int offset = (index & CHUNK_MASK) * RECORD_SIZE;
+		if (!Transaction.changesBalance(chunk.get(offset + STATUS))) {
+			return 0;
+		}
+		long amount = chunk.getLong(offset + AMOUNT);
+		return (chunk.get(offset + FLAGS) & CREDIT_FLAG) != 0 ? amount : -amount;
+	}
+
+	long amount(int index) {
+		return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) * RECORD_SIZE + AMOUNT);
+	}
+
+	long sequence(int index) {
+		return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) * RECORD_SIZE + SEQUENCE);
+	}
+
+	int status(int index) {
+		return chunks[index >>> CHUNK_SHIFT].get((index & CHUNK_MASK) * RECORD_SIZE + STATUS);
+	}
+
+	long serverTime(int index) {
+		return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) * RECORD_SIZE + SERVER_TIME);
+	}
+
+	/**
+	 * Materializes a record as a Transaction of the given user.
+	 */
+	Transaction read(String userId, int index) {
+		ByteBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+		int offset = (index & CHUNK_MASK) * RECORD_SIZE;
+		UUID messageId = new UUID(chunk.getLong(offset + MESSAGE_ID_MSB), chunk.getLong(offset + MESSAGE_ID_LSB));
+		DebitCredit debitOrCredit = (chunk.get(offset + FLAGS) & CREDIT_FLAG) != 0 ? DebitCredit.CREDIT : DebitCredit.DEBIT;
+		Amount amount = new Amount(Amount.formatMinorUnits(chunk.getLong(offset + AMOUNT)),
+				currencies.get(chunk.getShort(offset + CURRENCY)), debitOrCredit);
+		Transaction transaction = new Transaction(userId, messageId.toString(), amount, Transaction.STATUSES[chunk.get(offset + STATUS)],
+				chunk.getLong(offset + SERVER_TIME), chunk.getLong(offset + SEQUENCE));
+		int fxRateVersion = chunk.getInt(offset + FX_RATE_VERSION);
+		if (fxRateVersion != 0) {
+			transaction.recordConversion(new Amount(Amount.formatMinorUnits(chunk.getLong(offset + SOURCE_AMOUNT)),
+					currencies.get(chunk.getShort(offset + SOURCE_CURRENCY)), debitOrCredit), fxRateVersion);
+		}
+		return transaction;
+	}
+
+	/**
+	 * Returns every currency stored so far.
+	 */
+	List<String> currencies() {
+		return currencies;
+	}
+
+	/**
+	 * Returns the number of records stored.
+	 */
+	int size() {
+		return next.get();
+	}
+
+	private ByteBuffer chunk(int chunkIndex) {
+		ByteBuffer[] current = chunks;
+		if (chunkIndex < current.length && current[chunkIndex] != null) {
+			return current[chunkIndex];
+		}
+		synchronized (this) {
+			current = chunks;
+			if (chunkIndex >= current.length) {
+				current = Arrays.copyOf(current, Math.max(current.length * 2, chunkIndex + 1));
+			}
+			if (current[chunkIndex] == null) {
+				current[chunkIndex] = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE).order(ByteOrder.nativeOrder());
+			}
+			// Republish the array so readers of the volatile field see the new chunk.
+			chunks = current;
+			return current[chunkIndex];
+		}
+	}
+
+	/**
+	 * Returns the code of a currency in the records, registering it if it is new.
+	 */
+	int currencyCode(String currency) {
+		Integer code = currencyCodes.get(currency);
+		if (code != null) {
+			return code;
+		}
+		synchronized (currencies) {
+			code = currencyCodes.get(currency);
+			if (code == null) {
+				if (currencies.size() > Short.MAX_VALUE) {
+					throw new IllegalStateException("Too many currencies");
+				}
+				currencies.add(currency);
+				code = currencies.size() - 1;
+				currencyCodes.put(currency, code);
+			}
+			return code;
+		}
+	}
+}
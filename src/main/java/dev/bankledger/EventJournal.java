@@ -0,0 +1,633 @@
+package dev.bankledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of ledger events.
+ *
+ * Events are written as compact binary records into fixed-size segment files that are
+ * memory-mapped through a FileChannel. When a segment is full it is sealed, a sparse
+ * (sequence, offset) index is written next to it and a new segment is started, so replay
+ * can skip straight to the segment and offset holding a given sequence number.
+ *
+ * Durability uses group commit: appenders wait in awaitDurable() while a single flusher
+ * thread forces the active segment to disk, so one fsync covers every record written
+ * since the previous one.
+ */
+public class EventJournal implements Closeable {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int INDEX_MAGIC = 0x4C444958;
+	private static final int INDEX_INTERVAL = 1024;
+	// Record layout: int length, int crc32, then the payload described in encode().
+	private static final int RECORD_HEADER = 8;
+	private static final int FIXED_PAYLOAD = 8 + 8 + 16 + 1 + 2 + 1 + 1;
+	private static final int CREDIT_FLAG = 1;
+	// Set on an authorization converted from another currency, whose conversion follows the currency.
+	private static final int CONVERTED_FLAG = 0x80;
+
+	private final Path dir;
+	private final int segmentSize;
+	private final boolean fsync;
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Condition syncRequested = syncLock.newCondition();
+	private final Condition synced = syncLock.newCondition();
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private volatile Segment active;
+	private volatile long writtenSequence;
+	private volatile long durableSequence;
+	private volatile boolean closed;
+	private volatile RuntimeException flushFailure;
+	private volatile Runnable durabilityListener;
+	private Thread flusher;
+
+	private EventJournal(Path dir, int segmentSize, boolean fsync) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.fsync = fsync;
+	}
+
+	/**
+	 * Opens (or creates) the journal in the given directory and recovers its tail.
+	 * A torn or corrupt record at the end of the last segment is discarded.
+	 *
+	 * @param dir The directory holding the segment files.
+	 * @param segmentSize The size in bytes of newly created segment files.
+	 * @param fsync Whether awaitDurable() waits for the data to be forced to disk.
+	 * @return The opened journal, positioned after the last valid record.
+	 */
+	public static EventJournal open(Path dir, int segmentSize, boolean fsync) throws IOException {
+		Files.createDirectories(dir);
+		EventJournal journal = new EventJournal(dir, segmentSize, fsync);
+		journal.recover();
+		if (fsync) {
+			journal.flusher = new Thread(journal::flushLoop, "event-journal-flusher");
+			journal.flusher.setDaemon(true);
+			journal.flusher.start();
+		}
+		return journal;
+	}
+
+	/**
+	 * Appends a transaction and assigns it the next sequence number.
+	 * The record is visible to replay immediately but is only guaranteed to be on disk
+	 * once awaitDurable() has returned for its sequence number.
+	 *
+	 * @param transaction The transaction to append.
+	 * @return The sequence number of the new record.
+	 */
+	public long append(Transaction transaction) {
+		appendLock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("Event journal is closed");
+			}
+			long sequence = writtenSequence + 1;
+			int length = encode(transaction, sequence);
+			int recordSize = RECORD_HEADER + length;
+			if (recordSize > segmentSize) {
+				throw new IllegalArgumentException("Event is too large for a journal segment");
+			}
+			if (active.end + recordSize > active.buffer.capacity()) {
+				roll(sequence);
+			}
+
+			Segment segment = active;
+			int position = segment.end;
+			crc.reset();
+			crc.update(scratch.array(), 0, length);
+			segment.buffer.putInt(position + 4, (int) crc.getValue());
+			segment.writer.position(position + RECORD_HEADER);
+			segment.writer.put(scratch.array(), 0, length);
+			segment.buffer.putInt(position, length);
+			segment.track(sequence, position, position + recordSize);
+			writtenSequence = sequence;
+			return sequence;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Could not roll journal segment", e);
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until every record up to and including the given sequence number has been forced to disk.
+	 * Concurrent callers share a single flush. Returns immediately when fsync is disabled.
+	 *
+	 * @param sequence The sequence number returned by append().
+	 */
+	public void awaitDurable(long sequence) {
+		if (!fsync || durableSequence >= sequence) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			syncRequested.signal();
+			while (durableSequence < sequence) {
+				if (flushFailure != null) {
+					throw flushFailure;
+				}
+				synced.awaitUninterruptibly();
+			}
+		}
+		finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays every record with a sequence number greater than or equal to fromSequence, in order.
+	 * Whole segments before fromSequence are skipped and the segment index is used to seek within a segment.
+	 *
+	 * @param fromSequence The first sequence number to deliver.
+	 * @param consumer Receives each replayed transaction.
+	 */
+	public void replay(long fromSequence, Consumer<Transaction> consumer) throws IOException {
+		replay(fromSequence, Long.MAX_VALUE, consumer);
+	}
+
+	/**
+	 * Same as replay(fromSequence, consumer), stopping after the record with sequence number toSequence.
+	 */
+	public void replay(long fromSequence, long toSequence, Consumer<Transaction> consumer) throws IOException {
+		for (Segment segment : segments) {
+			if (segment.lastSequence < fromSequence) {
+				continue;
+			}
+			ByteBuffer buffer = segment.reader();
+			int end = segment.end;
+			int position = segment.positionFor(fromSequence);
+			while (position < end) {
+				int length = buffer.getInt(position);
+				Transaction transaction = decode(buffer, position + RECORD_HEADER);
+				if (transaction.getSequence() > toSequence) {
+					return;
+				}
+				if (transaction.getSequence() >= fromSequence) {
+					consumer.accept(transaction);
+				}
+				position += RECORD_HEADER + length;
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory holding the segment files.
+	 */
+	public Path directory() {
+		return dir;
+	}
+
+	/**
+	 * Returns whether records only become durable once a flush forces them to disk, rather than
+	 * as soon as they are written.
+	 */
+	public boolean isFsync() {
+		return fsync;
+	}
+
+	/**
+	 * Returns the sequence number up to which records are durable: forced to disk or, with fsync
+	 * disabled, written.
+	 */
+	public long durableSequence() {
+		return fsync ? durableSequence : writtenSequence;
+	}
+
+	/**
+	 * Returns the sequence number of the last appended record, or 0 if the journal is empty.
+	 */
+	public long lastSequence() {
+		return writtenSequence;
+	}
+
+	/**
+	 * Flushes outstanding records and stops the flusher thread.
+	 */
+	@Override
+	public void close() {
+		appendLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			syncLock.lock();
+			try {
+				closed = true;
+				syncRequested.signalAll();
+			}
+			finally {
+				syncLock.unlock();
+			}
+		}
+		finally {
+			appendLock.unlock();
+		}
+
+		if (flusher != null) {
+			try {
+				flusher.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		active.buffer.force();
+		syncLock.lock();
+		try {
+			durableSequence = writtenSequence;
+			synced.signalAll();
+		}
+		finally {
+			syncLock.unlock();
+		}
+		notifyDurable();
+	}
+
+	/**
+	 * Runs `listener` each time a flush advances the durable sequence number, on the flusher thread
+	 * or in close(), in place of any listener set before. Without fsync events are durable once
+	 * written, so only close() runs it.
+	 */
+	void setDurabilityListener(Runnable listener) {
+		durabilityListener = listener;
+	}
+
+	private void notifyDurable() {
+		Runnable listener = durabilityListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			long target;
+			syncLock.lock();
+			try {
+				while (!closed && durableSequence >= writtenSequence) {
+					syncRequested.awaitUninterruptibly();
+				}
+				if (durableSequence >= writtenSequence) {
+					return;
+				}
+				target = writtenSequence;
+			}
+			finally {
+				syncLock.unlock();
+			}
+
+			// Segments sealed before target was read were already forced by roll().
+			RuntimeException failure = null;
+			try {
+				active.buffer.force();
+			}
+			catch (RuntimeException e) {
+				failure = e;
+			}
+
+			syncLock.lock();
+			try {
+				if (failure != null) {
+					flushFailure = failure;
+				}
+				else {
+					durableSequence = target;
+				}
+				synced.signalAll();
+			}
+			finally {
+				syncLock.unlock();
+			}
+			if (failure != null) {
+				return;
+			}
+			notifyDurable();
+		}
+	}
+
+	private void recover() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				files.add(path);
+			}
+		}
+		Collections.sort(files);
+
+		long expected = 1;
+		for (int i = 0; i < files.size(); i++) {
+			Path path = files.get(i);
+			String name = path.getFileName().toString();
+			Segment segment = new Segment(path, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			if (segment.firstSequence != expected) {
+				throw new IOException("Journal segment " + path + " does not continue from sequence " + (expected - 1));
+			}
+			boolean last = i == files.size() - 1;
+			if (last) {
+				segment.map(FileChannel.MapMode.READ_WRITE);
+				scan(segment);
+				zeroTail(segment);
+			}
+			else if (!readIndex(segment)) {
+				segment.map(FileChannel.MapMode.READ_ONLY);
+				scan(segment);
+				writeIndex(segment);
+			}
+			segments.add(segment);
+			expected = segment.lastSequence + 1;
+		}
+
+		if (segments.isEmpty()) {
+			active = createSegment(1);
+			segments.add(active);
+		}
+		else {
+			active = segments.get(segments.size() - 1);
+		}
+		writtenSequence = expected - 1;
+		durableSequence = writtenSequence;
+	}
+
+	private void roll(long nextSequence) throws IOException {
+		Segment sealed = active;
+		if (fsync) {
+			sealed.buffer.force();
+		}
+		writeIndex(sealed);
+		Segment next = createSegment(nextSequence);
+		segments.add(next);
+		active = next;
+	}
+
+	private Segment createSegment(long firstSequence) throws IOException {
+		Segment segment = new Segment(dir.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX)), firstSequence);
+		try (FileChannel channel = FileChannel.open(segment.path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		segment.writer = segment.buffer.duplicate();
+		return segment;
+	}
+
+	/**
+	 * Walks the records of a segment, stopping at the first empty, torn, corrupt or out-of-order record.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		CRC32 checksum = new CRC32();
+		int position = 0;
+		long expected = segment.firstSequence;
+		while (position + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length < FIXED_PAYLOAD || position + RECORD_HEADER + length > buffer.capacity()) {
+				break;
+			}
+			ByteBuffer payload = buffer.duplicate();
+			payload.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+			checksum.reset();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != buffer.getInt(position + 4)
+					|| buffer.getLong(position + RECORD_HEADER) != expected) {
+				break;
+			}
+			segment.track(expected, position, position + RECORD_HEADER + length);
+			position += RECORD_HEADER + length;
+			expected++;
+		}
+	}
+
+	/**
+	 * Clears everything after the last valid record so that stale bytes can never be mistaken for records.
+	 */
+	private static void zeroTail(Segment segment) {
+		ByteBuffer tail = segment.buffer.duplicate();
+		tail.position(segment.end);
+		byte[] zeros = new byte[8192];
+		while (tail.hasRemaining()) {
+			tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+		}
+		segment.writer = segment.buffer.duplicate();
+	}
+
+	private Path indexPath(Segment segment) {
+		return dir.resolve(String.format("%020d%s", segment.firstSequence, INDEX_SUFFIX));
+	}
+
+	private void writeIndex(Segment segment) throws IOException {
+		Path path = indexPath(segment);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(segment.firstSequence);
+			out.writeLong(segment.lastSequence);
+			out.writeInt(segment.end);
+			out.writeInt(segment.index.size());
+			for (long[] entry : segment.index) {
+				out.writeLong(entry[0]);
+				out.writeLong(entry[1]);
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private boolean readIndex(Segment segment) {
+		Path path = indexPath(segment);
+		if (!Files.exists(path)) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readLong() != segment.firstSequence) {
+				return false;
+			}
+			long lastSequence = in.readLong();
+			int end = in.readInt();
+			int entries = in.readInt();
+			List<long[]> index = new ArrayList<>(entries);
+			for (int i = 0; i < entries; i++) {
+				index.add(new long[] {in.readLong(), in.readLong()});
+			}
+			segment.index.addAll(index);
+			segment.lastSequence = lastSequence;
+			segment.end = end;
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Encodes a record payload into the scratch buffer:
+	 * sequence, serverTime, messageId (two longs), flags, userId, amount and currency
+	 * (each length-prefixed), then for a converted event the FX rate version as an int and the
+	 * source amount and source currency (each length-prefixed).
+	 */
+	private int encode(Transaction transaction, long sequence) {
+		byte[] userId = transaction.getUserId().getBytes(StandardCharsets.UTF_8);
+		byte[] amount = transaction.getTransactionAmount().getAmount().getBytes(StandardCharsets.US_ASCII);
+		byte[] currency = transaction.getTransactionAmount().getCurrency().getBytes(StandardCharsets.US_ASCII);
+		Amount source = transaction.getSourceAmount();
+		byte[] sourceAmount = source == null ? null : source.getAmount().getBytes(StandardCharsets.US_ASCII);
+		byte[] sourceCurrency = source == null ? null : source.getCurrency().getBytes(StandardCharsets.US_ASCII);
+		if (userId.length > 0xFFFF || amount.length > 0xFF || currency.length > 0xFF
+				|| (source != null && (sourceAmount.length > 0xFF || sourceCurrency.length > 0xFF))) {
+			throw new IllegalArgumentException("Event field is too long for the journal");
+		}
+		int flags = Transaction.statusCode(transaction.getStatus()) << 1;
+		if (transaction.getTransactionAmount().getDebitOrCredit() == DebitCredit.CREDIT) {
+			flags |= CREDIT_FLAG;
+		}
+		if (source != null) {
+			flags |= CONVERTED_FLAG;
+		}
+		UUID messageId = UUID.fromString(transaction.getMessageId());
+
+		int length = FIXED_PAYLOAD + userId.length + amount.length + currency.length
+				+ (source == null ? 0 : 4 + 2 + sourceAmount.length + sourceCurrency.length);
+		if (scratch.capacity() < length) {
+			scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+		}
+		scratch.clear();
+		scratch.putLong(sequence)
+				.putLong(transaction.getServerTime())
+				.putLong(messageId.getMostSignificantBits())
+				.putLong(messageId.getLeastSignificantBits())
+				.put((byte) flags)
+				.putShort((short) userId.length).put(userId)
+				.put((byte) amount.length).put(amount)
+				.put((byte) currency.length).put(currency);
+		if (source != null) {
+			scratch.putInt(transaction.getFxRateVersion())
+					.put((byte) sourceAmount.length).put(sourceAmount)
+					.put((byte) sourceCurrency.length).put(sourceCurrency);
+		}
+		return length;
+	}
+
+	private static Transaction decode(ByteBuffer buffer, int position) {
+		long sequence = buffer.getLong(position);
+		long serverTime = buffer.getLong(position + 8);
+		UUID messageId = new UUID(buffer.getLong(position + 16), buffer.getLong(position + 24));
+		int flags = buffer.get(position + 32);
+		int offset = position + 33;
+
+		int userIdLength = buffer.getShort(offset) & 0xFFFF;
+		String userId = readString(buffer, offset + 2, userIdLength, true);
+		offset += 2 + userIdLength;
+		int amountLength = buffer.get(offset) & 0xFF;
+		String amount = readString(buffer, offset + 1, amountLength, false);
+		offset += 1 + amountLength;
+		int currencyLength = buffer.get(offset) & 0xFF;
+		String currency = readString(buffer, offset + 1, currencyLength, false);
+		offset += 1 + currencyLength;
+
+		DebitCredit debitOrCredit = (flags & CREDIT_FLAG) != 0 ? DebitCredit.CREDIT : DebitCredit.DEBIT;
+		Transaction transaction = new Transaction(userId, messageId.toString(), new Amount(amount, currency, debitOrCredit),
+				Transaction.STATUSES[(flags & ~CONVERTED_FLAG & 0xFF) >>> 1], serverTime, sequence);
+		if ((flags & CONVERTED_FLAG) != 0) {
+			int fxRateVersion = buffer.getInt(offset);
+			offset += 4;
+			int sourceAmountLength = buffer.get(offset) & 0xFF;
+			String sourceAmount = readString(buffer, offset + 1, sourceAmountLength, false);
+			offset += 1 + sourceAmountLength;
+			int sourceCurrencyLength = buffer.get(offset) & 0xFF;
+			String sourceCurrency = readString(buffer, offset + 1, sourceCurrencyLength, false);
+			transaction.recordConversion(new Amount(sourceAmount, sourceCurrency, debitOrCredit), fxRateVersion);
+		}
+		return transaction;
+	}
+
+	private static String readString(ByteBuffer buffer, int position, int length, boolean utf8) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(position + i);
+		}
+		return new String(bytes, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * One segment file. Only the active (last) segment is written to; the others are sealed.
+	 */
+	private static final class Segment {
+		final Path path;
+		final long firstSequence;
+		final List<long[]> index = new CopyOnWriteArrayList<>();
+		MappedByteBuffer buffer;
+		ByteBuffer writer;
+		volatile int end;
+		volatile long lastSequence;
+
+		Segment(Path path, long firstSequence) {
+			this.path = path;
+			this.firstSequence = firstSequence;
+			this.lastSequence = firstSequence - 1;
+		}
+
+		void track(long sequence, int position, int newEnd) {
+			if ((sequence - firstSequence) % INDEX_INTERVAL == 0) {
+				index.add(new long[] {sequence, position});
+			}
+			lastSequence = sequence;
+			end = newEnd;
+		}
+
+		int positionFor(long sequence) {
+			int position = 0;
+			for (long[] entry : index) {
+				if (entry[0] > sequence) {
+					break;
+				}
+				position = (int) entry[1];
+			}
+			return position;
+		}
+
+		synchronized ByteBuffer reader() throws IOException {
+			if (buffer == null) {
+				map(FileChannel.MapMode.READ_ONLY);
+			}
+			return buffer;
+		}
+
+		void map(FileChannel.MapMode mode) throws IOException {
+			StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+					? new StandardOpenOption[] {StandardOpenOption.READ}
+					: new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE};
+			try (FileChannel channel = FileChannel.open(path, options)) {
+				buffer = channel.map(mode, 0, channel.size());
+			}
+		}
+	}
+}
@@ -1,62 +1,762 @@
 package dev.bankledger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Stores and manages all transactions within the application.
- * Utilizes a ConcurrentHashMap to ensure thread-safe operations.
+ * Events are kept as fixed-width off-heap records in an EventArena, indexed per account by
+ * AccountEvents in a ConcurrentHashMap, so stored events add almost nothing to the heap.
+ * When backed by an EventJournal, every transaction is persisted first and the map
+ * serves as a read cache that is rebuilt from the journal on startup.
+ *
+ * Every snapshotInterval events an account's balance is folded into a BalanceSnapshot,
+ * so computing a balance only replays the events recorded after its latest snapshot.
+ * In journal mode the snapshots are also persisted, and on startup only the events after
+ * them are replayed into the cache; older events remain in the journal.
+ *
+ * Each of a user's currencies is a separate account, named by accountKey(): the user ID itself
+ * for the base currency, so single-currency callers pass plain user IDs, and the user ID and
+ * currency otherwise.
+ *
+ * The store also tracks the outstanding holds of each user: HELD events not yet followed by a
+ * CAPTURED, RELEASED or EXPIRED event with the same message ID. They are persisted with the
+ * snapshots, so holds older than the replayed events survive a restart.
  */
-public class EventStore {
-	private final ConcurrentHashMap<String, List<Transaction>> transactions = new ConcurrentHashMap<>();
+public class EventStore implements Closeable {
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+	private static final String SNAPSHOT_FILE = "snapshots.dat";
+	// Accounts moved to another partition: each record is a user ID and the last sequence number it covers.
+	private static final String MOVED_FILE = "moved.dat";
+	// Followed by the watermark, each account's snapshot (user ID, currency, sequence number,
+	// balance and serverTime of its last event) and the outstanding holds as of the watermark.
+	private static final int SNAPSHOT_MAGIC = 0x4C534E50;
+
+	private final EventArena arena = new EventArena();
+	private final ConcurrentHashMap<String, AccountEvents> transactions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, BalanceSnapshot> snapshots = new ConcurrentHashMap<>();
+	private final Map<String, Long> movedOut = new ConcurrentHashMap<>();
+	// Outstanding holds per account: hold ID to the arena index of its HELD event.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> openHolds = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final EventJournal journal;
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final int snapshotInterval;
+	private volatile ReplicationLeader replication;
+	private volatile ChangeFeed changeFeed;
+
+	/**
+	 * Creates a purely in-memory store.
+	 */
+	public EventStore() {
+		this(DEFAULT_SNAPSHOT_INTERVAL);
+	}
+
+	/**
+	 * Creates a purely in-memory store.
+	 *
+	 * @param snapshotInterval The number of events per account between balance snapshots.
+	 */
+	public EventStore(int snapshotInterval) {
+		this.journal = null;
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * Creates a store backed by the given journal and replays its events into memory.
+	 *
+	 * @param journal The journal to persist transactions to.
+	 */
+	public EventStore(EventJournal journal) throws IOException {
+		this(journal, DEFAULT_SNAPSHOT_INTERVAL);
+	}
 
 	/**
-	 * Adds a transaction to the store.
+	 * Creates a store backed by the given journal. The latest persisted snapshots are loaded
+	 * and only the journal events written after them are replayed into memory.
+	 *
+	 * @param journal The journal to persist transactions to.
+	 * @param snapshotInterval The number of events per account between balance snapshots.
+	 */
+	public EventStore(EventJournal journal, int snapshotInterval) throws IOException {
+		this.journal = journal;
+		this.snapshotInterval = snapshotInterval;
+		loadMovedOut(journal.directory().resolve(MOVED_FILE));
+		long[] holdsWatermark = new long[1];
+		long replayFrom = loadSnapshots(journal.directory().resolve(SNAPSHOT_FILE), holdsWatermark);
+		journal.replay(replayFrom, transaction -> {
+			if (isMovedOut(transaction)) {
+				return;
+			}
+			BalanceSnapshot snapshot = snapshots.get(accountKey(transaction));
+			if (snapshot == null || transaction.getSequence() > snapshot.getSequence()) {
+				cache(transaction);
+			}
+			else if (transaction.getSequence() > holdsWatermark[0]) {
+				// Folded into a snapshot taken after the persisted holds, but it may open or close one.
+				int status = Transaction.statusCode(transaction.getStatus());
+				if (status == Transaction.HELD || Transaction.closesHold(status)) {
+					trackHold(transaction.getUserId(), transaction.getMessageId(), status,
+							status == Transaction.HELD ? arena.append(transaction) : -1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds a transaction to the store and assigns its sequence number.
+	 * In journal mode this returns only once the transaction is durable.
 	 * If no transactions exist for a given userId, it initializes a new list.
 	 *
 	 * @param transaction The transaction to add.
 	 */
 	public void addTransaction(Transaction transaction) {
-		transactions.computeIfAbsent(transaction.getUserId(), k -> new ArrayList<>()).add(transaction);
+		awaitDurable(append(transaction));
+	}
+
+	/**
+	 * Adds a transaction without waiting for it to become durable.
+	 *
+	 * @param transaction The transaction to add.
+	 * @return The sequence number assigned to the transaction.
+	 */
+	public long append(Transaction transaction) {
+		if (journal == null && replication == null) {
+			// Numbered and added under the account's monitor, so sequence numbers grow along each
+			// account's list; appends to different accounts still run in parallel.
+			String key = accountKey(transaction);
+			AccountEvents account = accountEvents(key, transaction);
+			synchronized (account) {
+				transaction.assignSequence(sequence.incrementAndGet());
+				cache(key, account, transaction);
+				publish(transaction);
+			}
+			wakeSubscribers();
+			return transaction.getSequence();
+		}
+
+		// Journal order, cache order and replication order must agree, so all happen under one lock.
+		long seq;
+		appendLock.lock();
+		try {
+			seq = appendLocked(transaction);
+		}
+		finally {
+			appendLock.unlock();
+		}
+		wakeSubscribers();
+		return seq;
+	}
+
+	/**
+	 * Adds several transactions at once without waiting for them to become durable.
+	 * In journal mode the journal lock is taken only once for the whole list.
+	 *
+	 * @param batch The transactions to add, in order.
+	 * @return The sequence number assigned to the last transaction.
+	 */
+	public long appendAll(List<Transaction> batch) {
+		if (journal == null && replication == null) {
+			long seq = sequence.get();
+			for (Transaction transaction : batch) {
+				seq = append(transaction);
+			}
+			return seq;
+		}
+
+		long seq = lastSequence();
+		appendLock.lock();
+		try {
+			for (Transaction transaction : batch) {
+				seq = appendLocked(transaction);
+			}
+		}
+		finally {
+			appendLock.unlock();
+		}
+		wakeSubscribers();
+		return seq;
+	}
+
+	private long appendLocked(Transaction transaction) {
+		long seq = journal == null ? sequence.incrementAndGet() : journal.append(transaction);
+		transaction.assignSequence(seq);
+		cache(transaction);
+		publish(transaction);
+		if (replication != null) {
+			replication.enqueue(transaction);
+		}
+		return seq;
+	}
+
+	/**
+	 * Starts passing every appended transaction to the replication leader, in sequence order.
+	 *
+	 * @return The sequence number of the last transaction appended before the leader was attached.
+	 */
+	long attachReplication(ReplicationLeader leader) {
+		appendLock.lock();
+		try {
+			replication = leader;
+			return lastSequence();
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts publishing every appended transaction to the change feed, in place of any feed attached before.
+	 *
+	 * @return The sequence number of the last transaction appended before the feed was attached.
+	 */
+	long attachChangeFeed(ChangeFeed feed) {
+		appendLock.lock();
+		try {
+			changeFeed = feed;
+			if (journal != null && journal.isFsync()) {
+				// An event is only delivered once flushed, after its append, so the flush wakes the subscribers.
+				journal.setDurabilityListener(feed::wakeWaiters);
+			}
+			// Read after the field is set: an unlocked in-memory append numbered after this sees the feed.
+			return lastSequence();
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	private void publish(Transaction transaction) {
+		ChangeFeed feed = changeFeed;
+		if (feed != null) {
+			feed.publish(transaction);
+		}
+	}
+
+	/**
+	 * Wakes the change feed subscribers waiting for an event, once the append lock is released.
+	 * Skipped when the journal syncs, as the events are not deliverable until its flusher wakes them.
+	 */
+	private void wakeSubscribers() {
+		ChangeFeed feed = changeFeed;
+		if (feed != null && (journal == null || !journal.isFsync())) {
+			feed.wakeWaiters();
+		}
+	}
+
+	/**
+	 * Passes the journaled transactions from fromSequence to toSequence to `consumer`, in order.
+	 * Only a journal keeps events in ledger-wide order, so this requires journal mode.
+	 */
+	void replay(long fromSequence, long toSequence, Consumer<Transaction> consumer) throws IOException {
+		if (journal == null) {
+			throw new IllegalStateException("An in-memory event store cannot replay its events in order");
+		}
+		journal.replay(fromSequence, toSequence, consumer);
+	}
+
+	/**
+	 * Returns whether the store keeps its events in a journal, from which replay() can read them back.
+	 */
+	boolean isJournaled() {
+		return journal != null;
+	}
+
+	/**
+	 * Blocks until the transaction with the given sequence number, and every one before it, is durable.
+	 * With a replication leader attached this also waits for a quorum of followers to hold them.
+	 * Does nothing for an in-memory store without replication.
+	 */
+	public void awaitDurable(long seq) {
+		if (journal != null) {
+			journal.awaitDurable(seq);
+		}
+		ReplicationLeader leader = replication;
+		if (leader != null) {
+			leader.awaitReplicated(seq);
+		}
+	}
+
+	/**
+	 * Returns the sequence number up to which transactions are durable; in memory, that of the
+	 * most recently added transaction.
+	 */
+	long durableSequence() {
+		return journal == null ? sequence.get() : journal.durableSequence();
+	}
+
+	/**
+	 * Returns the sequence number of the most recently added transaction.
+	 */
+	public long lastSequence() {
+		return journal == null ? sequence.get() : journal.lastSequence();
+	}
+
+	private void cache(Transaction transaction) {
+		String key = accountKey(transaction);
+		cache(key, accountEvents(key, transaction), transaction);
+	}
+
+	private AccountEvents accountEvents(String key, Transaction transaction) {
+		return transactions.computeIfAbsent(key,
+				k -> new AccountEvents(transaction.getUserId(), transaction.getTransactionAmount().getCurrency(), arena));
+	}
+
+	/**
+	 * Adds a numbered transaction to its account's events. Callers serialize the appends to each account.
+	 */
+	private void cache(String key, AccountEvents userTransactions, Transaction transaction) {
+		int index = arena.append(transaction);
+		int size = userTransactions.append(index);
+		trackHold(transaction.getUserId(), transaction.getMessageId(), arena.status(index), index);
+
+		BalanceSnapshot snapshot = snapshots.get(key);
+		int covered = snapshot == null ? 0 : snapshot.getEventCount();
+		if (size - covered >= snapshotInterval) {
+			takeSnapshot(key, userTransactions, size);
+		}
+	}
+
+	/**
+	 * Returns the key of a user's account in a currency: the user ID for the base currency,
+	 * otherwise the user ID and the currency separated by a slash.
+	 */
+	public static String accountKey(String userId, String currency) {
+		return Amount.BASE_CURRENCY.equals(currency) ? userId : userId + "/" + currency;
+	}
+
+	private static String accountKey(Transaction transaction) {
+		return accountKey(transaction.getUserId(), transaction.getTransactionAmount().getCurrency());
+	}
+
+	/**
+	 * Opens the hold of a HELD event or closes the hold an event settles; other events are ignored.
+	 *
+	 * @param index The arena index of a HELD event.
+	 */
+	private void trackHold(String userId, String holdId, int status, int index) {
+		if (status == Transaction.HELD) {
+			openHolds.compute(userId, (k, holds) -> {
+				ConcurrentHashMap<String, Integer> updated = holds == null ? new ConcurrentHashMap<>() : holds;
+				updated.put(holdId, index);
+				return updated;
+			});
+		}
+		else if (Transaction.closesHold(status)) {
+			openHolds.computeIfPresent(userId, (k, holds) -> {
+				holds.remove(holdId);
+				return holds.isEmpty() ? null : holds;
+			});
+		}
+	}
+
+	/**
+	 * Returns the HELD event of an outstanding hold, or null if the user has no such hold or it
+	 * has been captured, released or has expired.
+	 */
+	public Transaction getOpenHold(String userId, String holdId) {
+		Map<String, Integer> holds = openHolds.get(userId);
+		Integer index = holds == null ? null : holds.get(holdId);
+		return index == null ? null : arena.read(userId, index);
+	}
+
+	/**
+	 * Returns the sum of a user's outstanding holds, in minor units.
+	 */
+	public long heldMinorUnits(String userId) {
+		Map<String, Integer> holds = openHolds.get(userId);
+		if (holds == null) {
+			return 0;
+		}
+		long held = 0;
+		for (int index : holds.values()) {
+			held += arena.amount(index);
+		}
+		return held;
+	}
+
+	/**
+	 * Passes the HELD event of every outstanding hold to `consumer`.
+	 */
+	public void forEachOpenHold(Consumer<Transaction> consumer) {
+		for (Map.Entry<String, ConcurrentHashMap<String, Integer>> entry : openHolds.entrySet()) {
+			for (int index : entry.getValue().values()) {
+				consumer.accept(arena.read(entry.getKey(), index));
+			}
+		}
+	}
+
+	/**
+	 * Returns the keys of all accounts with at least one transaction.
+	 */
+	public Set<String> getAccountKeys() {
+		return transactions.keySet();
+	}
+
+	/**
+	 * Returns the keys of a user's accounts, one per currency the user has transactions in.
+	 */
+	public Set<String> accountKeys(String userId) {
+		Set<String> keys = new HashSet<>();
+		for (String currency : arena.currencies()) {
+			String key = accountKey(userId, currency);
+			if (transactions.containsKey(key)) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the user an account belongs to. An account without transactions is taken to be a
+	 * user's base-currency account, whose key is the user ID.
+	 */
+	public String userIdOf(String accountKey) {
+		AccountEvents account = transactions.get(accountKey);
+		return account == null ? accountKey : account.getUserId();
+	}
+
+	/**
+	 * Returns the currency of an account, or null if it has no transactions.
+	 */
+	public String currencyOf(String accountKey) {
+		AccountEvents account = transactions.get(accountKey);
+		return account == null ? null : account.getCurrency();
 	}
 
 	/**
-	 * Retrieves all transactions for a specified user.
+	 * Retrieves all transactions for a specified user, in the base currency or, given an
+	 * accountKey(), in another currency.
+	 * In journal mode only the transactions after the user's last persisted snapshot
+	 * are held in memory after a restart.
 	 *
 	 * @param userId The ID of the user whose transactions are to be retrieved.
-	 * @return A list of transactions for the user.
+	 * @return A read-only list of transactions for the user. It is a live view that decodes
+	 *         each transaction when it is accessed and grows as transactions are added.
 	 */
 	public List<Transaction> getTransactionsForUser(String userId) {
-		return transactions.getOrDefault(userId, new ArrayList<>());
+		List<Transaction> userTransactions = transactions.get(userId);
+		return userTransactions == null ? Collections.emptyList() : userTransactions;
 	}
 
 	/**
-	 * Computes the current balance for a specified user based on their transactions.
-	 * Only 'APPROVED' transactions affect the balance.
+	 * Passes one page of a user's transactions to `consumer`, oldest first. Matches are decoded
+	 * one at a time, so memory use does not depend on the length of the history.
+	 * In journal mode only the transactions held in memory are searched, as for getTransactionsForUser().
+	 *
+	 * @param userId The ID of the user whose transactions are to be retrieved.
+	 * @param query The page to retrieve.
+	 * @param consumer Receives each matching transaction.
+	 * @return The sequence number to pass as afterSequence for the next page, or 0 if this was the last one.
+	 */
+	public long queryTransactions(String userId, TransactionQuery query, Consumer<Transaction> consumer) {
+		AccountEvents userTransactions = transactions.get(userId);
+		return userTransactions == null ? 0 : userTransactions.query(query, consumer);
+	}
+
+	/**
+	 * Returns the latest balance snapshot of a user, or null if none has been taken yet.
+	 */
+	public BalanceSnapshot getSnapshot(String userId) {
+		return snapshots.get(userId);
+	}
+
+	/**
+	 * Computes the current balance for a specified user based on their transactions, in the base
+	 * currency or, given an accountKey(), in another currency.
+	 * Starts from the user's latest snapshot and folds only the newer transactions.
+	 * Only approved transactions, holds and their releases affect the balance.
 	 *
 	 * @param userId The ID of the user whose balance is to be computed.
 	 * @return The computed balance as a BigDecimal.
 	 */
 	public BigDecimal computeBalance(String userId) {
-		BigDecimal balance = BigDecimal.ZERO;
-		List<Transaction> userTransactions = transactions.get(userId);
+		long start = System.nanoTime();
+		BalanceSnapshot snapshot = snapshots.get(userId);
+		BigDecimal balance = snapshot == null ? BigDecimal.ZERO : snapshot.getBalance();
+		int from = snapshot == null ? 0 : snapshot.getEventCount();
+		AccountEvents userTransactions = transactions.get(userId);
 
-		// Process each transaction to compute the balance.
 		if (userTransactions != null) {
-			for (Transaction transaction : userTransactions) {
-				if ("APPROVED".equals(transaction.getStatus())) {
-					BigDecimal amount = new BigDecimal(transaction.getTransactionAmount().getAmount());
-					// Add or subtract the transaction amount based on the type (CREDIT or DEBIT).
-					if (transaction.getTransactionAmount().getDebitOrCredit() == DebitCredit.CREDIT) {
-						balance = balance.add(amount);
-					} else if (transaction.getTransactionAmount().getDebitOrCredit() == DebitCredit.DEBIT) {
-						balance = balance.subtract(amount);
-					}
+			int size = userTransactions.size();
+			balance = balance.add(Amount.fromMinorUnits(userTransactions.balanceChange(from, size)));
+			LedgerMetrics.HISTORY_SIZE.record(size);
+		}
+		LedgerMetrics.COMPUTE_BALANCE.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		return balance;
+	}
+
+	/**
+	 * Computes the balance of a user as of a point in time, from the events recorded up to the
+	 * first one whose serverTime is later than `asOf`. Takes O(log n) in the length of the history.
+	 *
+	 * @param userId The ID of the user whose balance is to be computed.
+	 * @param asOf The point in time, in epoch milliseconds.
+	 * @return The balance, or null if the events before `asOf` are no longer held in memory
+	 *         because they were folded into a persisted snapshot before a restart.
+	 */
+	public BigDecimal balanceAsOf(String userId, long asOf) {
+		AccountEvents userTransactions = transactions.get(userId);
+		return userTransactions == null ? BigDecimal.ZERO : userTransactions.balanceAsOf(asOf);
+	}
+
+	/**
+	 * Returns the complete event history of each of the given users that has one, all currencies
+	 * together, oldest first.
+	 * In journal mode the history is read back from the journal, since events folded into a
+	 * persisted snapshot are no longer held in memory; this scans the whole journal once.
+	 */
+	Map<String, List<Transaction>> exportAccounts(Set<String> userIds) throws IOException {
+		Map<String, List<Transaction>> histories = new HashMap<>();
+		if (journal == null) {
+			for (String userId : userIds) {
+				List<Transaction> history = new ArrayList<>();
+				for (String key : accountKeys(userId)) {
+					history.addAll(getTransactionsForUser(key));
+				}
+				if (!history.isEmpty()) {
+					history.sort(Comparator.comparingLong(Transaction::getSequence));
+					histories.put(userId, history);
 				}
 			}
+			return histories;
+		}
+		journal.replay(1, transaction -> {
+			if (userIds.contains(transaction.getUserId()) && !isMovedOut(transaction)) {
+				histories.computeIfAbsent(transaction.getUserId(), k -> new ArrayList<>()).add(transaction);
+			}
+		});
+		return histories;
+	}
+
+	/**
+	 * Forgets a user's accounts, in every currency, as they move to another partition; their arena
+	 * records are not reclaimed.
+	 * In journal mode the move is
+	 * recorded next to the journal, so its events are not replayed again on startup; events
+	 * recorded for the account afterwards, e.g. when it moves back, are kept.
+	 */
+	void removeAccount(String userId) throws IOException {
+		appendLock.lock();
+		try {
+			if (journal != null) {
+				long seq = journal.lastSequence();
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+						journal.directory().resolve(MOVED_FILE), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC)))) {
+					out.writeUTF(userId);
+					out.writeLong(seq);
+				}
+				movedOut.put(userId, seq);
+			}
+			for (String key : accountKeys(userId)) {
+				transactions.remove(key);
+				snapshots.remove(key);
+			}
+			openHolds.remove(userId);
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	private boolean isMovedOut(Transaction transaction) {
+		Long movedAt = movedOut.get(transaction.getUserId());
+		return movedAt != null && transaction.getSequence() <= movedAt;
+	}
+
+	private void loadMovedOut(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			while (in.available() > 0) {
+				movedOut.put(in.readUTF(), in.readLong());
+			}
+		}
+		catch (EOFException e) {
+			// A record torn by a crash during the move; the move did not complete.
+		}
+	}
+
+	/**
+	 * Persists the balance of every account as of a watermark to the snapshot file next to the
+	 * journal, so that the next startup can skip replaying the events they cover.
+	 *
+	 * The snapshots only cover events up to the watermark, and the file is only written once
+	 * those events are durable, so it never covers an event a crash could take out of the
+	 * journal; the file itself is forced to disk before it replaces the previous one.
+	 */
+	public void persistSnapshots() throws IOException {
+		if (journal == null) {
+			return;
+		}
+
+		// Every event up to the watermark is cached by the time the lock is released,
+		// so accounts first seen after this point only have events above it.
+		long watermark;
+		List<Transaction> holds = new ArrayList<>();
+		appendLock.lock();
+		try {
+			watermark = journal.lastSequence();
+			forEachOpenHold(holds::add);
+		}
+		finally {
+			appendLock.unlock();
+		}
+		journal.awaitDurable(watermark);
+
+		List<Map.Entry<AccountEvents, BalanceSnapshot>> current = new ArrayList<>();
+		for (Map.Entry<String, AccountEvents> entry : transactions.entrySet()) {
+			AccountEvents userTransactions = entry.getValue();
+			// Sequence numbers grow along the list, so these are exactly the events up to the watermark.
+			int count = userTransactions.firstAfter(watermark);
+			BalanceSnapshot snapshot;
+			if (count == 0) {
+				// A snapshot restored on startup, if any, and no events since.
+				snapshot = snapshots.get(entry.getKey());
+				if (snapshot != null && snapshot.getSequence() > watermark) {
+					snapshot = null;
+				}
+			}
+			else {
+				int last = userTransactions.recordAt(count - 1);
+				snapshot = new BalanceSnapshot(userTransactions.balanceAfter(count), arena.sequence(last), count, arena.serverTime(last));
+			}
+			if (snapshot != null) {
+				current.add(new AbstractMap.SimpleImmutableEntry<>(userTransactions, snapshot));
+			}
+		}
+
+		Path path = journal.directory().resolve(SNAPSHOT_FILE);
+		Path tmp = path.resolveSibling(SNAPSHOT_FILE + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp.toFile());
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(watermark);
+			out.writeInt(current.size());
+			for (Map.Entry<AccountEvents, BalanceSnapshot> entry : current) {
+				out.writeUTF(entry.getKey().getUserId());
+				out.writeUTF(entry.getKey().getCurrency());
+				out.writeLong(entry.getValue().getSequence());
+				out.writeUTF(entry.getValue().getBalance().toString());
+				out.writeLong(entry.getValue().getServerTime());
+			}
+			out.writeInt(holds.size());
+			for (Transaction hold : holds) {
+				out.writeUTF(hold.getUserId());
+				out.writeUTF(hold.getMessageId());
+				out.writeUTF(hold.getTransactionAmount().getAmount());
+				out.writeUTF(hold.getTransactionAmount().getCurrency());
+				out.writeLong(hold.getServerTime());
+				out.writeLong(hold.getSequence());
+			}
+			out.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// Makes the rename itself durable.
+		try (FileChannel directory = FileChannel.open(journal.directory(), StandardOpenOption.READ)) {
+			directory.force(true);
+		}
+	}
+
+	/**
+	 * Persists the snapshots and closes the backing journal, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (journal != null) {
+			persistSnapshots();
+			journal.close();
+		}
+	}
+
+	/**
+	 * Folds the first `count` events of a user into a new snapshot, starting from the previous one.
+	 */
+	private BalanceSnapshot takeSnapshot(String userId, AccountEvents userTransactions, int count) {
+		return snapshots.compute(userId, (k, previous) -> {
+			int from = previous == null ? 0 : previous.getEventCount();
+			if (from >= count) {
+				return previous;
+			}
+			BigDecimal balance = previous == null ? BigDecimal.ZERO : previous.getBalance();
+			balance = balance.add(Amount.fromMinorUnits(userTransactions.balanceChange(from, count)));
+			int last = userTransactions.recordAt(count - 1);
+			return new BalanceSnapshot(balance, arena.sequence(last), count, arena.serverTime(last));
+		});
+	}
+
+	/**
+	 * Loads persisted snapshots and holds, and returns the sequence number replay has to start from.
+	 *
+	 * @param holdsWatermark Receives the sequence number up to which the loaded holds are complete.
+	 */
+	private long loadSnapshots(Path path, long[] holdsWatermark) throws IOException {
+		if (!Files.exists(path)) {
+			return 1;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Invalid snapshot file " + path);
+			}
+			long watermark = in.readLong();
+			long replayFrom = watermark + 1;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String userId = in.readUTF();
+				String currency = in.readUTF();
+				long snapshotSequence = in.readLong();
+				BigDecimal balance = new BigDecimal(in.readUTF());
+				long serverTime = in.readLong();
+				if (snapshotSequence <= movedOut.getOrDefault(userId, 0L)) {
+					continue;
+				}
+				String key = accountKey(userId, currency);
+				// Registers the currency, so accountKeys() finds the account before any of its events is replayed.
+				arena.currencyCode(currency);
+				snapshots.put(key, new BalanceSnapshot(balance, snapshotSequence, 0, serverTime));
+				transactions.put(key, new AccountEvents(userId, currency, arena, balance, serverTime));
+				replayFrom = Math.min(replayFrom, snapshotSequence + 1);
+			}
+			int holds = in.readInt();
+			for (int i = 0; i < holds; i++) {
+				String userId = in.readUTF();
+				String holdId = in.readUTF();
+				Amount amount = new Amount(in.readUTF(), in.readUTF(), DebitCredit.DEBIT);
+				Transaction hold = new Transaction(userId, holdId, amount, Transaction.STATUSES[Transaction.HELD], in.readLong(), in.readLong());
+				if (!isMovedOut(hold)) {
+					trackHold(userId, holdId, Transaction.HELD, arena.append(hold));
+				}
+			}
+			holdsWatermark[0] = watermark;
+			return replayFrom;
 		}
-		return balance;
 	}
 }
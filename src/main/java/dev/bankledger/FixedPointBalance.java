@@ -0,0 +1,67 @@
+package dev.bankledger;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free balance that keeps minor units (cents) in a single AtomicLong.
+ * Credits and debits are CAS loops, so they never block, never report the server as busy
+ * and allocate nothing. BigDecimal values are only created when the balance is read for a response.
+ */
+public class FixedPointBalance implements LedgerBalance {
+	private final AtomicLong minorUnits;
+	private final String currency;
+	private final DebitCredit debitOrCredit;
+
+	public FixedPointBalance() {
+		this(0, Amount.BASE_CURRENCY, DebitCredit.DEBIT);
+	}
+
+	public FixedPointBalance(long minorUnits, String currency, DebitCredit debitOrCredit) {
+		this.minorUnits = new AtomicLong(minorUnits);
+		this.currency = currency;
+		this.debitOrCredit = debitOrCredit;
+	}
+
+	@Override
+	public long credit(long amount) {
+		long current;
+		long updated;
+		do {
+			current = minorUnits.get();
+			updated = Math.addExact(current, amount);
+		} while (!minorUnits.compareAndSet(current, updated));
+		return updated;
+	}
+
+	@Override
+	public long debit(long amount) {
+		long current;
+		do {
+			current = minorUnits.get();
+			if (current < amount) {
+				return -1 - current;
+			}
+		} while (!minorUnits.compareAndSet(current, current - amount));
+		return current - amount;
+	}
+
+	public long getMinorUnits() {
+		return minorUnits.get();
+	}
+
+	@Override
+	public BigDecimal getBalance() {
+		return BigDecimal.valueOf(minorUnits.get(), 2);
+	}
+
+	@Override
+	public String getCurrency() {
+		return currency;
+	}
+
+	@Override
+	public DebitCredit getDebitOrCredit() {
+		return debitOrCredit;
+	}
+}
@@ -0,0 +1,104 @@
+package dev.bankledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The local, versioned exchange rate table. Each update publishes a new immutable FxRates
+ * snapshot with the next version number through a volatile field, so readers on the
+ * authorization path never lock. Every version is kept, so a conversion can be replayed with the
+ * rates it used; with a file the versions are also persisted and reloaded on startup.
+ *
+ * File: records of int version | int count | count of (UTF currency | UTF rate)
+ */
+public class FxRateTable {
+	private final Path file;
+	private final Map<Integer, FxRates> versions = new ConcurrentHashMap<>();
+	private volatile FxRates current;
+
+	/**
+	 * Creates an in-memory table holding only the base currency, as version 0.
+	 */
+	public FxRateTable() {
+		this.file = null;
+		this.current = new FxRates(0, Collections.emptyMap());
+		versions.put(0, current);
+	}
+
+	/**
+	 * Creates a table persisted to `file`, loading the versions already in it.
+	 */
+	public FxRateTable(Path file) throws IOException {
+		this.file = file;
+		this.current = new FxRates(0, Collections.emptyMap());
+		versions.put(0, current);
+		if (!Files.exists(file)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (in.available() > 0) {
+				int version = in.readInt();
+				int count = in.readInt();
+				Map<String, BigDecimal> rates = new HashMap<>();
+				for (int i = 0; i < count; i++) {
+					rates.put(in.readUTF(), new BigDecimal(in.readUTF()));
+				}
+				current = new FxRates(version, rates);
+				versions.put(version, current);
+			}
+		}
+		catch (EOFException e) {
+			// A version torn by a crash while it was written; it was never published.
+		}
+	}
+
+	/**
+	 * Returns the current rates.
+	 */
+	public FxRates current() {
+		return current;
+	}
+
+	/**
+	 * Returns the rates of an earlier version, or null if this node does not hold that version,
+	 * e.g. a replication follower.
+	 */
+	public FxRates version(int version) {
+		return versions.get(version);
+	}
+
+	/**
+	 * Replaces the whole table with `rates`, as the next version, and returns it.
+	 *
+	 * @throws IllegalArgumentException if a rate is not positive or too precise.
+	 */
+	public synchronized FxRates update(Map<String, BigDecimal> rates) throws IOException {
+		FxRates updated = new FxRates(current.getVersion() + 1, rates);
+		if (file != null) {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+					file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC)))) {
+				out.writeInt(updated.getVersion());
+				out.writeInt(rates.size());
+				for (Map.Entry<String, BigDecimal> entry : rates.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue().toPlainString());
+				}
+			}
+		}
+		versions.put(updated.getVersion(), updated);
+		current = updated;
+		return updated;
+	}
+}
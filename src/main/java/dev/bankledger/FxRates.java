@@ -0,0 +1,75 @@
+package dev.bankledger;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One immutable version of the exchange rate table: for each currency, the amount of the base
+ * currency one unit of it buys. Rates are kept as fixed-point longs with RATE_SCALE decimal
+ * places, so converting an amount is a map lookup and a multiplication, with no locks and no
+ * allocation. Every currency is assumed to have two decimal places, as amounts do.
+ */
+public final class FxRates {
+	static final int RATE_SCALE = 8;
+	private static final long RATE_ONE = 100_000_000L;
+	/** Returned by toBase() for a currency without a rate. */
+	static final long NO_RATE = -1;
+	/** Returned by toBase() when the converted amount does not fit in a long. */
+	static final long TOO_LARGE = -2;
+
+	private final int version;
+	private final HashMap<String, Long> rates;
+
+	/**
+	 * @param rates The rate of each currency, in the base currency.
+	 * @throws IllegalArgumentException if a rate is not positive or has more than RATE_SCALE decimal places.
+	 */
+	FxRates(int version, Map<String, BigDecimal> rates) {
+		this.version = version;
+		this.rates = new HashMap<>();
+		for (Map.Entry<String, BigDecimal> entry : rates.entrySet()) {
+			BigDecimal rate = entry.getValue();
+			if (rate.signum() <= 0 || rate.stripTrailingZeros().scale() > RATE_SCALE) {
+				throw new IllegalArgumentException("Invalid rate for " + entry.getKey() + ": " + rate.toPlainString());
+			}
+			this.rates.put(entry.getKey(), rate.movePointRight(RATE_SCALE).longValueExact());
+		}
+		this.rates.put(Amount.BASE_CURRENCY, RATE_ONE);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the rates by currency, base currency included.
+	 */
+	public Map<String, BigDecimal> getRates() {
+		Map<String, BigDecimal> decimal = new TreeMap<>();
+		for (Map.Entry<String, Long> entry : rates.entrySet()) {
+			decimal.put(entry.getKey(), BigDecimal.valueOf(entry.getValue(), RATE_SCALE).stripTrailingZeros());
+		}
+		return Collections.unmodifiableMap(decimal);
+	}
+
+	/**
+	 * Converts an amount into the base currency, rounding half up to the minor unit.
+	 *
+	 * @return The converted amount in minor units, or NO_RATE or TOO_LARGE.
+	 */
+	long toBase(String currency, long minorUnits) {
+		Long rate = rates.get(currency);
+		if (rate == null) {
+			return NO_RATE;
+		}
+		long product = minorUnits * rate;
+		// Overflow check without Math.multiplyExact, whose exception would allocate.
+		if (minorUnits != 0 && (product / minorUnits != rate || product > Long.MAX_VALUE - RATE_ONE / 2)) {
+			return TOO_LARGE;
+		}
+		return (product + RATE_ONE / 2) / RATE_ONE;
+	}
+}
@@ -0,0 +1,58 @@
+package dev.bankledger;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps user IDs to partitions by consistent hashing. Each partition is placed on the ring at
+ * `virtualNodes` points and owns the user IDs hashing up to each of them, so adding or removing
+ * a partition only moves the accounts of the ring segments it gains or loses. Immutable.
+ */
+public final class HashRing {
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	private static final HashFunction HASH = Hashing.murmur3_32();
+
+	private final List<String> partitions;
+	private final TreeMap<Integer, String> ring = new TreeMap<>();
+
+	/**
+	 * @param partitions The partitions, e.g. the base URLs of the ledger instances.
+	 */
+	public HashRing(List<String> partitions, int virtualNodes) {
+		if (partitions.isEmpty()) {
+			throw new IllegalArgumentException("A hash ring needs at least one partition");
+		}
+		this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+		for (String partition : partitions) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.putIfAbsent(hash(partition + "#" + i), partition);
+			}
+		}
+	}
+
+	public HashRing(List<String> partitions) {
+		this(partitions, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Returns the partition owning a user ID.
+	 */
+	public String owner(String userId) {
+		Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(userId));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	public List<String> getPartitions() {
+		return partitions;
+	}
+
+	private static int hash(String key) {
+		return HASH.hashString(key, StandardCharsets.UTF_8).asInt();
+	}
+}
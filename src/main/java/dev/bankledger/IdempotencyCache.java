@@ -0,0 +1,85 @@
+package dev.bankledger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the results of loads and authorizations by the client's Idempotency-Key, so a
+ * retried request gets the original response instead of being applied again.
+ *
+ * Entries hold the result as a future and are added before the operation runs, so a duplicate
+ * that arrives while the original is still in flight waits for its result rather than racing
+ * it. The cache is bounded in size and entries expire a fixed time after they were written.
+ * Operations that fail are forgotten, so they can be retried with the same key.
+ */
+public class IdempotencyCache {
+	public static final long DEFAULT_MAX_KEYS = 100_000;
+	public static final long DEFAULT_TTL_SECONDS = 24 * 60 * 60;
+	public static final int MAX_KEY_LENGTH = 255;
+
+	private final ConcurrentMap<String, Entry> entries;
+
+	/**
+	 * @param maxKeys The number of keys to remember; the least recently used are evicted first.
+	 * @param ttlSeconds How long a key is remembered after its first use.
+	 */
+	public IdempotencyCache(long maxKeys, long ttlSeconds) {
+		Cache<String, Entry> cache = CacheBuilder.newBuilder()
+				.maximumSize(maxKeys)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.concurrencyLevel(Runtime.getRuntime().availableProcessors())
+				.build();
+		this.entries = cache.asMap();
+	}
+
+	/**
+	 * Runs `operation` unless `key` was already used, in which case the result of the first
+	 * request with that key is returned.
+	 *
+	 * @param request What the request does, e.g. "load user1 10.00"; a key may only be reused for the same request.
+	 * @param operation Applies the request and returns its eventual result.
+	 * @throws IllegalArgumentException if the key was already used for a different request.
+	 */
+	public CompletableFuture<Object> execute(String key, String request, Callable<? extends CompletableFuture<?>> operation) throws Exception {
+		Entry entry = new Entry(request);
+		Entry existing = entries.putIfAbsent(key, entry);
+		if (existing != null) {
+			if (!existing.request.equals(request)) {
+				throw new IllegalArgumentException("Idempotency-Key was already used for a different request");
+			}
+			LedgerMetrics.IDEMPOTENT_REPLAYS.increment();
+			return existing.result;
+		}
+
+		try {
+			operation.call().whenComplete((result, error) -> {
+				if (error != null) {
+					entries.remove(key, entry);
+					entry.result.completeExceptionally(error);
+				}
+				else {
+					entry.result.complete(result);
+				}
+			});
+		}
+		catch (Exception e) {
+			entries.remove(key, entry);
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+		return entry.result;
+	}
+
+	private static final class Entry {
+		final String request;
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		Entry(String request) {
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package dev.bankledger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replicates to a follower in the same JVM by calling it directly, e.g. to run several nodes
+ * in one process for tests. Events are copied, so the nodes share no mutable state.
+ */
+public class InProcessReplicationTransport implements ReplicationTransport {
+	private final ReplicationFollower follower;
+	private final String name;
+
+	public InProcessReplicationTransport(ReplicationFollower follower, String name) {
+		this.follower = follower;
+		this.name = name;
+	}
+
+	@Override
+	public long replicate(List<Transaction> events) throws InterruptedException {
+		List<Transaction> copies = new ArrayList<>(events.size());
+		for (Transaction event : events) {
+			copies.add(new Transaction(event.getUserId(), event.getMessageId(), event.getTransactionAmount(),
+					event.getStatus(), event.getServerTime(), event.getSequence()));
+		}
+		return follower.apply(copies);
+	}
+
+	@Override
+	public String describe() {
+		return name;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release.
+	}
+}
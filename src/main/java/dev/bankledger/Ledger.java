@@ -0,0 +1,664 @@
+package dev.bankledger;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ledger state: account balances plus the event store that records every change to them.
+ * Loads and authorizations update the balance and append the matching event.
+ *
+ * Holds reserve funds for a later capture: the balance is the available balance, which a hold
+ * debits, and the ledger balance adds the outstanding holds back. A hold that is neither captured
+ * nor released expires after the hold TTL, tracked on a TimerWheel advanced by expireHolds().
+ *
+ * A user has a balance per currency, named by EventStore.accountKey(); holds and the
+ * single-currency methods use the base currency. An authorization in a currency the user holds
+ * debits that balance; otherwise it is converted into the base currency with the current
+ * FxRateTable version and debits the base balance, and its event records the amount as
+ * requested and the rate version, so the conversion can be replayed with verifyConversions().
+ *
+ * The methods here change balances on the calling thread. With a LedgerPipeline, callers submit
+ * writes to the pipeline instead, so each account only has one writer; hold expiries are then
+ * submitted to the pipeline as well.
+ */
+public class Ledger {
+	public static final long DEFAULT_HOLD_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+	static final long HOLD_EXPIRY_TICK_MILLIS = 1000;
+	private static final int HOLD_EXPIRY_BUCKETS = 4096;
+	private final EventStore eventStore;
+	private final BalanceEngine balanceEngine;
+	private final AuditLog auditLog;
+	private final long holdTtlMillis;
+	private final FxRateTable fxRates;
+	private static final String ZERO_BALANCE = "0.00";
+
+	private final ConcurrentHashMap<String, LedgerBalance> balances = new ConcurrentHashMap<>();
+	// Expiry timers of holds, as (userId, holdId).
+	private final TimerWheel<Map.Entry<String, String>> holdExpiry;
+	// Holds being captured, released or expired, as userId + " " + holdId.
+	private final Set<String> settlingHolds = ConcurrentHashMap.newKeySet();
+	private volatile boolean expiringHolds;
+	private volatile LedgerPipeline pipeline;
+	// The highest sequence of the expiries applied by the current expireHolds() call; only touched by its thread.
+	private long expirySequence;
+
+	/**
+	 * Creates a ledger over the given event store, rebuilding every account balance from its event history.
+	 */
+	public Ledger(EventStore eventStore, BalanceEngine balanceEngine) {
+		this(eventStore, balanceEngine, null);
+	}
+
+	/**
+	 * Creates a ledger that also records every load, authorization and balance check in an audit log.
+	 *
+	 * @param auditLog The audit log, or null to not audit.
+	 */
+	public Ledger(EventStore eventStore, BalanceEngine balanceEngine, AuditLog auditLog) {
+		this(eventStore, balanceEngine, auditLog, DEFAULT_HOLD_TTL_MILLIS);
+	}
+
+	/**
+	 * Same as Ledger(eventStore, balanceEngine, auditLog), expiring holds `holdTtlMillis` after they were placed.
+	 */
+	public Ledger(EventStore eventStore, BalanceEngine balanceEngine, AuditLog auditLog, long holdTtlMillis) {
+		this(eventStore, balanceEngine, auditLog, holdTtlMillis, new FxRateTable());
+	}
+
+	/**
+	 * Same as Ledger(eventStore, balanceEngine, auditLog, holdTtlMillis), converting cross-currency
+	 * authorizations with the rates in `fxRates`.
+	 */
+	public Ledger(EventStore eventStore, BalanceEngine balanceEngine, AuditLog auditLog, long holdTtlMillis, FxRateTable fxRates) {
+		this.eventStore = eventStore;
+		this.balanceEngine = balanceEngine;
+		this.auditLog = auditLog;
+		this.holdTtlMillis = holdTtlMillis;
+		this.fxRates = fxRates;
+		this.holdExpiry = new TimerWheel<>(HOLD_EXPIRY_TICK_MILLIS, HOLD_EXPIRY_BUCKETS, System.currentTimeMillis(), this::expireHold);
+		for (String key : eventStore.getAccountKeys()) {
+			balances.put(key, balanceEngine.create(Amount.toMinorUnits(eventStore.computeBalance(key)), eventStore.currencyOf(key)));
+		}
+	}
+
+	public EventStore getEventStore() {
+		return eventStore;
+	}
+
+	public FxRateTable getFxRates() {
+		return fxRates;
+	}
+
+	public ConcurrentHashMap<String, LedgerBalance> getBalances() {
+		return balances;
+	}
+
+	/**
+	 * Returns the balance of a user, creating an empty one if the user is new.
+	 */
+	public LedgerBalance balanceOf(String userId) {
+		return balances.computeIfAbsent(userId, k -> balanceEngine.create(0));
+	}
+
+	/**
+	 * Returns the balance of a user in `currency`, creating an empty one if it is new.
+	 */
+	public LedgerBalance balanceOf(String userId, String currency) {
+		return balances.computeIfAbsent(EventStore.accountKey(userId, currency), k -> balanceEngine.create(0, currency));
+	}
+
+	/**
+	 * Returns the balance of a user, or of another account given an EventStore.accountKey(),
+	 * or null if there is none yet. Unlike balanceOf(), this never creates an account.
+	 */
+	public LedgerBalance findBalance(String userId) {
+		return balances.get(userId);
+	}
+
+	/**
+	 * Returns the current balance of a user for a balance check, recording the check in the audit log.
+	 * Reads one volatile snapshot of the balance without locking, and answers unknown users with a
+	 * zero balance without creating an account for them.
+	 */
+	public BalanceResponse checkBalance(String userId) {
+		return checkBalance(userId, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as checkBalance(userId) for the user's balance in `currency`.
+	 */
+	public BalanceResponse checkBalance(String userId, String currency) {
+		LedgerBalance balance = balances.get(EventStore.accountKey(userId, currency));
+		if (balance == null) {
+			if (auditLog != null) {
+				auditLog.balance(userId, 0);
+			}
+			return new BalanceResponse(userId, ZERO_BALANCE, currency);
+		}
+		BigDecimal current = balance.getBalance();
+		if (auditLog != null) {
+			auditLog.balance(userId, Amount.toMinorUnits(current));
+		}
+		// Holds are placed in the base currency only.
+		long held = Amount.BASE_CURRENCY.equals(currency) ? eventStore.heldMinorUnits(userId) : 0;
+		return new BalanceResponse(userId, current.toString(), balance.getCurrency(),
+				held == 0 ? current.toString() : current.add(Amount.fromMinorUnits(held)).toString());
+	}
+
+	/**
+	 * Same as checkBalance() but returns the balance in minor units instead of a response.
+	 */
+	long checkBalanceMinorUnits(String userId) {
+		LedgerBalance balance = balances.get(userId);
+		long current = balance == null ? 0 : Amount.toMinorUnits(balance.getBalance());
+		if (auditLog != null) {
+			auditLog.balance(userId, current);
+		}
+		return current;
+	}
+
+	/**
+	 * Credits a user's account and records the load. Returns once the event is durable.
+	 *
+	 * @param userId The user to credit.
+	 * @param amount The amount as given by the client.
+	 * @param amountMinorUnits The same amount in minor units.
+	 */
+	public LoadResponse load(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		return load(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as load(userId, amount, amountMinorUnits), crediting the user's balance in `currency`.
+	 */
+	public LoadResponse load(String userId, String amount, long amountMinorUnits, String currency) throws InterruptedException {
+		LoadResponse response = applyLoad(userId, amount, amountMinorUnits, currency);
+		awaitDurable(response.sequence());
+		return response;
+	}
+
+	/**
+	 * Debits a user's account if the balance covers the amount and records the approved or
+	 * denied authorization. Returns once the event is durable.
+	 *
+	 * @param userId The user to debit.
+	 * @param amount The amount as given by the client.
+	 * @param amountMinorUnits The same amount in minor units.
+	 */
+	public AuthorizationResponse authorize(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		return authorize(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as authorize(userId, amount, amountMinorUnits) for an amount in `currency`, debiting
+	 * the user's balance in that currency or, if the user has none, the base balance after conversion.
+	 *
+	 * @throws IllegalArgumentException if the amount has to be converted and there is no rate for
+	 *         `currency` or the converted amount is too large.
+	 */
+	public AuthorizationResponse authorize(String userId, String amount, long amountMinorUnits, String currency) throws InterruptedException {
+		AuthorizationResponse response = applyAuthorization(userId, amount, amountMinorUnits, currency);
+		awaitDurable(response.sequence());
+		return response;
+	}
+
+	/**
+	 * Same as load() but does not wait for the event to become durable; callers batching
+	 * several operations call awaitDurable() once afterwards, with the highest sequence() of their responses.
+	 */
+	public LoadResponse applyLoad(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		return applyLoad(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as load(userId, amount, amountMinorUnits, currency) but does not wait for the event to become durable.
+	 */
+	public LoadResponse applyLoad(String userId, String amount, long amountMinorUnits, String currency) throws InterruptedException {
+		long newBalance = balanceOf(userId, currency).credit(amountMinorUnits);
+
+		Transaction transaction = new Transaction(
+			userId,
+			new Amount(amount, currency, DebitCredit.CREDIT),
+			"APPROVED"
+		);
+		long sequence = record(transaction);
+		if (auditLog != null) {
+			auditLog.load(userId, transaction.getMessageId(), amountMinorUnits, newBalance);
+		}
+
+		return new LoadResponse(userId, transaction.getMessageId(), new Amount(Amount.formatMinorUnits(newBalance), currency, DebitCredit.CREDIT),
+				newBalance, sequence);
+	}
+
+	/**
+	 * Same as authorize() but does not wait for the event to become durable; callers batching
+	 * several operations call awaitDurable() once afterwards, with the highest sequence() of their responses.
+	 */
+	public AuthorizationResponse applyAuthorization(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		return applyAuthorization(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as authorize(userId, amount, amountMinorUnits, currency) but does not wait for the event to become durable.
+	 */
+	public AuthorizationResponse applyAuthorization(String userId, String amount, long amountMinorUnits, String currency) throws InterruptedException {
+		LedgerBalance balance = Amount.BASE_CURRENCY.equals(currency) ? balanceOf(userId) : balances.get(EventStore.accountKey(userId, currency));
+		FxRates rates = null;
+		long debitMinorUnits = amountMinorUnits;
+		if (balance == null) {
+			// The user holds no such currency: convert into the base currency. One volatile read and no locks.
+			rates = fxRates.current();
+			debitMinorUnits = rates.toBase(currency, amountMinorUnits);
+			if (debitMinorUnits == FxRates.NO_RATE) {
+				throw new IllegalArgumentException("No exchange rate for " + currency);
+			}
+			if (debitMinorUnits == FxRates.TOO_LARGE) {
+				throw new IllegalArgumentException(AmountParser.TOO_LARGE_MESSAGE);
+			}
+			balance = balanceOf(userId);
+		}
+		long result = balance.debit(debitMinorUnits);
+		boolean approved = LedgerBalance.approved(result);
+		(approved ? LedgerMetrics.AUTHORIZATIONS_APPROVED : LedgerMetrics.AUTHORIZATIONS_DENIED).increment();
+		String status = approved ? "APPROVED" : "DENIED";
+
+		Transaction transaction;
+		if (rates == null) {
+			transaction = new Transaction(
+				userId,
+				new Amount(amount, currency, DebitCredit.DEBIT),
+				status
+			);
+		}
+		else {
+			transaction = new Transaction(userId, new Amount(Amount.formatMinorUnits(debitMinorUnits), Amount.BASE_CURRENCY, DebitCredit.DEBIT), status)
+					.recordConversion(new Amount(amount, currency, DebitCredit.DEBIT), rates.getVersion());
+		}
+		long sequence = record(transaction);
+		long resultingBalance = LedgerBalance.resultingBalance(result);
+		if (auditLog != null) {
+			auditLog.authorization(userId, transaction.getMessageId(), status, debitMinorUnits, resultingBalance);
+		}
+
+		return new AuthorizationResponse(userId, transaction.getMessageId(), status,
+				new Amount(Amount.formatMinorUnits(resultingBalance), balance.getCurrency(), DebitCredit.DEBIT), resultingBalance, sequence);
+	}
+
+	/**
+	 * Replays the conversions of a user's authorizations held in memory with the rate versions
+	 * they recorded, skipping versions this node does not hold, e.g. on a replication follower.
+	 *
+	 * @return The number of converted authorizations whose recorded amount differs from the replay.
+	 */
+	public int verifyConversions(String userId) {
+		int mismatches = 0;
+		for (Transaction transaction : eventStore.getTransactionsForUser(userId)) {
+			Amount source = transaction.getSourceAmount();
+			FxRates rates = source == null ? null : fxRates.version(transaction.getFxRateVersion());
+			if (rates != null && rates.toBase(source.getCurrency(), AmountParser.parse(source.getAmount()))
+					!= AmountParser.parse(transaction.getTransactionAmount().getAmount())) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Places a hold: debits the available balance if it covers the amount and records a HELD
+	 * event, whose message ID identifies the hold, or a DENIED event if it does not. Returns once
+	 * the event is durable.
+	 *
+	 * @param userId The user to place the hold on.
+	 * @param amount The amount as given by the client.
+	 * @param amountMinorUnits The same amount in minor units.
+	 */
+	public HoldResponse hold(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		HoldResponse response = applyHold(userId, amount, amountMinorUnits);
+		awaitDurable(response.sequence());
+		return response;
+	}
+
+	/**
+	 * Same as hold() but does not wait for the event to become durable.
+	 */
+	HoldResponse applyHold(String userId, String amount, long amountMinorUnits) throws InterruptedException {
+		LedgerBalance balance = balanceOf(userId);
+		long result = balance.debit(amountMinorUnits);
+		boolean approved = LedgerBalance.approved(result);
+		String status = approved ? Transaction.STATUSES[Transaction.HELD] : "DENIED";
+
+		Transaction transaction = new Transaction(userId, new Amount(amount, Amount.BASE_CURRENCY, DebitCredit.DEBIT), status);
+		long sequence = eventStore.append(transaction);
+		long available = LedgerBalance.resultingBalance(result);
+		if (auditLog != null) {
+			auditLog.authorization(userId, transaction.getMessageId(), status, amountMinorUnits, available);
+		}
+		long expiresAt = approved ? transaction.getServerTime() + holdTtlMillis : 0;
+		if (approved && expiringHolds) {
+			holdExpiry.schedule(new AbstractMap.SimpleImmutableEntry<>(userId, transaction.getMessageId()), expiresAt);
+		}
+		return holdResponse(userId, transaction.getMessageId(), status, amountMinorUnits, available, expiresAt, sequence);
+	}
+
+	/**
+	 * Captures an outstanding hold: records a CAPTURED event for the captured amount, which leaves
+	 * the available balance as the hold left it, and releases the rest of the hold. Returns once
+	 * the events are durable.
+	 *
+	 * @param amountMinorUnits The amount to capture, in minor units, or -1 to capture the whole hold.
+	 * @return The capture, or null if the user has no outstanding hold with that ID.
+	 * @throws IllegalArgumentException if the amount exceeds the hold.
+	 * @throws IllegalStateException if the hold is being settled by another request.
+	 */
+	public HoldResponse capture(String userId, String holdId, long amountMinorUnits) throws InterruptedException {
+		HoldResponse response = applyCapture(userId, holdId, amountMinorUnits);
+		if (response != null) {
+			awaitDurable(response.sequence());
+		}
+		return response;
+	}
+
+	/**
+	 * Same as capture() but does not wait for the events to become durable.
+	 */
+	HoldResponse applyCapture(String userId, String holdId, long amountMinorUnits) throws InterruptedException {
+		return settle(userId, holdId, Transaction.CAPTURED, amountMinorUnits);
+	}
+
+	/**
+	 * Releases an outstanding hold, returning its funds to the available balance, and records a
+	 * RELEASED event. Returns once the event is durable.
+	 *
+	 * @return The release, or null if the user has no outstanding hold with that ID.
+	 * @throws IllegalStateException if the hold is being settled by another request.
+	 */
+	public HoldResponse release(String userId, String holdId) throws InterruptedException {
+		HoldResponse response = applyRelease(userId, holdId);
+		if (response != null) {
+			awaitDurable(response.sequence());
+		}
+		return response;
+	}
+
+	/**
+	 * Same as release() but does not wait for the event to become durable.
+	 */
+	HoldResponse applyRelease(String userId, String holdId) throws InterruptedException {
+		return settle(userId, holdId, Transaction.RELEASED, 0);
+	}
+
+	/**
+	 * Expires an outstanding hold with an EXPIRED event, without waiting for it to become durable.
+	 *
+	 * @return The expiry, or null if the user has no outstanding hold with that ID.
+	 */
+	HoldResponse applyExpiry(String userId, String holdId) throws InterruptedException {
+		HoldResponse response = settle(userId, holdId, Transaction.EXPIRED, 0);
+		if (response != null) {
+			LedgerMetrics.HOLDS_EXPIRED.increment();
+		}
+		return response;
+	}
+
+	/**
+	 * Submits hold expiries to `pipeline` from now on, so they run on the account's writer thread;
+	 * null expires them on the thread calling expireHolds() again.
+	 */
+	void attachPipeline(LedgerPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	LedgerPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Starts tracking the expiry of every outstanding hold, including holds recovered from the
+	 * event store, and of every hold placed or replicated here from now on. The holds expire as
+	 * expireHolds() is called. Not called on a replication follower, which receives the
+	 * leader's expiries instead.
+	 */
+	public void startHoldExpiry() {
+		expiringHolds = true;
+		eventStore.forEachOpenHold(hold -> holdExpiry.schedule(
+				new AbstractMap.SimpleImmutableEntry<>(hold.getUserId(), hold.getMessageId()), hold.getServerTime() + holdTtlMillis));
+	}
+
+	/**
+	 * Expires the holds whose TTL ended by `nowMillis`, returning their funds and recording an
+	 * EXPIRED event for each, and waits for those events to be durable. Called from one thread,
+	 * about once per HOLD_EXPIRY_TICK_MILLIS. With a pipeline attached the expiries are only submitted to it.
+	 */
+	public void expireHolds(long nowMillis) {
+		expirySequence = 0;
+		holdExpiry.advance(nowMillis);
+		if (expirySequence > 0) {
+			awaitDurable(expirySequence);
+		}
+	}
+
+	private void expireHold(Map.Entry<String, String> hold) {
+		LedgerPipeline submitTo = pipeline;
+		if (submitTo != null) {
+			// A failed expiry, e.g. on a full ring buffer, leaves the hold open until the next tick.
+			submitTo.expire(hold.getKey(), hold.getValue()).whenComplete((response, error) -> {
+				if (error != null) {
+					holdExpiry.schedule(hold, System.currentTimeMillis());
+				}
+			});
+			return;
+		}
+		try {
+			HoldResponse response = applyExpiry(hold.getKey(), hold.getValue());
+			if (response != null) {
+				expirySequence = Math.max(expirySequence, response.sequence());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			holdExpiry.schedule(hold, System.currentTimeMillis());
+		}
+		catch (RuntimeException e) {
+			// The balance was busy or the hold is being captured or released; a failed settlement leaves it open.
+			holdExpiry.schedule(hold, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Closes an outstanding hold with a CAPTURED, RELEASED or EXPIRED event, returning the funds
+	 * not captured to the available balance with a RELEASED or EXPIRED event.
+	 *
+	 * @param captureMinorUnits The amount to capture, or -1 for the whole hold. Ignored unless capturing.
+	 */
+	private HoldResponse settle(String userId, String holdId, int status, long captureMinorUnits) throws InterruptedException {
+		String key = userId + " " + holdId;
+		if (!settlingHolds.add(key)) {
+			throw new IllegalStateException("Hold " + holdId + " is already being settled");
+		}
+		try {
+			// Checked after claiming it: a settlement that finished first has closed it by now.
+			Transaction hold = eventStore.getOpenHold(userId, holdId);
+			if (hold == null) {
+				return null;
+			}
+			long held = AmountParser.parse(hold.getTransactionAmount().getAmount());
+			long captured = status != Transaction.CAPTURED ? 0 : captureMinorUnits < 0 ? held : captureMinorUnits;
+			if (captured > held) {
+				throw new IllegalArgumentException("Capture amount exceeds the hold of " + hold.getTransactionAmount().getAmount());
+			}
+			long returned = held - captured;
+			LedgerBalance balance = balanceOf(userId);
+			long available = returned > 0 ? balance.credit(returned) : Amount.toMinorUnits(balance.getBalance());
+
+			long now = System.currentTimeMillis();
+			List<Transaction> events = new ArrayList<>(2);
+			if (status == Transaction.CAPTURED) {
+				events.add(new Transaction(userId, holdId, new Amount(Amount.formatMinorUnits(captured), Amount.BASE_CURRENCY, DebitCredit.DEBIT),
+						Transaction.STATUSES[Transaction.CAPTURED], now, 0));
+			}
+			if (returned > 0) {
+				int returnStatus = status == Transaction.EXPIRED ? Transaction.EXPIRED : Transaction.RELEASED;
+				events.add(new Transaction(userId, holdId, new Amount(Amount.formatMinorUnits(returned), Amount.BASE_CURRENCY, DebitCredit.CREDIT),
+						Transaction.STATUSES[returnStatus], now, 0));
+			}
+			long sequence = eventStore.appendAll(events);
+			if (auditLog != null) {
+				for (Transaction event : events) {
+					auditLog.authorization(userId, holdId, event.getStatus(),
+							AmountParser.parse(event.getTransactionAmount().getAmount()), available);
+				}
+			}
+			return holdResponse(userId, holdId, Transaction.STATUSES[status], status == Transaction.CAPTURED ? captured : returned, available, 0, sequence);
+		}
+		finally {
+			settlingHolds.remove(key);
+		}
+	}
+
+	private HoldResponse holdResponse(String userId, String holdId, String status, long amountMinorUnits, long available, long expiresAt, long sequence) {
+		long ledgerBalance = available + eventStore.heldMinorUnits(userId);
+		return new HoldResponse(userId, holdId, status,
+				new Amount(Amount.formatMinorUnits(amountMinorUnits), Amount.BASE_CURRENCY, DebitCredit.DEBIT),
+				new Amount(Amount.formatMinorUnits(available), Amount.BASE_CURRENCY, DebitCredit.DEBIT),
+				new Amount(Amount.formatMinorUnits(ledgerBalance), Amount.BASE_CURRENCY, DebitCredit.DEBIT), expiresAt, sequence);
+	}
+
+	/**
+	 * Applies an event recorded by another node, the replication leader or the partition an
+	 * account moved from: changes the balance as that node did and appends the event with its
+	 * message ID and server time. Not audited, since that node audited the request.
+	 *
+	 * @return The sequence number the event was appended with here.
+	 * @throws IllegalStateException if an approved authorization or a hold exceeds this node's balance.
+	 */
+	long applyReplicated(Transaction transaction) throws InterruptedException {
+		int status = Transaction.statusCode(transaction.getStatus());
+		if (Transaction.changesBalance(status)) {
+			Amount amount = transaction.getTransactionAmount();
+			long amountMinorUnits = AmountParser.parse(amount.getAmount());
+			LedgerBalance balance = balanceOf(transaction.getUserId(), amount.getCurrency());
+			if (amount.getDebitOrCredit() == DebitCredit.CREDIT) {
+				balance.credit(amountMinorUnits);
+			}
+			else if (!LedgerBalance.approved(balance.debit(amountMinorUnits))) {
+				throw new IllegalStateException("Replicated authorization " + transaction.getMessageId() + " exceeds the balance");
+			}
+		}
+		long sequence = eventStore.append(transaction);
+		if (status == Transaction.HELD && expiringHolds) {
+			holdExpiry.schedule(new AbstractMap.SimpleImmutableEntry<>(transaction.getUserId(), transaction.getMessageId()),
+					transaction.getServerTime() + holdTtlMillis);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Undoes the balance change of an event that could not be appended, so the balance matches
+	 * the recorded events again.
+	 *
+	 * @return false if a load could not be taken back, because its funds were already spent or
+	 *         the balance stayed busy.
+	 */
+	private boolean revertUnrecorded(Transaction transaction) throws InterruptedException {
+		if (!Transaction.changesBalance(Transaction.statusCode(transaction.getStatus()))) {
+			return true;
+		}
+		Amount amount = transaction.getTransactionAmount();
+		long amountMinorUnits = AmountParser.parse(amount.getAmount());
+		LedgerBalance balance = balanceOf(transaction.getUserId(), amount.getCurrency());
+		try {
+			if (amount.getDebitOrCredit() == DebitCredit.DEBIT) {
+				balance.credit(amountMinorUnits);
+				return true;
+			}
+			return LedgerBalance.approved(balance.debit(amountMinorUnits));
+		}
+		catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Takes over accounts moved from another partition by applying their event histories, and
+	 * waits for the events to be durable. Events already recorded here for the same accounts,
+	 * e.g. writes routed here before the move finished, are kept, and events with a message ID
+	 * and status already recorded for the account, e.g. from a repeated transfer, are skipped.
+	 * The status is part of the key because all events of a hold share its message ID.
+	 */
+	public void importAccounts(List<Transaction> events) throws InterruptedException {
+		Map<String, Set<String>> recorded = new HashMap<>();
+		long sequence = 0;
+		for (Transaction event : events) {
+			Set<String> keys = recorded.computeIfAbsent(event.getUserId(), userId -> {
+				Set<String> ids = new HashSet<>();
+				for (String key : eventStore.accountKeys(userId)) {
+					for (Transaction existing : eventStore.getTransactionsForUser(key)) {
+						ids.add(existing.getMessageId() + " " + existing.getStatus());
+					}
+				}
+				return ids;
+			});
+			if (keys.add(event.getMessageId() + " " + event.getStatus())) {
+				sequence = applyReplicated(event);
+			}
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Forgets a user's accounts, in every currency, as they move to another partition.
+	 */
+	public void removeAccount(String userId) throws IOException {
+		Set<String> keys = eventStore.accountKeys(userId);
+		eventStore.removeAccount(userId);
+		balances.remove(userId);
+		for (String key : keys) {
+			balances.remove(key);
+		}
+	}
+
+	/**
+	 * Appends the event of a balance change just applied and returns its sequence number. If the
+	 * append fails, the change is undone before the failure is rethrown; a change that cannot be
+	 * undone is counted in the bankledger.balance.unrecorded metric.
+	 */
+	private long record(Transaction transaction) {
+		try {
+			return eventStore.append(transaction);
+		}
+		catch (RuntimeException e) {
+			boolean reverted;
+			try {
+				reverted = revertUnrecorded(transaction);
+			}
+			catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+				reverted = false;
+			}
+			if (!reverted) {
+				LedgerMetrics.UNRECORDED_BALANCE_CHANGES.increment();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until the event with the given sequence number, and every one before it, is durable.
+	 * Callers pass the highest sequence() of the responses they wait for, not the store's latest,
+	 * so they do not also wait for events other threads appended after theirs.
+	 */
+	public void awaitDurable(long sequence) {
+		if (sequence > 0) {
+			eventStore.awaitDurable(sequence);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package dev.bankledger;
+
+import java.math.BigDecimal;
+
+/**
+ * A user's account balance, updated in minor units (cents).
+ * Implementations must make debit() an atomic check-and-debit.
+ */
+public interface LedgerBalance {
+
+	/**
+	 * Credits the account.
+	 *
+	 * @param minorUnits The amount to add, in minor units.
+	 * @return The balance after the credit, in minor units. A hot Balance returns an estimate; see Balance.credit().
+	 */
+	long credit(long minorUnits) throws InterruptedException;
+
+	/**
+	 * Debits the account if the balance covers the amount; otherwise leaves it unchanged.
+	 * Use approved() and resultingBalance() to interpret the result.
+	 *
+	 * @param minorUnits The amount to remove, in minor units.
+	 * @return The new balance if the debit was approved, or -1 - balance if it was denied.
+	 */
+	long debit(long minorUnits) throws InterruptedException;
+
+	BigDecimal getBalance();
+
+	String getCurrency();
+
+	DebitCredit getDebitOrCredit();
+
+	/**
+	 * Returns whether a result of debit() means the debit was applied.
+	 */
+	static boolean approved(long debitResult) {
+		return debitResult >= 0;
+	}
+
+	/**
+	 * Returns the balance, in minor units, after a call to debit().
+	 */
+	static long resultingBalance(long debitResult) {
+		return debitResult >= 0 ? debitResult : -1 - debitResult;
+	}
+}
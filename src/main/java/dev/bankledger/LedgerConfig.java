@@ -0,0 +1,172 @@
+package dev.bankledger;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime settings for the ledger server.
+ * Values are read from system properties, e.g. -Dbankledger.journal.dir=/var/lib/ledger.
+ */
+public class LedgerConfig {
+	public final int port;
+	public final Path journalDir;
+	public final int journalSegmentSize;
+	public final boolean journalFsync;
+	public final int snapshotInterval;
+	public final int snapshotPersistSeconds;
+	public final BalanceEngine balanceEngine;
+	public final int pipelineShards;
+	public final int pipelineRingSize;
+	public final Path auditDir;
+	public final int auditBufferSize;
+	public final AuditLog.OverflowPolicy auditOverflow;
+	public final long auditMaxFileSize;
+	public final int auditMaxFiles;
+	public final int verifyParallelism;
+	public final long idempotencyMaxKeys;
+	public final long idempotencyTtlSeconds;
+	public final String binaryHost;
+	public final int binaryPort;
+	public final int binaryEventLoops;
+	public final List<InetSocketAddress> replicationFollowers;
+	public final int replicationQuorum;
+	public final long replicationTimeoutMillis;
+	public final int replicationPort;
+	public final String partitionSelf;
+	public final List<String> partitions;
+	public final long holdTtlSeconds;
+	public final int changeFeedRingSize;
+	public final int changeFeedBufferSize;
+	public final double admissionClientRate;
+	public final double admissionAccountRate;
+	public final int admissionMaxConcurrency;
+	public final long admissionLatencyTargetMillis;
+
+	public LedgerConfig(int port, Path journalDir, int journalSegmentSize, boolean journalFsync,
+			int snapshotInterval, int snapshotPersistSeconds, BalanceEngine balanceEngine,
+			int pipelineShards, int pipelineRingSize, Path auditDir, int auditBufferSize,
+			AuditLog.OverflowPolicy auditOverflow, long auditMaxFileSize, int auditMaxFiles, int verifyParallelism,
+			long idempotencyMaxKeys, long idempotencyTtlSeconds, String binaryHost, int binaryPort, int binaryEventLoops,
+			List<InetSocketAddress> replicationFollowers, int replicationQuorum, long replicationTimeoutMillis, int replicationPort,
+			String partitionSelf, List<String> partitions, long holdTtlSeconds, int changeFeedRingSize, int changeFeedBufferSize,
+			double admissionClientRate, double admissionAccountRate, int admissionMaxConcurrency, long admissionLatencyTargetMillis) {
+		this.port = port;
+		this.journalDir = journalDir;
+		this.journalSegmentSize = journalSegmentSize;
+		this.journalFsync = journalFsync;
+		this.snapshotInterval = snapshotInterval;
+		this.snapshotPersistSeconds = snapshotPersistSeconds;
+		this.balanceEngine = balanceEngine;
+		this.pipelineShards = pipelineShards;
+		this.pipelineRingSize = pipelineRingSize;
+		this.auditDir = auditDir;
+		this.auditBufferSize = auditBufferSize;
+		this.auditOverflow = auditOverflow;
+		this.auditMaxFileSize = auditMaxFileSize;
+		this.auditMaxFiles = auditMaxFiles;
+		this.verifyParallelism = verifyParallelism;
+		this.idempotencyMaxKeys = idempotencyMaxKeys;
+		this.idempotencyTtlSeconds = idempotencyTtlSeconds;
+		this.binaryHost = binaryHost;
+		this.binaryPort = binaryPort;
+		this.binaryEventLoops = binaryEventLoops;
+		this.replicationFollowers = replicationFollowers;
+		this.replicationQuorum = replicationQuorum;
+		this.replicationTimeoutMillis = replicationTimeoutMillis;
+		this.replicationPort = replicationPort;
+		this.partitionSelf = partitionSelf;
+		this.partitions = partitions;
+		this.holdTtlSeconds = holdTtlSeconds;
+		this.changeFeedRingSize = changeFeedRingSize;
+		this.changeFeedBufferSize = changeFeedBufferSize;
+		this.admissionClientRate = admissionClientRate;
+		this.admissionAccountRate = admissionAccountRate;
+		this.admissionMaxConcurrency = admissionMaxConcurrency;
+		this.admissionLatencyTargetMillis = admissionLatencyTargetMillis;
+	}
+
+	/**
+	 * Builds a configuration from the bankledger.* system properties, falling back to defaults.
+	 * Without bankledger.journal.dir the ledger runs purely in memory, and without
+	 * bankledger.pipeline.shards loads and authorizations run directly on the request threads.
+	 * Without bankledger.audit.dir nothing is audited, and without bankledger.binary.port the
+	 * binary protocol is not served; it listens on bankledger.binary.host, loopback by default. With bankledger.replication.followers (host:port,...) the
+	 * node leads replication to those followers; with bankledger.replication.port it is a
+	 * read-only follower listening on that port. With bankledger.partition.self (this instance's
+	 * base URL) and bankledger.partition.nodes (every instance's base URL) accounts are partitioned
+	 * across the instances. Holds not captured or released expire after bankledger.holds.ttlSeconds.
+	 * The change feed keeps the latest bankledger.cdc.ringSize events for its subscribers.
+	 * Requests are only rate limited and shed with bankledger.admission.clientRate,
+	 * bankledger.admission.accountRate or bankledger.admission.maxConcurrency.
+	 */
+	public static LedgerConfig fromSystemProperties() {
+		String journalDir = System.getProperty("bankledger.journal.dir");
+		String auditDir = System.getProperty("bankledger.audit.dir");
+		return new LedgerConfig(
+				Integer.getInteger("bankledger.port", 7000),
+				journalDir == null || journalDir.trim().isEmpty() ? null : Paths.get(journalDir),
+				Integer.getInteger("bankledger.journal.segmentSize", EventJournal.DEFAULT_SEGMENT_SIZE),
+				Boolean.parseBoolean(System.getProperty("bankledger.journal.fsync", "true")),
+				Integer.getInteger("bankledger.snapshot.interval", EventStore.DEFAULT_SNAPSHOT_INTERVAL),
+				Integer.getInteger("bankledger.snapshot.persistSeconds", 60),
+				BalanceEngine.fromName(System.getProperty("bankledger.balance.engine", "locking")),
+				Integer.getInteger("bankledger.pipeline.shards", 0),
+				Integer.getInteger("bankledger.pipeline.ringSize", LedgerPipeline.DEFAULT_RING_SIZE),
+				auditDir == null || auditDir.trim().isEmpty() ? null : Paths.get(auditDir),
+				Integer.getInteger("bankledger.audit.bufferSize", AuditLog.DEFAULT_BUFFER_SIZE),
+				AuditLog.OverflowPolicy.fromName(System.getProperty("bankledger.audit.overflow", "drop")),
+				Long.getLong("bankledger.audit.maxFileSize", AuditLog.DEFAULT_MAX_FILE_SIZE),
+				Integer.getInteger("bankledger.audit.maxFiles", AuditLog.DEFAULT_MAX_FILES),
+				Integer.getInteger("bankledger.verify.parallelism", LedgerVerifier.DEFAULT_PARALLELISM),
+				Long.getLong("bankledger.idempotency.maxKeys", IdempotencyCache.DEFAULT_MAX_KEYS),
+				Long.getLong("bankledger.idempotency.ttlSeconds", IdempotencyCache.DEFAULT_TTL_SECONDS),
+				System.getProperty("bankledger.binary.host", BinaryLedgerServer.DEFAULT_HOST),
+				Integer.getInteger("bankledger.binary.port", 0),
+				Integer.getInteger("bankledger.binary.eventLoops", BinaryLedgerServer.DEFAULT_EVENT_LOOPS),
+				parseAddresses(System.getProperty("bankledger.replication.followers", "")),
+				Integer.getInteger("bankledger.replication.quorum", 0),
+				Long.getLong("bankledger.replication.timeoutMillis", ReplicationLeader.DEFAULT_TIMEOUT_MILLIS),
+				Integer.getInteger("bankledger.replication.port", 0),
+				System.getProperty("bankledger.partition.self"),
+				parseList(System.getProperty("bankledger.partition.nodes", "")),
+				Long.getLong("bankledger.holds.ttlSeconds", TimeUnit.MILLISECONDS.toSeconds(Ledger.DEFAULT_HOLD_TTL_MILLIS)),
+				Integer.getInteger("bankledger.cdc.ringSize", ChangeFeed.DEFAULT_RING_SIZE),
+				Integer.getInteger("bankledger.cdc.bufferSize", ChangeFeed.DEFAULT_BUFFER_SIZE),
+				Double.parseDouble(System.getProperty("bankledger.admission.clientRate", "0")),
+				Double.parseDouble(System.getProperty("bankledger.admission.accountRate", "0")),
+				Integer.getInteger("bankledger.admission.maxConcurrency", 0),
+				Long.getLong("bankledger.admission.latencyTargetMillis", AdmissionControl.DEFAULT_LATENCY_TARGET_MILLIS));
+	}
+
+	/**
+	 * Splits a comma-separated list, dropping blank entries.
+	 */
+	static List<String> parseList(String list) {
+		List<String> parsed = new ArrayList<>();
+		for (String item : list.split(",")) {
+			if (!item.trim().isEmpty()) {
+				parsed.add(item.trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Parses a comma-separated list of host:port pairs.
+	 */
+	static List<InetSocketAddress> parseAddresses(String addresses) {
+		List<InetSocketAddress> parsed = new ArrayList<>();
+		for (String address : parseList(addresses)) {
+			int colon = address.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("Expected host:port but got " + address);
+			}
+			parsed.add(InetSocketAddress.createUnresolved(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+		}
+		return parsed;
+	}
+}
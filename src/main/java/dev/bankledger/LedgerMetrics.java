@@ -0,0 +1,136 @@
+package dev.bankledger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+/**
+ * The application's meters, registered in one Prometheus registry that is scraped at /metrics.
+ * Meters are created once and held in static fields, so recording on the hot paths is a
+ * lock-free counter update with no lookup or allocation.
+ */
+public final class LedgerMetrics {
+	public static final PrometheusMeterRegistry REGISTRY = createRegistry();
+
+	static final Counter AUTHORIZATIONS_APPROVED = Counter.builder("bankledger.authorizations")
+			.description("Authorizations by outcome")
+			.tag("result", "approved")
+			.register(REGISTRY);
+	static final Counter AUTHORIZATIONS_DENIED = Counter.builder("bankledger.authorizations")
+			.description("Authorizations by outcome")
+			.tag("result", "denied")
+			.register(REGISTRY);
+
+	static final Timer LOCK_WAIT = Timer.builder("bankledger.balance.lock.wait")
+			.description("Time spent waiting for a balance lock")
+			.publishPercentileHistogram()
+			.register(REGISTRY);
+	static final Counter LOCK_TIMEOUTS = Counter.builder("bankledger.balance.lock.timeouts")
+			.description("Balance lock acquisitions that timed out and were answered as busy")
+			.register(REGISTRY);
+	static final Counter UNRECORDED_BALANCE_CHANGES = Counter.builder("bankledger.balance.unrecorded")
+			.description("Balance changes whose event could not be appended and that could not be undone")
+			.register(REGISTRY);
+	static final Counter HOT_ACCOUNT_PROMOTIONS = Counter.builder("bankledger.balance.hot.promotions")
+			.description("Accounts switched to striped credits because their balance lock was contended")
+			.register(REGISTRY);
+
+	static final Timer COMPUTE_BALANCE = Timer.builder("bankledger.eventstore.compute.balance")
+			.description("Time to compute a balance from the event store")
+			.publishPercentileHistogram()
+			.register(REGISTRY);
+	static final DistributionSummary HISTORY_SIZE = DistributionSummary.builder("bankledger.eventstore.history.size")
+			.description("Events held in memory for an account when its balance is computed")
+			.publishPercentileHistogram()
+			.register(REGISTRY);
+
+	static final Counter AUDIT_DROPPED = Counter.builder("bankledger.audit.dropped")
+			.description("Audit records dropped because the audit buffer was full")
+			.register(REGISTRY);
+
+	static final Counter IDEMPOTENT_REPLAYS = Counter.builder("bankledger.idempotency.replays")
+			.description("Requests answered with the result of an earlier request with the same Idempotency-Key")
+			.register(REGISTRY);
+
+	static final Timer REPLICATION_WAIT = Timer.builder("bankledger.replication.wait")
+			.description("Time spent waiting for a quorum of followers to hold an event")
+			.publishPercentileHistogram()
+			.register(REGISTRY);
+	static final Counter REPLICATION_TIMEOUTS = Counter.builder("bankledger.replication.timeouts")
+			.description("Requests that failed because a quorum of followers did not hold their event in time")
+			.register(REGISTRY);
+	static final Counter HOLDS_EXPIRED = Counter.builder("bankledger.holds.expired")
+			.description("Holds that expired without being captured or released")
+			.register(REGISTRY);
+	static final Counter CHANGE_FEED_SLOW_CONSUMERS = Counter.builder("bankledger.cdc.slow.consumers")
+			.description("Change feed subscriptions closed because they fell behind the events still held")
+			.register(REGISTRY);
+
+	static final Counter ADMISSION_REJECTED_CLIENT = Counter.builder("bankledger.admission.rejected")
+			.description("Requests rejected by admission control before reaching the ledger")
+			.tag("reason", "client")
+			.register(REGISTRY);
+	static final Counter ADMISSION_REJECTED_ACCOUNT = Counter.builder("bankledger.admission.rejected")
+			.description("Requests rejected by admission control before reaching the ledger")
+			.tag("reason", "account")
+			.register(REGISTRY);
+	static final Counter ADMISSION_REJECTED_CONCURRENCY = Counter.builder("bankledger.admission.rejected")
+			.description("Requests rejected by admission control before reaching the ledger")
+			.tag("reason", "concurrency")
+			.register(REGISTRY);
+
+	private LedgerMetrics() {
+	}
+
+	/**
+	 * Registers gauges over an event store: its total event count and the number of accounts it holds.
+	 */
+	public static void bindEventStore(EventStore eventStore) {
+		Gauge.builder("bankledger.eventstore.events", eventStore, EventStore::lastSequence)
+				.description("Events appended to the event store")
+				.register(REGISTRY);
+		Gauge.builder("bankledger.eventstore.users", eventStore, store -> store.getAccountKeys().size())
+				.description("Accounts with at least one event")
+				.register(REGISTRY);
+	}
+
+	/**
+	 * Registers gauges over admission control: its adaptive concurrency limit and the requests in flight under it.
+	 */
+	public static void bindAdmissionControl(AdmissionControl admissionControl) {
+		Gauge.builder("bankledger.admission.limit", admissionControl, AdmissionControl::getLimit)
+				.description("Current adaptive limit on requests handled at once")
+				.register(REGISTRY);
+		Gauge.builder("bankledger.admission.inflight", admissionControl, AdmissionControl::getInFlight)
+				.description("Admitted requests still being handled")
+				.register(REGISTRY);
+	}
+
+	/**
+	 * The per-route request timers recorded by Javalin's Micrometer plugin publish p50/p99/p999
+	 * alongside the histogram buckets.
+	 */
+	private static PrometheusMeterRegistry createRegistry() {
+		PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		registry.config().meterFilter(new MeterFilter() {
+			@Override
+			public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+				if (!id.getName().equals("jetty.server.requests")) {
+					return config;
+				}
+				return DistributionStatisticConfig.builder()
+						.percentiles(0.5, 0.99, 0.999)
+						.percentilesHistogram(true)
+						.build()
+						.merge(config);
+			}
+		});
+		return registry;
+	}
+}
@@ -0,0 +1,305 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-writer execution of loads, authorizations and holds.
+ *
+ * Each userId is hashed to one of N shards. A shard owns one writer thread fed by a RingBuffer;
+ * the writer applies balance changes and appends events in submission order, so a shard's accounts
+ * are never touched by two threads at once and the balance update and event append of one command
+ * cannot interleave with another. Commands are drained in batches that share a single durability
+ * wait; their futures are then completed on a separate responder pool so that writing HTTP
+ * responses never runs on a writer thread. An idle writer yields briefly and then parks until a
+ * submit to its shard wakes it. While the pipeline is open the ledger submits its hold expiries
+ * to it too.
+ */
+public class LedgerPipeline implements Closeable {
+	public static final int DEFAULT_RING_SIZE = 65536;
+	private static final int MAX_BATCH = 256;
+	private static final int SPINS_BEFORE_PARK = 100;
+
+	private final Ledger ledger;
+	private final Shard[] shards;
+	private final ExecutorService responders;
+
+	/**
+	 * Starts one writer thread per shard.
+	 *
+	 * @param ledger The ledger the commands are applied to.
+	 * @param shardCount The number of shards and writer threads.
+	 * @param ringSize The capacity of each shard's ring buffer; must be a power of two.
+	 */
+	public LedgerPipeline(Ledger ledger, int shardCount, int ringSize) {
+		this.ledger = ledger;
+		this.shards = new Shard[shardCount];
+		this.responders = Executors.newFixedThreadPool(shardCount, r -> {
+			Thread thread = new Thread(r, "ledger-responder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, ringSize);
+			shards[i].thread.start();
+		}
+		ledger.attachPipeline(this);
+	}
+
+	/**
+	 * Queues a load. The future completes once the event is durable, or fails with
+	 * RejectedExecutionException if the shard's ring buffer is full.
+	 */
+	public CompletableFuture<LoadResponse> load(String userId, String amount, long amountMinorUnits) {
+		return load(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as load(userId, amount, amountMinorUnits), crediting the user's balance in `currency`.
+	 */
+	public CompletableFuture<LoadResponse> load(String userId, String amount, long amountMinorUnits, String currency) {
+		return submit(new Command<LoadResponse>(userId, amount, amountMinorUnits) {
+			@Override
+			LoadResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyLoad(userId, amount, amountMinorUnits, currency);
+			}
+		});
+	}
+
+	/**
+	 * Queues an authorization. The future completes once the event is durable, or fails with
+	 * RejectedExecutionException if the shard's ring buffer is full.
+	 */
+	public CompletableFuture<AuthorizationResponse> authorize(String userId, String amount, long amountMinorUnits) {
+		return authorize(userId, amount, amountMinorUnits, Amount.BASE_CURRENCY);
+	}
+
+	/**
+	 * Same as authorize(userId, amount, amountMinorUnits) for an amount in `currency`; the future
+	 * fails with IllegalArgumentException if the amount cannot be converted.
+	 */
+	public CompletableFuture<AuthorizationResponse> authorize(String userId, String amount, long amountMinorUnits, String currency) {
+		return submit(new Command<AuthorizationResponse>(userId, amount, amountMinorUnits) {
+			@Override
+			AuthorizationResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyAuthorization(userId, amount, amountMinorUnits, currency);
+			}
+		});
+	}
+
+	/**
+	 * Queues a hold. The future completes once the event is durable, or fails with
+	 * RejectedExecutionException if the shard's ring buffer is full.
+	 */
+	public CompletableFuture<HoldResponse> hold(String userId, String amount, long amountMinorUnits) {
+		return submit(new Command<HoldResponse>(userId, amount, amountMinorUnits) {
+			@Override
+			HoldResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyHold(userId, amount, amountMinorUnits);
+			}
+		});
+	}
+
+	/**
+	 * Queues the capture of a hold, as Ledger.capture(). The future completes with null if the
+	 * user has no outstanding hold with that ID.
+	 */
+	public CompletableFuture<HoldResponse> capture(String userId, String holdId, long amountMinorUnits) {
+		return submit(new Command<HoldResponse>(userId, null, amountMinorUnits) {
+			@Override
+			HoldResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyCapture(userId, holdId, amountMinorUnits);
+			}
+		});
+	}
+
+	/**
+	 * Queues the release of a hold, as Ledger.release(). The future completes with null if the
+	 * user has no outstanding hold with that ID.
+	 */
+	public CompletableFuture<HoldResponse> release(String userId, String holdId) {
+		return submit(new Command<HoldResponse>(userId, null, 0) {
+			@Override
+			HoldResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyRelease(userId, holdId);
+			}
+		});
+	}
+
+	/**
+	 * Queues a balance check in minor units behind the writes already queued for the account, so
+	 * it reads the balance they leave.
+	 */
+	public CompletableFuture<Long> checkBalance(String userId) {
+		return submit(new Command<Long>(userId, null, 0) {
+			@Override
+			Long apply(Ledger ledger) {
+				return ledger.checkBalanceMinorUnits(userId);
+			}
+		});
+	}
+
+	/**
+	 * Queues the expiry of a hold whose TTL has ended.
+	 */
+	CompletableFuture<HoldResponse> expire(String userId, String holdId) {
+		return submit(new Command<HoldResponse>(userId, null, 0) {
+			@Override
+			HoldResponse apply(Ledger ledger) throws InterruptedException {
+				return ledger.applyExpiry(userId, holdId);
+			}
+		});
+	}
+
+	/**
+	 * Returns the shard that owns a user's account.
+	 */
+	int shardOf(String userId) {
+		return Math.floorMod(userId.hashCode() * 0x9E3779B9, shards.length);
+	}
+
+	/**
+	 * Stops accepting work once the queued commands have been applied and joins the writer threads.
+	 */
+	@Override
+	public void close() {
+		if (ledger.getPipeline() == this) {
+			ledger.attachPipeline(null);
+		}
+		for (Shard shard : shards) {
+			shard.running = false;
+			LockSupport.unpark(shard.thread);
+		}
+		for (Shard shard : shards) {
+			try {
+				shard.thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		responders.shutdown();
+	}
+
+	private <T> CompletableFuture<T> submit(Command<T> command) {
+		Shard shard = shards[shardOf(command.userId)];
+		if (!shard.running || !shard.ring.offer(command)) {
+			command.future.completeExceptionally(new RejectedExecutionException("Server is busy. Please retry."));
+			return command.future;
+		}
+		if (shard.parked) {
+			LockSupport.unpark(shard.thread);
+		}
+		return command.future;
+	}
+
+	private abstract static class Command<T> {
+		final String userId;
+		final String amount;
+		final long amountMinorUnits;
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		T response;
+		Throwable failure;
+		// The sequence of the last event the command appended, or 0.
+		long sequence;
+
+		Command(String userId, String amount, long amountMinorUnits) {
+			this.userId = userId;
+			this.amount = amount;
+			this.amountMinorUnits = amountMinorUnits;
+		}
+
+		abstract T apply(Ledger ledger) throws InterruptedException;
+
+		void run(Ledger ledger) {
+			try {
+				response = apply(ledger);
+				if (response instanceof Recorded) {
+					sequence = ((Recorded) response).sequence();
+				}
+			}
+			catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		void complete() {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+			}
+			else {
+				future.complete(response);
+			}
+		}
+	}
+
+	private final class Shard implements Runnable {
+		final RingBuffer<Command<?>> ring;
+		final Thread thread;
+		volatile boolean running = true;
+		volatile boolean parked;
+
+		Shard(int index, int ringSize) {
+			this.ring = new RingBuffer<>(ringSize);
+			this.thread = new Thread(this, "ledger-shard-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Command<?>[] batch = new Command<?>[MAX_BATCH];
+			int idle = 0;
+			while (running || !ring.isEmpty()) {
+				int size = 0;
+				long written = 0;
+				Command<?> command;
+				while (size < MAX_BATCH && (command = ring.poll()) != null) {
+					command.run(ledger);
+					written = Math.max(written, command.sequence);
+					batch[size++] = command;
+				}
+
+				if (size == 0) {
+					if (++idle < SPINS_BEFORE_PARK) {
+						Thread.yield();
+					}
+					else {
+						// Set before the ring is checked again, so a submit after that check sees it and unparks.
+						parked = true;
+						if (ring.isEmpty() && running) {
+							LockSupport.park(this);
+						}
+						parked = false;
+					}
+					continue;
+				}
+				idle = 0;
+
+				RuntimeException durabilityFailure = null;
+				try {
+					// Only this batch's events: those other shards appended since are theirs to wait for.
+					ledger.awaitDurable(written);
+				}
+				catch (RuntimeException e) {
+					durabilityFailure = e;
+				}
+				Command<?>[] completed = Arrays.copyOf(batch, size);
+				Arrays.fill(batch, 0, size, null);
+				RuntimeException failure = durabilityFailure;
+				responders.execute(() -> {
+					for (Command<?> done : completed) {
+						if (failure != null && done.failure == null) {
+							done.failure = failure;
+						}
+						done.complete();
+					}
+				});
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs whole-ledger verification jobs: every account's live balance is compared with the
+ * balance recomputed from its events.
+ *
+ * Jobs run on their own fork-join pool of low-priority daemon threads, so they never take
+ * threads from the request pool or the pool that batches use; close() shuts the pool down.
+ * Accounts are read with plain lookups; a job never creates an account or takes a balance lock.
+ * Progress and the discrepancies found so far can be read from the job while it runs.
+ */
+public class LedgerVerifier implements Closeable {
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+	/** The number of discrepancies a job keeps for its report; later ones are only counted. */
+	static final int MAX_REPORTED_DISCREPANCIES = 1000;
+	private static final int MAX_RETAINED_JOBS = 16;
+	private static final int SPLIT_THRESHOLD = 1024;
+	private static final int ATTEMPTS = 3;
+
+	private final Ledger ledger;
+	private final ForkJoinPool pool;
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+			return size() > MAX_RETAINED_JOBS;
+		}
+	};
+	private Job running;
+
+	/**
+	 * @param parallelism The number of threads a job runs on.
+	 */
+	public LedgerVerifier(Ledger ledger, int parallelism) {
+		this.ledger = ledger;
+		this.pool = new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("ledger-verifier-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Starts verifying every account known to the event store or the live balances, unless a
+	 * job is already running.
+	 *
+	 * @return The new job, or the one that is already running.
+	 */
+	public synchronized Job start() {
+		if (running != null && running.getState() == State.RUNNING) {
+			return running;
+		}
+		Set<String> userIds = new LinkedHashSet<>(ledger.getEventStore().getAccountKeys());
+		userIds.addAll(ledger.getBalances().keySet());
+		Job job = new Job(userIds.toArray(new String[0]));
+		jobs.put(job.getJobId(), job);
+		running = job;
+		pool.execute(job::run);
+		return job;
+	}
+
+	/**
+	 * Shuts the pool down, cancelling a running job.
+	 */
+	@Override
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Returns a recent job by its ID, or null if it is unknown.
+	 */
+	public synchronized Job job(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Compares the live and recomputed balance of one account. A load or authorization that is
+	 * in flight changes the balance just before its event is recorded, so a mismatch is only
+	 * reported if it persists over a few attempts.
+	 *
+	 * @return null if the balances match, otherwise the discrepancy.
+	 */
+	VerificationResponse verify(String userId) {
+		BigDecimal currentBalance = BigDecimal.ZERO;
+		BigDecimal logBalance = BigDecimal.ZERO;
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			if (attempt > 0) {
+				Thread.yield();
+			}
+			LedgerBalance balance = ledger.findBalance(userId);
+			currentBalance = balance == null ? BigDecimal.ZERO : balance.getBalance();
+			logBalance = ledger.getEventStore().computeBalance(userId);
+			if (currentBalance.compareTo(logBalance) == 0) {
+				return null;
+			}
+		}
+		return new VerificationResponse(userId, currentBalance, "Balance discrepancy detected", logBalance);
+	}
+
+	public enum State {
+		RUNNING,
+		COMPLETED,
+		FAILED
+	}
+
+	/**
+	 * One verification run and its progress so far.
+	 */
+	public class Job {
+		private final String jobId = UUID.randomUUID().toString();
+		private final String[] userIds;
+		private final long startedAt = System.currentTimeMillis();
+		private final AtomicLong checked = new AtomicLong();
+		private final AtomicLong discrepancyCount = new AtomicLong();
+		private final Queue<VerificationResponse> discrepancies = new ConcurrentLinkedQueue<>();
+		private volatile State state = State.RUNNING;
+		private volatile Long finishedAt;
+
+		private Job(String[] userIds) {
+			this.userIds = userIds;
+		}
+
+		private void run() {
+			try {
+				new VerifyRange(0, userIds.length).invoke();
+				state = State.COMPLETED;
+			}
+			catch (RuntimeException e) {
+				state = State.FAILED;
+			}
+			finishedAt = System.currentTimeMillis();
+		}
+
+		public String getJobId() {
+			return jobId;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public int getAccounts() {
+			return userIds.length;
+		}
+
+		public long getChecked() {
+			return checked.get();
+		}
+
+		public long getDiscrepancyCount() {
+			return discrepancyCount.get();
+		}
+
+		/**
+		 * The first MAX_REPORTED_DISCREPANCIES discrepancies found so far.
+		 */
+		public Queue<VerificationResponse> getDiscrepancies() {
+			return discrepancies;
+		}
+
+		public long getStartedAt() {
+			return startedAt;
+		}
+
+		public Long getFinishedAt() {
+			return finishedAt;
+		}
+
+		/**
+		 * Verifies the accounts in [from, to), splitting the range until it is small enough.
+		 */
+		private class VerifyRange extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			private final int from;
+			private final int to;
+
+			VerifyRange(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from > SPLIT_THRESHOLD) {
+					int middle = (from + to) >>> 1;
+					invokeAll(new VerifyRange(from, middle), new VerifyRange(middle, to));
+					return;
+				}
+				for (int i = from; i < to; i++) {
+					VerificationResponse discrepancy = verify(userIds[i]);
+					if (discrepancy != null && discrepancyCount.incrementAndGet() <= MAX_REPORTED_DISCREPANCIES) {
+						discrepancies.add(discrepancy);
+					}
+				}
+				checked.addAndGet(to - from);
+			}
+		}
+	}
+}
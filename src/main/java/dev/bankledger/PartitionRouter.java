@@ -0,0 +1,332 @@
+package dev.bankledger;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Routing layer of a partitioned deployment, in which every ledger instance owns the accounts
+ * a HashRing assigns to it and holds only their balances and events.
+ *
+ * Installed in front of the routes, it redirects requests for accounts owned by another instance
+ * there with a 307, which keeps the method. Rebalancing to a new ring moves every account this
+ * instance no longer owns while it stays online: writes to those accounts are answered with 503
+ * until the move is done, writes already in progress are waited for, and the account histories
+ * are streamed to their new owners and then dropped here.
+ */
+public class PartitionRouter {
+	static final String IMPORT_PATH = "/partition/accounts";
+	private static final String CONTENT_TYPE = "application/octet-stream";
+	private static final String IN_FLIGHT_ATTRIBUTE = "partition.inFlight";
+	private static final int IN_FLIGHT_STRIPES = 1024;
+	private static final int ACCOUNTS_PER_MOVE = 256;
+	private static final long QUIESCE_TIMEOUT_MILLIS = 5_000;
+
+	private final Ledger ledger;
+	private final String self;
+	private final HttpClient client = HttpClient.newHttpClient();
+	private final Set<String> moving = ConcurrentHashMap.newKeySet();
+	// Writes in progress per stripe of user IDs, so a move can wait for those on its accounts.
+	private final AtomicIntegerArray inFlight = new AtomicIntegerArray(IN_FLIGHT_STRIPES);
+	private volatile HashRing ring;
+
+	/**
+	 * @param self This instance's base URL as it appears in the ring, e.g. http://10.0.0.1:7000.
+	 */
+	public PartitionRouter(Ledger ledger, String self, HashRing ring) {
+		if (!ring.getPartitions().contains(self)) {
+			throw new IllegalArgumentException("The ring does not contain this partition: " + self);
+		}
+		this.ledger = ledger;
+		this.self = self;
+		this.ring = ring;
+	}
+
+	/**
+	 * Routes the account-scoped endpoints and adds the endpoints used to rebalance.
+	 * Must be called before BankLedgerApp.defineRoutes().
+	 */
+	public void install(Javalin app) {
+		app.before("/transactions/batch", ctx -> {
+			if (ctx.method() == HandlerType.POST) {
+				ctx.status(400).json(new Error("Batches are not supported in partitioned mode; send each operation to its account's partition", "400"));
+				ctx.skipRemainingHandlers();
+			}
+		});
+		app.before("/load", ctx -> route(ctx, ctx.queryParam("userId"), true));
+		app.before("/authorization", ctx -> route(ctx, ctx.queryParam("userId"), true));
+		app.before("/hold", ctx -> route(ctx, ctx.queryParam("userId"), true));
+		app.before("/hold/capture", ctx -> route(ctx, ctx.queryParam("userId"), true));
+		app.before("/hold/release", ctx -> route(ctx, ctx.queryParam("userId"), true));
+		app.before("/balance/{userId}", ctx -> route(ctx, ctx.pathParam("userId"), false));
+		app.before("/verify/{userId}", ctx -> route(ctx, ctx.pathParam("userId"), false));
+		app.before("/transactions/{userId}", ctx -> route(ctx, ctx.pathParam("userId"), false));
+		app.after(ctx -> {
+			Integer stripe = ctx.attribute(IN_FLIGHT_ATTRIBUTE);
+			if (stripe != null) {
+				inFlight.decrementAndGet(stripe);
+			}
+		});
+		app.get("/partition/ring", ctx -> ctx.json(new RingResponse(self, ring.getPartitions(), moving.size())));
+		app.put("/partition/ring", this::rebalanceHandler);
+		app.post(IMPORT_PATH, this::importHandler);
+	}
+
+	public HashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Returns whether this instance currently owns an account.
+	 */
+	public boolean owns(String userId) {
+		return self.equals(ring.owner(userId));
+	}
+
+	private void route(Context ctx, String userId, boolean write) {
+		if (userId == null || userId.trim().isEmpty() || ctx.method() == HandlerType.POST) {
+			// Left to the handlers.
+			return;
+		}
+		int stripe = stripe(userId);
+		if (write) {
+			// Counted before checking, so a move that starts after the check waits for this write.
+			inFlight.incrementAndGet(stripe);
+		}
+		if (moving.contains(userId)) {
+			if (write) {
+				inFlight.decrementAndGet(stripe);
+				ctx.status(503).json(new Error("Account is moving to another partition. Please retry.", "503"));
+				ctx.skipRemainingHandlers();
+			}
+			// Reads are still answered here until the history has arrived at the new owner.
+			return;
+		}
+		String owner = ring.owner(userId);
+		if (!self.equals(owner)) {
+			if (write) {
+				inFlight.decrementAndGet(stripe);
+			}
+			String query = ctx.queryString();
+			ctx.redirect(owner + ctx.path() + (query == null ? "" : "?" + query), HttpStatus.TEMPORARY_REDIRECT);
+			ctx.skipRemainingHandlers();
+			return;
+		}
+		if (write) {
+			ctx.attribute(IN_FLIGHT_ATTRIBUTE, stripe);
+		}
+	}
+
+	/**
+	 * Handler replacing the ring with the partitions listed in the body and moving the accounts
+	 * this instance no longer owns to their new owners.
+	 */
+	private void rebalanceHandler(Context ctx) {
+		RingRequest request;
+		try {
+			request = ctx.bodyAsClass(RingRequest.class);
+		} catch (Exception e) {
+			ctx.status(400).json(new Error("Body must be {\"partitions\": [\"http://host:port\", ...]}", "400"));
+			return;
+		}
+		if (request.partitions == null || !request.partitions.contains(self)) {
+			ctx.status(400).json(new Error("The partitions must include this instance, " + self, "400"));
+			return;
+		}
+		try {
+			int moved = rebalance(new HashRing(request.partitions));
+			ctx.json(new RebalanceResponse(moved));
+		} catch (IOException | IllegalStateException e) {
+			ctx.status(502).json(new Error("Rebalancing stopped: " + e.getMessage(), "502"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+		}
+	}
+
+	/**
+	 * Switches to a new ring and moves the accounts it assigns to other instances, a group at a
+	 * time. Accounts whose move failed stay here, still answering reads and rejecting writes with
+	 * 503, until a rerun of the rebalance moves them.
+	 *
+	 * @return The number of accounts moved.
+	 */
+	public synchronized int rebalance(HashRing newRing) throws IOException, InterruptedException {
+		List<String> leaving = leaving(newRing);
+		// Mark them before switching, so no write is redirected to an owner that lacks the history.
+		moving.addAll(leaving);
+		ring = newRing;
+		// Accounts created by writes routed with the old ring while the list was built.
+		for (String userId : leaving(newRing)) {
+			if (moving.add(userId)) {
+				leaving.add(userId);
+			}
+		}
+
+		int moved = 0;
+		for (int i = 0; i < leaving.size(); i += ACCOUNTS_PER_MOVE) {
+			moved += move(leaving.subList(i, Math.min(leaving.size(), i + ACCOUNTS_PER_MOVE)));
+		}
+		return moved;
+	}
+
+	private List<String> leaving(HashRing newRing) {
+		// A user with balances in several currencies moves once, with all of them.
+		Set<String> leaving = new LinkedHashSet<>();
+		for (String account : ledger.getBalances().keySet()) {
+			String userId = ledger.getEventStore().userIdOf(account);
+			if (!self.equals(newRing.owner(userId))) {
+				leaving.add(userId);
+			}
+		}
+		return new ArrayList<>(leaving);
+	}
+
+	/**
+	 * Streams a group of accounts to their new owners, one request per owner, and drops each
+	 * account here once its owner has it.
+	 */
+	private int move(List<String> userIds) throws IOException, InterruptedException {
+		awaitQuiescent(userIds);
+		Map<String, List<Transaction>> histories = ledger.getEventStore().exportAccounts(new HashSet<>(userIds));
+		Map<String, List<String>> byOwner = new HashMap<>();
+		for (String userId : userIds) {
+			byOwner.computeIfAbsent(ring.owner(userId), k -> new ArrayList<>()).add(userId);
+		}
+		int moved = 0;
+		for (Map.Entry<String, List<String>> entry : byOwner.entrySet()) {
+			List<Transaction> events = new ArrayList<>();
+			for (String userId : entry.getValue()) {
+				events.addAll(histories.getOrDefault(userId, Collections.emptyList()));
+			}
+			if (!events.isEmpty()) {
+				send(entry.getKey(), events);
+			}
+			for (String userId : entry.getValue()) {
+				ledger.removeAccount(userId);
+				moving.remove(userId);
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Waits until no write is in progress on the stripes of the given accounts.
+	 */
+	private void awaitQuiescent(List<String> userIds) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + QUIESCE_TIMEOUT_MILLIS;
+		for (String userId : userIds) {
+			while (inFlight.get(stripe(userId)) > 0) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("writes to the moving accounts did not finish in time");
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private void send(String owner, List<Transaction> events) throws IOException, InterruptedException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(body)) {
+			ReplicationServer.writeEvents(out, events);
+		}
+		HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(owner + IMPORT_PATH))
+				.header("Content-Type", CONTENT_TYPE)
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+				.build(), HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 200) {
+			throw new IOException(owner + " did not take the accounts: " + response.body());
+		}
+	}
+
+	/**
+	 * Handler taking over the accounts moved here by another instance. Repeating a transfer
+	 * whose response was lost does not apply its events twice.
+	 */
+	private void importHandler(Context ctx) {
+		List<Transaction> events;
+		try (InputStream in = ctx.bodyInputStream()) {
+			events = ReplicationServer.readEvents(new DataInputStream(in));
+		} catch (IOException e) {
+			ctx.status(400).json(new Error("Malformed account transfer: " + e.getMessage(), "400"));
+			return;
+		}
+		try {
+			ledger.importAccounts(events);
+			ctx.json(new RebalanceResponse((int) events.stream().map(Transaction::getUserId).distinct().count()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ctx.status(500).json(new Error("An unexpected error occurred", "500"));
+		} catch (RuntimeException e) {
+			ctx.status(500).json(new Error("Could not import the accounts: " + e.getMessage(), "500"));
+		}
+	}
+
+	private static int stripe(String userId) {
+		return (userId.hashCode() & 0x7FFFFFFF) % IN_FLIGHT_STRIPES;
+	}
+
+	/**
+	 * Body of PUT /partition/ring.
+	 */
+	public static class RingRequest {
+		public List<String> partitions;
+	}
+
+	public static class RingResponse {
+		private final String self;
+		private final List<String> partitions;
+		private final int moving;
+
+		RingResponse(String self, List<String> partitions, int moving) {
+			this.self = self;
+			this.partitions = partitions;
+			this.moving = moving;
+		}
+
+		public String getSelf() {
+			return self;
+		}
+
+		public List<String> getPartitions() {
+			return partitions;
+		}
+
+		public int getMoving() {
+			return moving;
+		}
+	}
+
+	public static class RebalanceResponse {
+		private final int moved;
+
+		RebalanceResponse(int moved) {
+			this.moved = moved;
+		}
+
+		public int getMoved() {
+			return moved;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package dev.bankledger;
+
+import java.util.List;
+
+/**
+ * The follower side of replication: applies the events streamed by the leader to this node's
+ * balances and event store, so the node can answer balance and verification reads.
+ * Events keep the leader's sequence numbers, message IDs and server times.
+ */
+public class ReplicationFollower {
+	private final Ledger ledger;
+
+	public ReplicationFollower(Ledger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Applies events in sequence order, skipping those already applied, and waits for them
+	 * to be durable in this node's journal.
+	 *
+	 * @return The sequence number of the last event applied.
+	 * @throws IllegalStateException if an event is missing before the first new one.
+	 */
+	public synchronized long apply(List<Transaction> events) throws InterruptedException {
+		EventStore eventStore = ledger.getEventStore();
+		for (Transaction event : events) {
+			long expected = eventStore.lastSequence() + 1;
+			if (event.getSequence() < expected) {
+				continue;
+			}
+			if (event.getSequence() > expected) {
+				throw new IllegalStateException("Missing events " + expected + " to " + (event.getSequence() - 1));
+			}
+			ledger.applyReplicated(event);
+		}
+		long last = eventStore.lastSequence();
+		eventStore.awaitDurable(last);
+		return last;
+	}
+
+	/**
+	 * Returns the sequence number of the last event applied.
+	 */
+	public long lastSequence() {
+		return ledger.getEventStore().lastSequence();
+	}
+}
@@ -0,0 +1,301 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams every event appended to the leader's EventStore to its followers and holds back
+ * acknowledgements until a quorum of nodes has the event. Once attached, EventStore.awaitDurable()
+ * returns only after `quorum` nodes, the leader included, hold the events up to that sequence.
+ *
+ * Each follower has its own queue and sender thread, which ships queued events in batches over
+ * the follower's ReplicationTransport and retries after connection failures. On connecting, a
+ * follower that is behind is first caught up from the journal; an in-memory leader can only
+ * replicate to followers that start out as empty as it did. A follower that falls more than
+ * `maxLag` events behind, is ahead of the leader or rejects events is dropped until restart.
+ */
+public class ReplicationLeader implements Closeable {
+	public static final int DEFAULT_MAX_LAG = 100_000;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+	private static final int MAX_BATCH = 1024;
+	private static final long RETRY_MILLIS = 200;
+
+	private final EventStore eventStore;
+	private final Replica[] replicas;
+	private final int requiredAcks;
+	private final long timeoutNanos;
+	private final long baseline;
+	private final ReentrantLock ackLock = new ReentrantLock();
+	private final Condition acked = ackLock.newCondition();
+	private volatile long replicatedSequence;
+	private volatile boolean running = true;
+
+	/**
+	 * Attaches to the event store and starts one sender thread per follower.
+	 *
+	 * @param followers The transports to the followers.
+	 * @param quorum The number of nodes, the leader included, that must hold an event before it is acknowledged.
+	 * @param timeoutMillis How long awaitDurable() waits for the quorum before failing.
+	 * @param maxLag The number of queued events after which a follower is dropped.
+	 */
+	public ReplicationLeader(EventStore eventStore, List<? extends ReplicationTransport> followers, int quorum,
+			long timeoutMillis, int maxLag) {
+		if (quorum < 1 || quorum > followers.size() + 1) {
+			throw new IllegalArgumentException("Quorum must be between 1 and " + (followers.size() + 1));
+		}
+		this.eventStore = eventStore;
+		this.requiredAcks = quorum - 1;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.replicas = new Replica[followers.size()];
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = new Replica(followers.get(i), maxLag);
+		}
+		this.baseline = eventStore.attachReplication(this);
+		this.replicatedSequence = requiredAcks == 0 ? Long.MAX_VALUE : baseline;
+		for (Replica replica : replicas) {
+			replica.thread.start();
+		}
+	}
+
+	/**
+	 * Returns the quorum of a majority of the leader and `followers` followers.
+	 */
+	public static int majority(int followers) {
+		return (followers + 1) / 2 + 1;
+	}
+
+	/**
+	 * Queues an appended event for every follower. Called by the EventStore in sequence order.
+	 */
+	void enqueue(Transaction transaction) {
+		for (Replica replica : replicas) {
+			replica.enqueue(transaction);
+		}
+	}
+
+	/**
+	 * Blocks until a quorum holds every event up to and including `sequence`.
+	 *
+	 * @throws IllegalStateException if the quorum is not reached within the timeout.
+	 */
+	void awaitReplicated(long sequence) {
+		if (replicatedSequence >= sequence) {
+			return;
+		}
+		long start = System.nanoTime();
+		ackLock.lock();
+		try {
+			long remaining = timeoutNanos;
+			while (replicatedSequence < sequence) {
+				if (remaining <= 0) {
+					LedgerMetrics.REPLICATION_TIMEOUTS.increment();
+					throw new IllegalStateException("Replication quorum not reached for event " + sequence);
+				}
+				remaining = acked.awaitNanos(remaining);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for replication", e);
+		}
+		finally {
+			ackLock.unlock();
+			LedgerMetrics.REPLICATION_WAIT.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Returns the highest sequence number held by a quorum.
+	 */
+	public long replicatedSequence() {
+		return requiredAcks == 0 ? eventStore.lastSequence() : replicatedSequence;
+	}
+
+	/**
+	 * Returns the sequence number of the last event each follower acknowledged, in the order given.
+	 */
+	public long[] followerSequences() {
+		long[] sequences = new long[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			sequences[i] = replicas[i].ackedSequence;
+		}
+		return sequences;
+	}
+
+	/**
+	 * Stops the sender threads and closes the transports. Events still queued are not sent.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		for (Replica replica : replicas) {
+			replica.thread.interrupt();
+		}
+		for (Replica replica : replicas) {
+			try {
+				replica.thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			replica.transport.close();
+		}
+	}
+
+	private void onAck() {
+		long[] sequences = followerSequences();
+		Arrays.sort(sequences);
+		// The requiredAcks-th highest acknowledgement is held by enough followers.
+		long quorumSequence = sequences[sequences.length - requiredAcks];
+		if (quorumSequence > replicatedSequence) {
+			ackLock.lock();
+			try {
+				if (quorumSequence > replicatedSequence) {
+					replicatedSequence = quorumSequence;
+					acked.signalAll();
+				}
+			}
+			finally {
+				ackLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * One follower: its queue of unsent events and the thread sending them.
+	 */
+	private final class Replica implements Runnable {
+		final ReplicationTransport transport;
+		final Thread thread;
+		private final BlockingQueue<Transaction> queue;
+		private volatile boolean dropped;
+		volatile long ackedSequence;
+
+		Replica(ReplicationTransport transport, int maxLag) {
+			this.transport = transport;
+			this.queue = new ArrayBlockingQueue<>(maxLag);
+			this.thread = new Thread(this, "replication-" + transport.describe());
+			this.thread.setDaemon(true);
+		}
+
+		void enqueue(Transaction transaction) {
+			if (!dropped && !queue.offer(transaction)) {
+				drop("it fell more than " + queue.size() + " events behind");
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				long position = send(Collections.emptyList());
+				if (position > baseline) {
+					drop("it is ahead of the leader at event " + position);
+					return;
+				}
+				if (position < baseline) {
+					catchUp(position);
+				}
+				acknowledge(baseline);
+
+				List<Transaction> batch = new ArrayList<>(MAX_BATCH);
+				while (running && !dropped) {
+					Transaction first = queue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					acknowledge(send(batch));
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e) {
+				// Closed.
+			}
+			catch (IOException | UncheckedIOException | IllegalStateException e) {
+				drop(e.getMessage());
+			}
+		}
+
+		/**
+		 * Sends the events the follower is missing from before the leader was attached.
+		 */
+		private void catchUp(long position) throws IOException, InterruptedException {
+			List<Transaction> batch = new ArrayList<>(MAX_BATCH);
+			eventStore.replay(position + 1, baseline, transaction -> {
+				batch.add(transaction);
+				if (batch.size() == MAX_BATCH) {
+					sendUnchecked(batch);
+				}
+			});
+			if (!batch.isEmpty()) {
+				send(batch);
+			}
+		}
+
+		private void sendUnchecked(List<Transaction> batch) {
+			try {
+				send(batch);
+				batch.clear();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while catching up", e);
+			}
+		}
+
+		/**
+		 * Sends a batch, retrying until the follower takes it.
+		 *
+		 * @return The follower's position after the batch.
+		 */
+		private long send(List<Transaction> batch) throws IOException, InterruptedException {
+			boolean reported = false;
+			while (true) {
+				if (!running) {
+					throw new InterruptedException();
+				}
+				try {
+					return transport.replicate(batch);
+				}
+				catch (IOException e) {
+					if (!reported) {
+						System.err.println("Replication to " + transport.describe() + " failed, retrying: " + e.getMessage());
+						reported = true;
+					}
+					Thread.sleep(RETRY_MILLIS);
+				}
+			}
+		}
+
+		private void acknowledge(long sequence) {
+			if (sequence > ackedSequence) {
+				ackedSequence = sequence;
+				if (requiredAcks > 0) {
+					onAck();
+				}
+			}
+		}
+
+		private void drop(String reason) {
+			if (!dropped) {
+				dropped = true;
+				queue.clear();
+				System.err.println("Stopped replicating to " + transport.describe() + ": " + reason);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package dev.bankledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives replicated events from a leader's TcpReplicationTransport and hands them to a
+ * ReplicationFollower. Each leader connection is served by its own thread.
+ *
+ * Request:  int count | count events of: long sequence | long serverTime | byte status | byte debitOrCredit
+ *           | UTF userId | UTF messageId | UTF amount | UTF currency
+ * Response: long lastSequence, or -1 followed by UTF reason if the events were rejected
+ */
+public class ReplicationServer implements Closeable {
+	private static final int MAX_EVENTS_PER_REQUEST = 65536;
+
+	private final ReplicationFollower follower;
+	private final ServerSocket server;
+	private final Thread acceptor;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean running = true;
+
+	/**
+	 * Binds the port and starts accepting leader connections.
+	 *
+	 * @param port The TCP port, or 0 for any free port.
+	 */
+	public ReplicationServer(ReplicationFollower follower, int port) throws IOException {
+		this.follower = follower;
+		this.server = new ServerSocket();
+		this.server.bind(new InetSocketAddress(port));
+		this.acceptor = new Thread(this::accept, "replication-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		server.close();
+		for (Socket connection : connections) {
+			connection.close();
+		}
+		try {
+			acceptor.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void accept() {
+		int next = 0;
+		while (running) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				connections.add(socket);
+				Thread thread = new Thread(() -> serve(socket), "replication-connection-" + next++);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch (IOException e) {
+				if (running) {
+					System.err.println("Failed to accept replication connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket connection = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+			while (running) {
+				List<Transaction> events;
+				try {
+					events = readEvents(in);
+				}
+				catch (EOFException e) {
+					return;
+				}
+				try {
+					out.writeLong(follower.apply(events));
+				}
+				catch (IllegalStateException e) {
+					out.writeLong(-1);
+					out.writeUTF(e.getMessage());
+				}
+				out.flush();
+			}
+		}
+		catch (SocketException e) {
+			// Closed by either side.
+		}
+		catch (IOException e) {
+			System.err.println("Replication connection failed: " + e.getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			connections.remove(socket);
+		}
+	}
+
+	/**
+	 * Writes one request: the events in sequence order. A converted authorization also carries
+	 * its FX rate version and source amount; other events a version of 0.
+	 */
+	static void writeEvents(DataOutputStream out, List<Transaction> events) throws IOException {
+		out.writeInt(events.size());
+		for (Transaction event : events) {
+			Amount amount = event.getTransactionAmount();
+			out.writeLong(event.getSequence());
+			out.writeLong(event.getServerTime());
+			out.writeByte(Transaction.statusCode(event.getStatus()));
+			out.writeByte(amount.getDebitOrCredit().ordinal());
+			out.writeUTF(event.getUserId());
+			out.writeUTF(event.getMessageId());
+			out.writeUTF(amount.getAmount());
+			out.writeUTF(amount.getCurrency());
+			out.writeInt(event.getFxRateVersion());
+			if (event.getSourceAmount() != null) {
+				out.writeUTF(event.getSourceAmount().getAmount());
+				out.writeUTF(event.getSourceAmount().getCurrency());
+			}
+		}
+	}
+
+	/**
+	 * Reads one request written by writeEvents().
+	 */
+	static List<Transaction> readEvents(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_EVENTS_PER_REQUEST) {
+			throw new IOException("Invalid replication request of " + count + " events");
+		}
+		List<Transaction> events = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			long sequence = in.readLong();
+			long serverTime = in.readLong();
+			int status = in.readUnsignedByte();
+			int debitOrCredit = in.readUnsignedByte();
+			if (status >= Transaction.STATUSES.length || debitOrCredit >= DebitCredit.values().length) {
+				throw new IOException("Invalid replicated event " + sequence);
+			}
+			String userId = in.readUTF();
+			String messageId = in.readUTF();
+			Amount amount = new Amount(in.readUTF(), in.readUTF(), DebitCredit.values()[debitOrCredit]);
+			Transaction event = new Transaction(userId, messageId, amount, Transaction.STATUSES[status], serverTime, sequence);
+			int fxRateVersion = in.readInt();
+			if (fxRateVersion != 0) {
+				event.recordConversion(new Amount(in.readUTF(), in.readUTF(), amount.getDebitOrCredit()), fxRateVersion);
+			}
+			events.add(event);
+		}
+		return events;
+	}
+}
@@ -0,0 +1,27 @@
+package dev.bankledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries events from a ReplicationLeader to one follower. The leader calls replicate() from
+ * a single thread per follower, so implementations need not be thread-safe.
+ */
+public interface ReplicationTransport extends Closeable {
+	/**
+	 * Sends events to the follower, in sequence order, and waits for it to apply them.
+	 * Events the follower already holds are skipped by it, so a batch may safely be sent again.
+	 *
+	 * @param events The events to send; an empty list only asks for the follower's position.
+	 * @return The sequence number of the last event the follower holds durably.
+	 * @throws IOException if the follower could not be reached; the leader retries.
+	 * @throws IllegalStateException if the follower rejected the events; the leader gives up on it.
+	 */
+	long replicate(List<Transaction> events) throws IOException, InterruptedException;
+
+	/**
+	 * Describes the follower for log messages.
+	 */
+	String describe();
+}
@@ -0,0 +1,80 @@
+package dev.bankledger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer.
+ * Producers claim a slot with a CAS on the tail and publish it through the slot's sequence number,
+ * so offer() never blocks; the single consumer polls without any read-modify-write operations.
+ */
+class RingBuffer<E> {
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head;
+
+	/**
+	 * @param capacity The number of slots; must be a power of two.
+	 */
+	RingBuffer(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two");
+		}
+		this.slots = new Object[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element, or returns false if the buffer is full. Safe to call from any thread.
+	 */
+	boolean offer(E element) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = element;
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			}
+			else if (difference < 0) {
+				return false;
+			}
+			else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element, or returns null if none is available. Only the consumer thread may call this.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		E element = (E) slots[index];
+		slots[index] = null;
+		sequences.set(index, head + mask + 1);
+		head++;
+		return element;
+	}
+
+	/**
+	 * Returns whether there is nothing to poll. Only the consumer thread may call this.
+	 */
+	boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+}
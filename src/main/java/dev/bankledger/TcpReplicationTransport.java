@@ -0,0 +1,80 @@
+package dev.bankledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Replicates to a follower's ReplicationServer over one TCP connection, which is opened on first
+ * use and reopened on the next call after it fails.
+ */
+public class TcpReplicationTransport implements ReplicationTransport {
+	private static final int CONNECT_TIMEOUT_MILLIS = 2_000;
+	private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+	private final String host;
+	private final int port;
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	public TcpReplicationTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public long replicate(List<Transaction> events) throws IOException {
+		try {
+			if (socket == null) {
+				connect();
+			}
+			ReplicationServer.writeEvents(out, events);
+			out.flush();
+			long sequence = in.readLong();
+			if (sequence < 0) {
+				throw new IllegalStateException(in.readUTF());
+			}
+			return sequence;
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connect() throws IOException {
+		Socket connection = new Socket();
+		try {
+			connection.setTcpNoDelay(true);
+			connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+			connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+			in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+		}
+		catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+		socket = connection;
+	}
+
+	@Override
+	public String describe() {
+		return host + ":" + port;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (socket != null) {
+			Socket connection = socket;
+			socket = null;
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package dev.bankledger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for large numbers of deadlines, such as the expiry of outstanding holds.
+ *
+ * Deadlines are kept in a ring of buckets, one per tick, and advance() only visits the buckets of
+ * the ticks that have ended, so a timer costs one small entry and no thread or scan of its own.
+ * Deadlines more than a revolution ahead stay in their bucket until the revolution that reaches
+ * them, and an item expires up to one tick after its deadline. Timers cannot be cancelled: the
+ * handler is expected to ignore items already settled.
+ */
+final class TimerWheel<T> {
+	private final long tickMillis;
+	private final Bucket<T>[] buckets;
+	private final int mask;
+	private final Consumer<T> onExpiry;
+	// The last tick advance() has taken the bucket of.
+	private volatile long processedTick;
+
+	/**
+	 * @param buckets The number of buckets, rounded up to a power of two.
+	 * @param startMillis The current time.
+	 * @param onExpiry Receives each item once its deadline has passed, on the thread calling advance().
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimerWheel(long tickMillis, int buckets, long startMillis, Consumer<T> onExpiry) {
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		this.tickMillis = tickMillis;
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			this.buckets[i] = new Bucket<>();
+		}
+		this.mask = size - 1;
+		this.onExpiry = onExpiry;
+		this.processedTick = startMillis / tickMillis - 1;
+	}
+
+	long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Schedules `item` to expire at the first advance() after the tick of `deadlineMillis` has ended.
+	 */
+	void schedule(T item, long deadlineMillis) {
+		Entry<T> entry = new Entry<>(item, deadlineMillis);
+		while (true) {
+			long tick = Math.max(deadlineMillis / tickMillis, processedTick + 1);
+			Bucket<T> bucket = buckets[(int) (tick & mask)];
+			synchronized (bucket) {
+				// advance() takes a bucket under its lock after moving processedTick past it.
+				if (tick > processedTick) {
+					bucket.entries.add(entry);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Expires every item whose deadline is in a tick that ended by `nowMillis`. Must not be called
+	 * concurrently.
+	 *
+	 * @return The number of items expired.
+	 */
+	int advance(long nowMillis) {
+		long last = nowMillis / tickMillis - 1;
+		// After a pause of more than a revolution, visiting the last revolution's ticks covers every bucket.
+		long from = Math.max(processedTick + 1, last - mask);
+		int expired = 0;
+		for (long tick = from; tick <= last; tick++) {
+			Bucket<T> bucket = buckets[(int) (tick & mask)];
+			List<Entry<T>> due;
+			synchronized (bucket) {
+				processedTick = tick;
+				due = bucket.entries;
+				bucket.entries = new ArrayList<>();
+			}
+			List<Entry<T>> later = null;
+			for (Entry<T> entry : due) {
+				if (entry.deadlineMillis / tickMillis <= tick) {
+					onExpiry.accept(entry.item);
+					expired++;
+				}
+				else {
+					if (later == null) {
+						later = new ArrayList<>();
+					}
+					later.add(entry);
+				}
+			}
+			if (later != null) {
+				synchronized (bucket) {
+					bucket.entries.addAll(later);
+				}
+			}
+		}
+		return expired;
+	}
+
+	private static final class Bucket<T> {
+		List<Entry<T>> entries = new ArrayList<>();
+	}
+
+	private static final class Entry<T> {
+		final T item;
+		final long deadlineMillis;
+
+		Entry(T item, long deadlineMillis) {
+			this.item = item;
+			this.deadlineMillis = deadlineMillis;
+		}
+	}
+}
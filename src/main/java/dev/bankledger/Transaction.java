@@ -1,13 +1,31 @@
 package dev.bankledger;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.UUID;
 
 public class Transaction {
+	/**
+	 * Every status a transaction can have. Stored events refer to a status by its index here,
+	 * so new statuses must only ever be appended.
+	 */
+	static final String[] STATUSES = {"APPROVED", "DENIED", "HELD", "CAPTURED", "RELEASED", "EXPIRED"};
+	static final int APPROVED = 0;
+	static final int HELD = 2;
+	static final int CAPTURED = 3;
+	static final int RELEASED = 4;
+	static final int EXPIRED = 5;
+	// Whether an event of each status moves funds: holds reserve them, releases and expiries return
+	// them, and a capture only settles funds its hold already took.
+	private static final boolean[] CHANGES_BALANCE = {true, false, true, false, true, true};
+
 	private String userId;
 	private String messageId;
 	private Amount transactionAmount;
 	private String status;
 	private long serverTime;
+	private long sequence;
+	private Amount sourceAmount;
+	private int fxRateVersion;
 
 	public Transaction(String userId, Amount transactionAmount, String status) {
 		this.userId = userId;
@@ -17,6 +35,18 @@ public class Transaction {
 		this.serverTime = System.currentTimeMillis();
 	}
 
+	/**
+	 * Recreates a previously recorded transaction, e.g. when replaying the event journal.
+	 */
+	public Transaction(String userId, String messageId, Amount transactionAmount, String status, long serverTime, long sequence) {
+		this.userId = userId;
+		this.messageId = messageId;
+		this.transactionAmount = transactionAmount;
+		this.status = status;
+		this.serverTime = serverTime;
+		this.sequence = sequence;
+	}
+
 	public String getUserId() {
 		return userId;
 	}
@@ -36,4 +66,68 @@ public class Transaction {
 	public long getServerTime() {
 		return serverTime;
 	}
+
+	/**
+	 * Position of this transaction in the ledger-wide event order, assigned by the EventStore.
+	 * Zero until the transaction has been stored.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	void assignSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * For an authorization converted into the account's base currency, the amount as requested,
+	 * in its own currency; otherwise null.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Amount getSourceAmount() {
+		return sourceAmount;
+	}
+
+	/**
+	 * For a converted authorization, the version of the FxRateTable it was converted with; otherwise 0.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+	public int getFxRateVersion() {
+		return fxRateVersion;
+	}
+
+	/**
+	 * Marks this transaction as converted from `sourceAmount` with the given rate table version.
+	 */
+	Transaction recordConversion(Amount sourceAmount, int fxRateVersion) {
+		this.sourceAmount = sourceAmount;
+		this.fxRateVersion = fxRateVersion;
+		return this;
+	}
+
+	/**
+	 * Returns whether events with the status at `statusCode` in STATUSES change the account's balance.
+	 */
+	static boolean changesBalance(int statusCode) {
+		return CHANGES_BALANCE[statusCode];
+	}
+
+	/**
+	 * Returns whether the status at `statusCode` in STATUSES closes a hold.
+	 */
+	static boolean closesHold(int statusCode) {
+		return statusCode == CAPTURED || statusCode == RELEASED || statusCode == EXPIRED;
+	}
+
+	/**
+	 * Returns the index of a status in STATUSES.
+	 */
+	static int statusCode(String status) {
+		for (int i = 0; i < STATUSES.length; i++) {
+			if (STATUSES[i].equals(status)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown transaction status: " + status);
+	}
 }
@@ -0,0 +1,303 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.javalin.http.BadRequestResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Streams a batch of loads and authorizations through the ledger.
+ *
+ * The request body is either a JSON array or newline-delimited JSON of operations such as
+ * {"type": "load", "userId": "user1", "amount": "10.00"}. Operations are read in chunks; each chunk
+ * is grouped by user and applied in order per account, accounts in parallel on the appliers pool
+ * given, so waits on balance locks never occupy the common ForkJoinPool. Each operation appends its
+ * event as soon as it changes the balance, as a single load or authorization does, and the whole
+ * chunk shares one durability wait. Per-item results are streamed back in input order as soon as
+ * their chunk is done; items whose durability cannot be confirmed are reported as errors.
+ */
+public class TransactionBatch {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final ObjectWriter WRITER = MAPPER.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+	private static final int CHUNK_SIZE = 4096;
+
+	private final Ledger ledger;
+	private final LedgerPipeline pipeline;
+	private final ExecutorService appliers;
+
+	/**
+	 * Same as TransactionBatch(ledger, pipeline, appliers), applying every account on the calling thread.
+	 */
+	public TransactionBatch(Ledger ledger, LedgerPipeline pipeline) {
+		this(ledger, pipeline, null);
+	}
+
+	/**
+	 * @param ledger The ledger to apply operations to.
+	 * @param pipeline The single-writer pipeline to route operations through, or null to apply them directly.
+	 * @param appliers The pool the accounts of a chunk are applied on in parallel, e.g. from
+	 *        newAppliers(), or null to apply them one after another on the calling thread.
+	 */
+	public TransactionBatch(Ledger ledger, LedgerPipeline pipeline, ExecutorService appliers) {
+		this.ledger = ledger;
+		this.pipeline = pipeline;
+		this.appliers = appliers;
+	}
+
+	/**
+	 * Creates a pool of daemon applier threads, one per core. The caller shuts it down.
+	 */
+	public static ExecutorService newAppliers() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread thread = new Thread(r, "batch-applier");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Reads operations from `in` and writes one result per operation to `out`: a LoadResponse,
+	 * an AuthorizationResponse or an Error. Results are a JSON array, or newline-delimited JSON
+	 * when `ndjson` is set.
+	 *
+	 * @throws BadRequestResponse if the body is neither a JSON array nor a stream of JSON objects.
+	 */
+	public void process(InputStream in, OutputStream out, boolean ndjson) throws IOException {
+		JsonParser parser = MAPPER.getFactory().createParser(in);
+		JsonToken token = parser.nextToken();
+		boolean array = token == JsonToken.START_ARRAY;
+		if (array) {
+			token = parser.nextToken();
+		}
+		else if (token != JsonToken.START_OBJECT) {
+			throw new BadRequestResponse("Batch must be a JSON array or newline-delimited JSON objects");
+		}
+
+		try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+			if (ndjson) {
+				generator.setRootValueSeparator(new SerializedString("\n"));
+			}
+			else {
+				generator.writeStartArray();
+			}
+
+			List<Operation> chunk = new ArrayList<>(CHUNK_SIZE);
+			try {
+				while (token != null && token != JsonToken.END_ARRAY) {
+					chunk.add(readOperation(parser));
+					if (chunk.size() == CHUNK_SIZE) {
+						write(generator, apply(chunk));
+						chunk.clear();
+					}
+					token = parser.nextToken();
+				}
+				write(generator, apply(chunk));
+			}
+			catch (JsonProcessingException e) {
+				write(generator, apply(chunk));
+				WRITER.writeValue(generator, new Error("Malformed batch: " + e.getOriginalMessage(), "400"));
+			}
+
+			if (!ndjson) {
+				generator.writeEndArray();
+			}
+		}
+	}
+
+	/**
+	 * Applies one chunk of operations and returns their results in input order.
+	 */
+	Object[] apply(List<Operation> operations) {
+		Object[] results = new Object[operations.size()];
+		Map<String, List<Integer>> byUser = new LinkedHashMap<>();
+		for (int i = 0; i < operations.size(); i++) {
+			Operation operation = operations.get(i);
+			if (operation.error != null) {
+				results[i] = operation.error;
+			}
+			else {
+				byUser.computeIfAbsent(operation.userId, k -> new ArrayList<>()).add(i);
+			}
+		}
+
+		if (pipeline != null) {
+			applyThroughPipeline(operations, byUser, results);
+			return results;
+		}
+
+		List<CompletableFuture<Long>> accounts = new ArrayList<>(byUser.size());
+		for (List<Integer> indexes : byUser.values()) {
+			accounts.add(appliers == null || byUser.size() == 1
+					? CompletableFuture.completedFuture(applyInOrder(operations, indexes, results))
+					: CompletableFuture.supplyAsync(() -> applyInOrder(operations, indexes, results), appliers));
+		}
+		long written = 0;
+		for (CompletableFuture<Long> account : accounts) {
+			written = Math.max(written, account.join());
+		}
+		try {
+			ledger.awaitDurable(written);
+		}
+		catch (RuntimeException e) {
+			for (int i = 0; i < results.length; i++) {
+				if (results[i] instanceof Recorded && ((Recorded) results[i]).sequence() > 0) {
+					results[i] = new Error("An unexpected error occurred", "500");
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Applies one account's operations in order and returns the sequence number of the last event they appended, or 0.
+	 */
+	private long applyInOrder(List<Operation> operations, List<Integer> indexes, Object[] results) {
+		long written = 0;
+		for (int index : indexes) {
+			Operation operation = operations.get(index);
+			try {
+				Recorded result = operation.debitOrCredit == DebitCredit.CREDIT
+						? ledger.applyLoad(operation.userId, operation.amount, operation.amountMinorUnits)
+						: ledger.applyAuthorization(operation.userId, operation.amount, operation.amountMinorUnits);
+				results[index] = result;
+				written = Math.max(written, result.sequence());
+			}
+			catch (BadRequestResponse e) {
+				results[index] = new Error(e.getMessage(), "503");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results[index] = new Error("An unexpected error occurred", "500");
+			}
+			catch (RuntimeException e) {
+				results[index] = new Error("An unexpected error occurred", "500");
+			}
+		}
+		return written;
+	}
+
+	private void applyThroughPipeline(List<Operation> operations, Map<String, List<Integer>> byUser, Object[] results) {
+		List<CompletableFuture<?>> futures = new ArrayList<>(operations.size());
+		List<Integer> order = new ArrayList<>(operations.size());
+		for (List<Integer> indexes : byUser.values()) {
+			for (int index : indexes) {
+				Operation operation = operations.get(index);
+				futures.add(operation.debitOrCredit == DebitCredit.CREDIT
+						? pipeline.load(operation.userId, operation.amount, operation.amountMinorUnits)
+						: pipeline.authorize(operation.userId, operation.amount, operation.amountMinorUnits));
+				order.add(index);
+			}
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results[order.get(i)] = futures.get(i).join();
+			}
+			catch (CompletionException e) {
+				results[order.get(i)] = e.getCause() instanceof RejectedExecutionException
+						? new Error("Server is busy. Please retry.", "503")
+						: new Error("An unexpected error occurred", "500");
+			}
+		}
+	}
+
+	private static void write(JsonGenerator generator, Object[] results) throws IOException {
+		for (Object result : results) {
+			WRITER.writeValue(generator, result);
+		}
+		generator.flush();
+	}
+
+	/**
+	 * Reads one operation object; the parser must be positioned on its START_OBJECT token.
+	 */
+	private static Operation readOperation(JsonParser parser) throws IOException {
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "Expected an operation object");
+		}
+		String type = null;
+		String userId = null;
+		String amount = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (value.isStructStart()) {
+				parser.skipChildren();
+				continue;
+			}
+			String text = value == JsonToken.VALUE_NULL ? null : parser.getText();
+			if ("type".equals(field)) {
+				type = text;
+			}
+			else if ("userId".equals(field)) {
+				userId = text;
+			}
+			else if ("amount".equals(field)) {
+				amount = text;
+			}
+		}
+		return Operation.of(type, userId, amount);
+	}
+
+	/**
+	 * One validated batch item, or the validation error to report for it.
+	 */
+	static final class Operation {
+		final DebitCredit debitOrCredit;
+		final String userId;
+		final String amount;
+		final long amountMinorUnits;
+		final Error error;
+
+		private Operation(DebitCredit debitOrCredit, String userId, String amount, long amountMinorUnits, Error error) {
+			this.debitOrCredit = debitOrCredit;
+			this.userId = userId;
+			this.amount = amount;
+			this.amountMinorUnits = amountMinorUnits;
+			this.error = error;
+		}
+
+		static Operation of(String type, String userId, String amount) {
+			DebitCredit debitOrCredit;
+			if ("load".equals(type)) {
+				debitOrCredit = DebitCredit.CREDIT;
+			}
+			else if ("authorization".equals(type)) {
+				debitOrCredit = DebitCredit.DEBIT;
+			}
+			else {
+				return invalid("Type must be load or authorization");
+			}
+
+			if (userId == null || userId.trim().isEmpty()) {
+				return invalid("User ID cannot be empty");
+			}
+			long amountMinorUnits = AmountParser.parse(amount);
+			if (!AmountParser.isValid(amountMinorUnits)) {
+				return invalid(AmountParser.errorMessage(amountMinorUnits));
+			}
+			return new Operation(debitOrCredit, userId, amount, amountMinorUnits, null);
+		}
+
+		private static Operation invalid(String message) {
+			return new Operation(null, null, null, 0, new Error(message, "400"));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Streams one page of an account's transaction history as JSON:
+ * {"userId": "user1", "transactions": [...], "nextCursor": 42}
+ *
+ * Transactions are written as they are found rather than collected first, so a page costs the
+ * same memory however long the account's history is. nextCursor is the afterSequence value for
+ * the following page, or null once the history is exhausted.
+ */
+public class TransactionHistory {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final ObjectWriter WRITER = MAPPER.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+	private final EventStore eventStore;
+
+	public TransactionHistory(EventStore eventStore) {
+		this.eventStore = eventStore;
+	}
+
+	public void write(String userId, TransactionQuery query, OutputStream out) throws IOException {
+		write(userId, Amount.BASE_CURRENCY, query, out);
+	}
+
+	/**
+	 * Same as write(userId, query, out) for the user's account in `currency`.
+	 */
+	public void write(String userId, String currency, TransactionQuery query, OutputStream out) throws IOException {
+		try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+			generator.writeStartObject();
+			generator.writeStringField("userId", userId);
+			generator.writeArrayFieldStart("transactions");
+			long nextCursor;
+			try {
+				nextCursor = eventStore.queryTransactions(EventStore.accountKey(userId, currency), query, transaction -> {
+					try {
+						WRITER.writeValue(generator, transaction);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			generator.writeEndArray();
+			generator.writeFieldName("nextCursor");
+			if (nextCursor == 0) {
+				generator.writeNull();
+			}
+			else {
+				generator.writeNumber(nextCursor);
+			}
+			generator.writeEndObject();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package dev.bankledger;
+
+/**
+ * Selects one page of an account's transaction history.
+ */
+public class TransactionQuery {
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT = 1000;
+
+	private final long afterSequence;
+	private final long fromTime;
+	private final long toTime;
+	private final String status;
+	private final int limit;
+
+	/**
+	 * @param afterSequence Only transactions with a higher sequence number are returned; 0 starts at the oldest.
+	 * @param fromTime The earliest serverTime to include, in epoch milliseconds.
+	 * @param toTime The serverTime to stop before, in epoch milliseconds.
+	 * @param status The status to include, or null for all.
+	 * @param limit The maximum number of transactions to return.
+	 */
+	public TransactionQuery(long afterSequence, long fromTime, long toTime, String status, int limit) {
+		this.afterSequence = afterSequence;
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+		this.status = status;
+		this.limit = limit;
+	}
+
+	public long getAfterSequence() {
+		return afterSequence;
+	}
+
+	public long getFromTime() {
+		return fromTime;
+	}
+
+	public long getToTime() {
+		return toTime;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+}
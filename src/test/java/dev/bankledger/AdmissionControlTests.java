@@ -0,0 +1,137 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.Javalin;
+import io.javalin.json.JavalinJackson;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTests {
+
+	// One server for the class, with a plain JSON mapper: starting Jetty and the default mapper's
+	// module discovery are most of the cost of these tests.
+	private static Javalin app;
+	private static String base;
+	private static volatile AdmissionControl admission;
+	private static volatile CountDownLatch release = new CountDownLatch(0);
+
+	@BeforeClass
+	public static void startServer() {
+		app = Javalin.create(config -> config.jsonMapper(new JavalinJackson(new ObjectMapper(), false))).start(0);
+		app.before(ctx -> admission.admit(ctx));
+		app.after(ctx -> admission.complete(ctx));
+		app.get("/balance/{userId}", ctx -> ctx.result("ok"));
+		app.put("/load", ctx -> ctx.result("ok"));
+		app.get("/ping", ctx -> ctx.result("ok"));
+		app.put("/authorization", ctx -> {
+			release.await(5, TimeUnit.SECONDS);
+			ctx.result("ok");
+		});
+		base = "http://127.0.0.1:" + app.port();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		app.stop();
+	}
+
+	@Test
+	@DisplayName("Test token buckets limit each client and writes to each account with 429 and Retry-After")
+	public void test1_client_and_account_rate_limits() throws Exception {
+		// One request per 100 seconds, so no token refills while the test runs however slow it is.
+		admission = new AdmissionControl(0.01, 0.01, 0, AdmissionControl.DEFAULT_LATENCY_TARGET_MILLIS);
+		assertEquals(200, request("GET", base + "/balance/user1", "client-a").getResponseCode());
+		HttpURLConnection limited = request("GET", base + "/balance/user1", "client-a");
+		assertEquals(429, limited.getResponseCode());
+		assertTrue(Long.parseLong(limited.getHeaderField("Retry-After")) > 1);
+		assertEquals(200, request("GET", base + "/ping", "client-a").getResponseCode());
+		assertEquals(200, request("GET", base + "/balance/user1", "client-b").getResponseCode());
+
+		// One write per 100 seconds to an account, whichever client sends it.
+		assertEquals(200, request("PUT", base + "/load?userId=user1&amount=1.00", "client-c").getResponseCode());
+		assertEquals(429, request("PUT", base + "/load?userId=user1&amount=1.00", "client-d").getResponseCode());
+		// The write the account turned away gave client-d its token back.
+		assertEquals(200, request("PUT", base + "/load?userId=user2&amount=1.00", "client-d").getResponseCode());
+	}
+
+	@Test
+	@DisplayName("Test the adaptive concurrency limit sheds excess requests with 503 and follows handler latency")
+	public void test2_adaptive_concurrency_limit() throws Exception {
+		AdmissionControl aimd = new AdmissionControl(0, 0, 10, 50);
+		long start = System.nanoTime();
+		long slow = TimeUnit.MILLISECONDS.toNanos(100);
+		long fast = TimeUnit.MILLISECONDS.toNanos(1);
+		aimd.onSample(start, start + slow, false);
+		assertEquals(9, aimd.getLimit());
+		// Started before the backoff, so it saw the same congestion.
+		aimd.onSample(start + 1, start + slow + 1, true);
+		assertEquals(9, aimd.getLimit());
+		aimd.onSample(start + slow + 1, start + 2 * slow + 1, true);
+		assertEquals(8, aimd.getLimit());
+		for (int i = 0; i < 100; i++) {
+			aimd.onSample(start, start + fast, false);
+		}
+		assertEquals(10, aimd.getLimit());
+
+		admission = new AdmissionControl(0, 0, 4, 10_000);
+		release = new CountDownLatch(1);
+		try {
+			String url = base + "/authorization?userId=user1";
+
+			List<Thread> blocked = new ArrayList<>();
+			List<Integer> statuses = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				Thread thread = new Thread(() -> {
+					try {
+						int status = request("PUT", url, "client-a").getResponseCode();
+						synchronized (statuses) {
+							statuses.add(status);
+						}
+					}
+					catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				});
+				blocked.add(thread);
+				thread.start();
+			}
+			long deadline = System.currentTimeMillis() + 5_000;
+			while (admission.getInFlight() < 4 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(4, admission.getInFlight());
+			assertEquals(503, request("PUT", url, "client-b").getResponseCode());
+
+			release.countDown();
+			for (Thread thread : blocked) {
+				thread.join();
+			}
+			assertEquals(4, statuses.size());
+			assertTrue(statuses.stream().allMatch(status -> status == 200));
+			assertEquals(0, admission.getInFlight());
+			assertEquals(200, request("PUT", url, "client-b").getResponseCode());
+		}
+		finally {
+			release.countDown();
+		}
+	}
+
+	private static HttpURLConnection request(String method, String url, String clientId) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty(AdmissionControl.CLIENT_ID_HEADER, clientId);
+		return connection;
+	}
+}
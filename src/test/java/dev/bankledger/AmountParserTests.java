@@ -0,0 +1,64 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class AmountParserTests {
+	private static final Pattern AMOUNT_FORMAT = Pattern.compile("\\d+(\\.\\d{1,2})?");
+
+	/**
+	 * The validation the handlers used before AmountParser: the regex, then BigDecimal into minor units.
+	 */
+	private static long reference(String amount) {
+		if (amount == null || !AMOUNT_FORMAT.matcher(amount).matches()) {
+			return AmountParser.INVALID_FORMAT;
+		}
+		try {
+			return Amount.toMinorUnits(new BigDecimal(amount));
+		}
+		catch (ArithmeticException e) {
+			return AmountParser.TOO_LARGE;
+		}
+	}
+
+	@Test
+	@DisplayName("Test amounts at the edges of the accepted format parse like the regex and BigDecimal")
+	public void test1_edge_cases() {
+		String[] amounts = {
+			null, "", "0", "00", "7", "1.", ".5", "1.5", "1.05", "1.005", "10.50", "-1", "+1", "1e3", " 1", "1 ",
+			"1..0", "1.0.", "\u0661", "\uFF11", "0.00", "000001.10", "92233720368547758", "92233720368547758.07",
+			"92233720368547758.08", "92233720368547759", "9223372036854775807", "99999999999999999999999999",
+			"99999999999999999999999999.x", "00000000000000000000000000000001.01"
+		};
+		for (String amount : amounts) {
+			assertEquals(String.valueOf(amount), reference(amount), AmountParser.parse(amount));
+		}
+	}
+
+	@Test
+	@DisplayName("Test random strings parse exactly like the regex and BigDecimal")
+	public void test2_fuzz() {
+		Random random = new Random(20240501L);
+		String alphabet = "0123456789000000000..-+e x";
+		for (int n = 0; n < 200_000; n++) {
+			int length = random.nextInt(n % 10 == 0 ? 30 : 8);
+			StringBuilder amount = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				amount.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			String value = amount.toString();
+			assertEquals(value, reference(value), AmountParser.parse(value));
+		}
+		for (int n = 0; n < 100_000; n++) {
+			String value = Long.toUnsignedString(random.nextLong() >>> random.nextInt(64))
+					+ (random.nextBoolean() ? "" : "." + random.nextInt(100));
+			assertEquals(value, reference(value), AmountParser.parse(value));
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuditLogTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	@DisplayName("Test ledger operations are written to the audit log as JSON lines")
+	public void test1_writes_json_lines() throws IOException, InterruptedException {
+		Path dir = folder.getRoot().toPath();
+		AuditLog auditLog = new AuditLog(dir, 1024, AuditLog.OverflowPolicy.BLOCK, AuditLog.DEFAULT_MAX_FILE_SIZE, 2);
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT, auditLog);
+		ledger.load("user \"1\"", "100.00", 10000);
+		ledger.authorize("user \"1\"", "30.05", 3005);
+		ledger.authorize("user \"1\"", "500", 50000);
+		ledger.checkBalance("user \"1\"");
+		auditLog.close();
+
+		List<String> lines = Files.readAllLines(dir.resolve(AuditLog.FILE_NAME), StandardCharsets.UTF_8);
+		assertEquals(4, lines.size());
+		JsonNode load = MAPPER.readTree(lines.get(0));
+		assertEquals("LOAD", load.get("event").asText());
+		assertEquals("user \"1\"", load.get("userId").asText());
+		assertEquals("100.00", load.get("amount").asText());
+		assertEquals("100.00", load.get("balance").asText());
+		assertEquals("APPROVED", MAPPER.readTree(lines.get(1)).get("status").asText());
+		assertEquals("69.95", MAPPER.readTree(lines.get(1)).get("balance").asText());
+		assertEquals("DENIED", MAPPER.readTree(lines.get(2)).get("status").asText());
+		assertEquals("BALANCE", MAPPER.readTree(lines.get(3)).get("event").asText());
+		assertEquals("69.95", MAPPER.readTree(lines.get(3)).get("balance").asText());
+	}
+
+	@Test
+	@DisplayName("Test the audit file is rotated and only the configured number of old files is kept")
+	public void test2_rotates_files() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		AuditLog auditLog = new AuditLog(dir, 16, AuditLog.OverflowPolicy.BLOCK, 1024, 2);
+		for (int i = 0; i < 2000; i++) {
+			auditLog.balance("user" + i, i);
+		}
+		auditLog.close();
+
+		assertTrue(Files.exists(dir.resolve(AuditLog.FILE_NAME + ".1")));
+		assertTrue(Files.exists(dir.resolve(AuditLog.FILE_NAME + ".2")));
+		assertFalse(Files.exists(dir.resolve(AuditLog.FILE_NAME + ".3")));
+		List<String> lines = Files.readAllLines(dir.resolve(AuditLog.FILE_NAME), StandardCharsets.UTF_8);
+		assertEquals("user1999", MAPPER.readTree(lines.get(lines.size() - 1)).get("userId").asText());
+	}
+}
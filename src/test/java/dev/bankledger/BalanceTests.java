@@ -0,0 +1,145 @@
+package dev.bankledger;
+
+import io.javalin.http.BadRequestResponse;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BalanceTests {
+
+	@Test
+	@DisplayName("Test debits are approved only when the balance covers them")
+	public void test1_check_and_debit() throws Exception {
+		for (BalanceEngine engine : BalanceEngine.values()) {
+			LedgerBalance balance = engine.create(0);
+			assertEquals(10000, balance.credit(10000));
+
+			long approved = balance.debit(7500);
+			assertTrue(LedgerBalance.approved(approved));
+			assertEquals(2500, LedgerBalance.resultingBalance(approved));
+
+			long denied = balance.debit(7500);
+			assertFalse(LedgerBalance.approved(denied));
+			assertEquals(2500, LedgerBalance.resultingBalance(denied));
+			assertEquals("25.00", balance.getBalance().toString());
+		}
+	}
+
+	@Test
+	@DisplayName("Test concurrent credits and debits on a fixed-point balance never overdraw or lose updates")
+	public void test2_fixed_point_concurrency() throws Exception {
+		FixedPointBalance balance = new FixedPointBalance();
+		AtomicInteger approvedDebits = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < 10000; i++) {
+					balance.credit(3);
+					long result = balance.debit(5);
+					if (LedgerBalance.approved(result)) {
+						approvedDebits.incrementAndGet();
+					}
+					assertTrue(LedgerBalance.resultingBalance(result) >= 0);
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertEquals(8 * 10000 * 3 - approvedDebits.get() * 5L, balance.getMinorUnits());
+		assertEquals(0, new BigDecimal(balance.getMinorUnits()).movePointLeft(2).compareTo(balance.getBalance()));
+	}
+
+	@Test
+	@DisplayName("Test balance checks read without locking and never create accounts for unknown users")
+	public void test3_read_only_balance_check() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		ledger.load("user1", "10.00", 1000);
+
+		Balance balance = (Balance) ledger.findBalance("user1");
+		balance.lock.lock();
+		try {
+			ExecutorService reader = Executors.newSingleThreadExecutor();
+			assertEquals("10.00", reader.submit(() -> ledger.checkBalance("user1").getBalance()).get(1, TimeUnit.SECONDS));
+			reader.shutdown();
+		}
+		finally {
+			balance.lock.unlock();
+		}
+
+		BalanceResponse unknown = ledger.checkBalance("nobody");
+		assertEquals("0.00", unknown.getBalance());
+		assertEquals("USD", unknown.getCurrency());
+		assertEquals(1, ledger.getBalances().size());
+	}
+
+	@Test
+	@DisplayName("Test a contended hot account switches to striped credits and debits still see every credit")
+	public void test4_hot_account_promotion() throws Exception {
+		Balance balance = (Balance) BalanceEngine.HOT_ACCOUNT.create(0);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < Balance.PROMOTION_THRESHOLD; i++) {
+			balance.lock.lock();
+			Future<Long> credit;
+			try {
+				credit = executor.submit(() -> balance.credit(100));
+				while (!balance.lock.hasQueuedThreads()) {
+					Thread.yield();
+				}
+			}
+			finally {
+				balance.lock.unlock();
+			}
+			credit.get(10, TimeUnit.SECONDS);
+		}
+		assertTrue(balance.isHot());
+		assertEquals("32.00", balance.getBalance().toString());
+
+		List<Future<?>> futures = new ArrayList<>();
+		AtomicInteger approvedDebits = new AtomicInteger();
+		for (int t = 0; t < 4; t++) {
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < 10000; i++) {
+					// The balance returned includes the credit itself, however the stripes are being folded.
+					assertTrue(balance.credit(3) >= 3);
+					long result;
+					try {
+						result = balance.debit(5);
+					}
+					catch (BadRequestResponse e) {
+						// Debits still lock; a lock holder descheduled for 100 ms makes them busy.
+						continue;
+					}
+					if (LedgerBalance.approved(result)) {
+						approvedDebits.incrementAndGet();
+					}
+					assertTrue(LedgerBalance.resultingBalance(result) >= 0);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+
+		assertEquals(3200 + 4 * 10000 * 3 - approvedDebits.get() * 5L, Amount.toMinorUnits(balance.getBalance()));
+		assertFalse(LedgerBalance.approved(balance.debit(Amount.toMinorUnits(balance.getBalance()) + 1)));
+	}
+}
@@ -0,0 +1,172 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryLedgerServerTests {
+
+	@Test
+	@DisplayName("Test pipelined binary requests are applied in order and answered with their request IDs")
+	public void test1_pipelined_requests() throws IOException {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		try (BinaryLedgerServer server = new BinaryLedgerServer(ledger, 0, 2);
+				SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+			ByteBuffer requests = ByteBuffer.allocate(1024);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_LOAD, 1, "user1", 10000);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_AUTHORIZATION, 2, "user1", 7500);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_AUTHORIZATION, 3, "user1", 7500);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_BALANCE, 4, "user1", 0);
+			write(client, requests);
+
+			ByteBuffer responses = read(client, 4);
+			assertResponse(responses, BinaryProtocol.STATUS_OK, 1, 10000);
+			assertNotEquals(0, responses.getLong() | responses.getLong());
+			assertResponse(responses, BinaryProtocol.STATUS_OK, 2, 2500);
+			responses.position(responses.position() + 16);
+			assertResponse(responses, BinaryProtocol.STATUS_DENIED, 3, 2500);
+			responses.position(responses.position() + 16);
+			assertResponse(responses, BinaryProtocol.STATUS_OK, 4, 2500);
+			assertEquals(0, responses.getLong() | responses.getLong());
+			assertEquals(3, ledger.getEventStore().getTransactionsForUser("user1").size());
+		}
+	}
+
+	@Test
+	@DisplayName("Test invalid binary requests are rejected without changing the ledger")
+	public void test2_invalid_requests() throws IOException {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		try (BinaryLedgerServer server = new BinaryLedgerServer(ledger, 0, 1);
+				SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+			ByteBuffer requests = ByteBuffer.allocate(1024);
+			BinaryProtocol.writeRequest(requests, (byte) 9, 1, "user1", 100);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_LOAD, 2, " ", 100);
+			BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_LOAD, 3, "user1", -100);
+			write(client, requests);
+
+			ByteBuffer responses = read(client, 3);
+			for (int requestId = 1; requestId <= 3; requestId++) {
+				assertResponse(responses, BinaryProtocol.STATUS_BAD_REQUEST, requestId, 0);
+				responses.position(responses.position() + 16);
+			}
+			assertEquals(0, ledger.getBalances().size());
+		}
+	}
+
+	@Test
+	@DisplayName("Test a write waiting on a balance lock does not stall the event loop, and replies keep request order")
+	public void test3_lock_waits_off_event_loop() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Balance busy = (Balance) ledger.balanceOf("user1");
+		try (BinaryLedgerServer server = new BinaryLedgerServer(ledger, 0, 1);
+				SocketChannel first = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+				SocketChannel second = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+			ByteBuffer requests = ByteBuffer.allocate(1024);
+			busy.lock.lock();
+			try {
+				// Each load waits out the 100 ms lock timeout, keeping the writer busy for about 2 seconds.
+				for (int requestId = 1; requestId <= 20; requestId++) {
+					BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_LOAD, requestId, "user1", 100);
+				}
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_BALANCE, 21, "user1", 0);
+				write(first, requests);
+				while (!busy.lock.hasQueuedThreads()) {
+					Thread.sleep(1);
+				}
+
+				requests.clear();
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_BALANCE, 1, "user2", 0);
+				write(second, requests);
+				assertResponse(read(second, 1), BinaryProtocol.STATUS_OK, 1, 0);
+				assertTrue(busy.lock.hasQueuedThreads());
+			}
+			finally {
+				busy.lock.unlock();
+			}
+
+			ByteBuffer responses = read(first, 21);
+			long applied = 0;
+			for (int requestId = 1; requestId <= 20; requestId++) {
+				assertEquals(BinaryProtocol.RESPONSE_SIZE - 4, responses.getInt());
+				byte status = responses.get();
+				assertTrue(status == BinaryProtocol.STATUS_OK || status == BinaryProtocol.STATUS_BUSY);
+				assertEquals(requestId, responses.getLong());
+				if (status == BinaryProtocol.STATUS_OK) {
+					applied += 100;
+					assertEquals(applied, responses.getLong());
+				}
+				else {
+					responses.getLong();
+				}
+				responses.position(responses.position() + 16);
+			}
+			assertResponse(responses, BinaryProtocol.STATUS_OK, 21, applied);
+		}
+	}
+
+	@Test
+	@DisplayName("Test binary writes go through the ledger's pipeline when one is attached and are answered in request order")
+	public void test4_pipeline_writes() throws IOException {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		LedgerPipeline pipeline = new LedgerPipeline(ledger, 4, 1024);
+		try (BinaryLedgerServer server = new BinaryLedgerServer(ledger, 0, 1);
+				SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+			ByteBuffer requests = ByteBuffer.allocate(64 * 1024);
+			int requestId = 0;
+			for (int i = 0; i < 100; i++) {
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_LOAD, ++requestId, "user" + (i % 4), 100);
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_AUTHORIZATION, ++requestId, "user" + (i % 4), 40);
+				BinaryProtocol.writeRequest(requests, BinaryProtocol.OP_BALANCE, ++requestId, "user" + (i % 4), 0);
+			}
+			write(client, requests);
+
+			ByteBuffer responses = read(client, requestId);
+			for (int i = 0; i < 100; i++) {
+				long expected = (i / 4 + 1) * 60L;
+				assertResponse(responses, BinaryProtocol.STATUS_OK, 3 * i + 1, expected + 40);
+				responses.position(responses.position() + 16);
+				assertResponse(responses, BinaryProtocol.STATUS_OK, 3 * i + 2, expected);
+				responses.position(responses.position() + 16);
+				assertResponse(responses, BinaryProtocol.STATUS_OK, 3 * i + 3, expected);
+				responses.position(responses.position() + 16);
+			}
+			assertEquals(200, ledger.getEventStore().lastSequence());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	private static void write(SocketChannel client, ByteBuffer requests) throws IOException {
+		requests.flip();
+		while (requests.hasRemaining()) {
+			client.write(requests);
+		}
+	}
+
+	private static ByteBuffer read(SocketChannel client, int responses) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(responses * BinaryProtocol.RESPONSE_SIZE);
+		while (buffer.hasRemaining()) {
+			if (client.read(buffer) < 0) {
+				throw new IOException("Connection closed");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void assertResponse(ByteBuffer responses, byte status, long requestId, long balance) {
+		assertEquals(BinaryProtocol.RESPONSE_SIZE - 4, responses.getInt());
+		assertEquals(status, responses.get());
+		assertEquals(requestId, responses.getLong());
+		assertEquals(balance, responses.getLong());
+	}
+}
@@ -0,0 +1,97 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ChangeFeedTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	@DisplayName("Test subscribers see concurrent appends in sequence order and a slow in-memory subscriber is closed")
+	public void test1_ordered_delivery_and_slow_consumer() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		ChangeFeed feed = new ChangeFeed(ledger.getEventStore(), 256);
+		ChangeFeed.Subscription subscription = feed.subscribe(0, 16);
+
+		List<Thread> writers = new ArrayList<>();
+		for (int w = 0; w < 4; w++) {
+			String userId = "user" + w;
+			Thread writer = new Thread(() -> {
+				try {
+					for (int i = 0; i < 50; i++) {
+						ledger.load(userId, "1.00", 100);
+					}
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			writers.add(writer);
+			writer.start();
+		}
+		for (int i = 1; i <= 200; i++) {
+			Transaction event = subscription.poll(5, TimeUnit.SECONDS);
+			assertNotNull(event);
+			assertEquals(i, event.getSequence());
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(subscription.poll(10, TimeUnit.MILLISECONDS));
+		assertEquals(200, subscription.getCursor());
+
+		// 300 events pass a subscriber that never reads, so the 256-event ring laps it.
+		ChangeFeed.Subscription slow = feed.subscribe(200, 16);
+		for (int i = 0; i < 300; i++) {
+			ledger.load("user1", "1.00", 100);
+		}
+		try {
+			slow.poll(1, TimeUnit.SECONDS);
+			fail("Expected a subscriber lapped by the ring to be closed");
+		}
+		catch (IllegalStateException e) {
+			assertEquals(1, feed.subscriberCount());
+		}
+		feed.close();
+		assertEquals(0, feed.subscriberCount());
+	}
+
+	@Test
+	@DisplayName("Test a subscriber behind the ring catches up from the journal and then follows live appends")
+	public void test2_journal_catch_up() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, true), 2)) {
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING);
+			ChangeFeed feed = new ChangeFeed(store, 8);
+			for (int i = 0; i < 100; i++) {
+				ledger.load("user" + (i % 3), "1.00", 100);
+			}
+
+			ChangeFeed.Subscription subscription = feed.subscribe(0, 10);
+			for (int i = 1; i <= 100; i++) {
+				assertEquals(i, subscription.poll(1, TimeUnit.SECONDS).getSequence());
+			}
+			assertNull(subscription.poll(10, TimeUnit.MILLISECONDS));
+			ledger.load("user1", "2.00", 200);
+			Transaction live = subscription.poll(1, TimeUnit.SECONDS);
+			assertEquals(101, live.getSequence());
+			assertEquals("2.00", live.getTransactionAmount().getAmount());
+			subscription.close();
+			assertEquals(0, feed.subscriberCount());
+		}
+	}
+}
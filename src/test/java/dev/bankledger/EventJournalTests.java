@@ -0,0 +1,124 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Transaction load(String userId, String amount) {
+		return new Transaction(userId, new Amount(amount, "USD", DebitCredit.CREDIT), "APPROVED");
+	}
+
+	private static Transaction authorization(String userId, String amount, String status) {
+		return new Transaction(userId, new Amount(amount, "USD", DebitCredit.DEBIT), status);
+	}
+
+	private static List<Transaction> replayAll(EventJournal journal, long from) throws IOException {
+		List<Transaction> replayed = new ArrayList<>();
+		journal.replay(from, replayed::add);
+		return replayed;
+	}
+
+	@Test
+	@DisplayName("Test events survive a restart with all fields intact")
+	public void test1_replay_after_reopen() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		Transaction loaded = load("user1", "100.00");
+		try (EventJournal journal = EventJournal.open(dir, 4096, true)) {
+			journal.awaitDurable(journal.append(loaded));
+			journal.awaitDurable(journal.append(authorization("user1", "75", "APPROVED")));
+			journal.awaitDurable(journal.append(authorization("user1", "75", "DENIED")));
+		}
+
+		try (EventJournal journal = EventJournal.open(dir, 4096, true)) {
+			List<Transaction> replayed = replayAll(journal, 1);
+			assertEquals(3, replayed.size());
+			assertEquals(3, journal.lastSequence());
+
+			Transaction first = replayed.get(0);
+			assertEquals(1, first.getSequence());
+			assertEquals("user1", first.getUserId());
+			assertEquals(loaded.getMessageId(), first.getMessageId());
+			assertEquals(loaded.getServerTime(), first.getServerTime());
+			assertEquals("100.00", first.getTransactionAmount().getAmount());
+			assertEquals(DebitCredit.CREDIT, first.getTransactionAmount().getDebitOrCredit());
+			assertEquals("DENIED", replayed.get(2).getStatus());
+			assertEquals(DebitCredit.DEBIT, replayed.get(2).getTransactionAmount().getDebitOrCredit());
+		}
+	}
+
+	@Test
+	@DisplayName("Test the journal rolls segments and replays from a sequence number across them")
+	public void test2_rolls_segments() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		try (EventJournal journal = EventJournal.open(dir, 1024, false)) {
+			for (int i = 0; i < 5000; i++) {
+				journal.append(load("user" + (i % 7), "1.00"));
+			}
+		}
+
+		try (Stream<Path> files = Files.list(dir)) {
+			List<String> names = files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+			assertTrue(names.stream().filter(n -> n.endsWith(".log")).count() > 1);
+			assertTrue(names.stream().anyMatch(n -> n.endsWith(".idx")));
+		}
+
+		try (EventJournal journal = EventJournal.open(dir, 1024, false)) {
+			List<Transaction> tail = replayAll(journal, 4321);
+			assertEquals(680, tail.size());
+			assertEquals(4321, tail.get(0).getSequence());
+			assertEquals(5000, tail.get(tail.size() - 1).getSequence());
+			assertEquals(5001, journal.append(load("user1", "1.00")));
+		}
+	}
+
+	@Test
+	@DisplayName("Test a torn record at the tail is discarded on recovery")
+	public void test3_recovers_torn_tail() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			journal.append(load("user1", "10.00"));
+			journal.append(load("user1", "20.00"));
+		}
+
+		Path segment;
+		try (Stream<Path> files = Files.list(dir)) {
+			segment = files.filter(p -> p.toString().endsWith(".log")).findFirst().get();
+		}
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			// Flip a byte inside the second record's payload.
+			long position = file.readInt() + 8 + 8 + 20;
+			file.seek(position);
+			int original = file.read();
+			file.seek(position);
+			file.write(~original);
+		}
+
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			assertEquals(1, journal.lastSequence());
+			journal.append(load("user1", "5.00"));
+		}
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			EventStore store = new EventStore(journal);
+			assertEquals(0, new BigDecimal("15.00").compareTo(store.computeBalance("user1")));
+		}
+	}
+}
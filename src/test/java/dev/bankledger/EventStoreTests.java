@@ -0,0 +1,217 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventStoreTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Transaction load(String userId, String amount) {
+		return new Transaction(userId, new Amount(amount, "USD", DebitCredit.CREDIT), "APPROVED");
+	}
+
+	private static Transaction authorization(String userId, String amount, String status) {
+		return new Transaction(userId, new Amount(amount, "USD", DebitCredit.DEBIT), status);
+	}
+
+	private static void assertBalance(String expected, BigDecimal actual) {
+		assertEquals(0, new BigDecimal(expected).compareTo(actual));
+	}
+
+	@Test
+	@DisplayName("Test balances are snapshotted every interval and only newer events are folded")
+	public void test1_snapshots_every_interval() throws IOException {
+		try (EventStore store = new EventStore(EventJournal.open(folder.getRoot().toPath(), 4096, false), 10)) {
+			for (int i = 0; i < 25; i++) {
+				store.addTransaction(load("user1", "2.00"));
+			}
+			store.addTransaction(authorization("user1", "5.00", "APPROVED"));
+			store.addTransaction(authorization("user1", "500.00", "DENIED"));
+
+			BalanceSnapshot snapshot = store.getSnapshot("user1");
+			assertNotNull(snapshot);
+			assertEquals(20, snapshot.getEventCount());
+			assertEquals(20, snapshot.getSequence());
+			assertBalance("40.00", snapshot.getBalance());
+			assertBalance("45.00", store.computeBalance("user1"));
+			assertNull(store.getSnapshot("user2"));
+		}
+	}
+
+	@Test
+	@DisplayName("Test a restart replays only the events written after the persisted snapshots")
+	public void test2_restart_replays_after_snapshot() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		// Only the journal is closed, so the snapshot file stays at the explicit persist below.
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			EventStore store = new EventStore(journal, 10);
+			for (int i = 0; i < 12; i++) {
+				store.addTransaction(load("user1", "1.00"));
+			}
+			store.addTransaction(load("user2", "3.00"));
+			store.persistSnapshots();
+			store.addTransaction(load("user1", "0.50"));
+			store.addTransaction(load("user3", "7.00"));
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 10)) {
+			assertEquals(0, store.getTransactionsForUser("user2").size());
+			assertEquals(1, store.getTransactionsForUser("user1").size());
+			assertEquals(14, store.getTransactionsForUser("user1").get(0).getSequence());
+			assertBalance("12.50", store.computeBalance("user1"));
+			assertBalance("3.00", store.computeBalance("user2"));
+			assertBalance("7.00", store.computeBalance("user3"));
+
+			store.addTransaction(authorization("user1", "2.50", "APPROVED"));
+			assertBalance("10.00", store.computeBalance("user1"));
+		}
+	}
+
+	@Test
+	@DisplayName("Test stored transactions are decoded from their off-heap records with every field intact")
+	public void test3_off_heap_records_round_trip() {
+		EventStore store = new EventStore();
+		Transaction load = load("user1", "7.5");
+		Transaction denied = authorization("user1", "100.00", "DENIED");
+		store.addTransaction(load);
+		store.addTransaction(denied);
+		for (int i = 0; i < 70000; i++) {
+			store.addTransaction(load("user" + (i % 3 + 2), "0.01"));
+		}
+
+		List<Transaction> transactions = store.getTransactionsForUser("user1");
+		assertEquals(2, transactions.size());
+		Transaction first = transactions.get(0);
+		assertEquals("user1", first.getUserId());
+		assertEquals(load.getMessageId(), first.getMessageId());
+		assertEquals("7.50", first.getTransactionAmount().getAmount());
+		assertEquals("USD", first.getTransactionAmount().getCurrency());
+		assertEquals(DebitCredit.CREDIT, first.getTransactionAmount().getDebitOrCredit());
+		assertEquals("APPROVED", first.getStatus());
+		assertEquals(load.getServerTime(), first.getServerTime());
+		assertEquals(1, first.getSequence());
+		assertEquals("DENIED", transactions.get(1).getStatus());
+		assertEquals(DebitCredit.DEBIT, transactions.get(1).getTransactionAmount().getDebitOrCredit());
+
+		assertBalance("7.50", store.computeBalance("user1"));
+		assertBalance("233.34", store.computeBalance("user2"));
+		assertEquals(70001, store.getTransactionsForUser("user4").get(23332).getSequence());
+	}
+
+	@Test
+	@DisplayName("Test point-in-time balances match a fold of the events up to that time, also after a restart")
+	public void test4_balance_as_of() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		try (EventStore store = new EventStore(EventJournal.open(dir, 1 << 20, false), 50)) {
+			BigDecimal expected = BigDecimal.ZERO;
+			for (int i = 0; i < 300; i++) {
+				boolean credit = i % 3 != 2;
+				String amount = (i + 1) + ".25";
+				store.addTransaction(new Transaction("user1", UUID.randomUUID().toString(),
+						new Amount(amount, "USD", credit ? DebitCredit.CREDIT : DebitCredit.DEBIT), "APPROVED", 10_000 + i * 10, 0));
+				expected = credit ? expected.add(new BigDecimal(amount)) : expected.subtract(new BigDecimal(amount));
+				// Every balance is checked at the event's time and just before the next one.
+				assertBalance(expected.toString(), store.balanceAsOf("user1", 10_000 + i * 10));
+				assertBalance(expected.toString(), store.balanceAsOf("user1", 10_000 + i * 10 + 9));
+			}
+			assertBalance("0", store.balanceAsOf("user1", 9_999));
+			assertBalance("0", store.balanceAsOf("user2", 20_000));
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 1 << 20, false), 50)) {
+			store.addTransaction(new Transaction("user1", UUID.randomUUID().toString(),
+					new Amount("1.00", "USD", DebitCredit.CREDIT), "APPROVED", 20_000, 0));
+			assertNull(store.balanceAsOf("user1", 12_000));
+			assertEquals(0, store.computeBalance("user1").subtract(BigDecimal.ONE).compareTo(store.balanceAsOf("user1", 19_999)));
+			assertEquals(0, store.computeBalance("user1").compareTo(store.balanceAsOf("user1", 20_000)));
+		}
+	}
+
+	@Test
+	@DisplayName("Test an account moved to another partition is not replayed after a restart, but events recorded after the move are")
+	public void test5_moved_account_not_replayed() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 10)) {
+			for (int i = 0; i < 12; i++) {
+				store.addTransaction(load("user1", "1.00"));
+			}
+			store.addTransaction(load("user2", "3.00"));
+			store.persistSnapshots();
+			store.addTransaction(load("user1", "0.50"));
+			assertEquals(13, store.exportAccounts(Collections.singleton("user1")).get("user1").size());
+			store.removeAccount("user1");
+			assertEquals(0, store.getTransactionsForUser("user1").size());
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 10)) {
+			assertEquals(0, store.getTransactionsForUser("user1").size());
+			assertBalance("0", store.computeBalance("user1"));
+			assertBalance("3.00", store.computeBalance("user2"));
+			assertTrue(store.exportAccounts(Collections.singleton("user1")).isEmpty());
+			// The account moves back.
+			store.addTransaction(load("user1", "4.00"));
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 10)) {
+			assertBalance("4.00", store.computeBalance("user1"));
+			assertEquals(1, store.exportAccounts(Collections.singleton("user1")).get("user1").size());
+		}
+	}
+
+	@Test
+	@DisplayName("Test concurrent appends to one account keep every event and their running balance")
+	public void test6_concurrent_appends_to_one_account() throws InterruptedException {
+		EventStore store = new EventStore(100);
+		int threads = 4;
+		int perThread = 10000;
+		List<Thread> appenders = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			String cold = "cold" + t;
+			appenders.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					store.append(load("hot", "0.01"));
+					if (i % 100 == 0) {
+						store.append(load(cold, "1.00"));
+					}
+				}
+			}));
+		}
+		appenders.forEach(Thread::start);
+		for (Thread appender : appenders) {
+			appender.join();
+		}
+
+		List<Transaction> hot = store.getTransactionsForUser("hot");
+		assertEquals(threads * perThread, hot.size());
+		assertBalance("400.00", store.computeBalance("hot"));
+		Set<String> messageIds = new HashSet<>();
+		long previous = 0;
+		for (Transaction transaction : hot) {
+			assertEquals("hot", transaction.getUserId());
+			assertTrue("Sequence " + transaction.getSequence() + " after " + previous, transaction.getSequence() > previous);
+			previous = transaction.getSequence();
+			messageIds.add(transaction.getMessageId());
+		}
+		assertEquals(threads * perThread, messageIds.size());
+		assertBalance("100.00", store.computeBalance("cold0"));
+	}
+}
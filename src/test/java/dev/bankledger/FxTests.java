@@ -0,0 +1,103 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FxTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	@DisplayName("Test balances per currency and cross-currency authorizations converted with the current rates")
+	public void test1_sub_balances_and_conversion() throws Exception {
+		FxRateTable rates = new FxRateTable();
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT, null, Ledger.DEFAULT_HOLD_TTL_MILLIS, rates);
+		ledger.load("user1", "100.00", 10000);
+		ledger.load("user1", "50.00", 5000, "EUR");
+		assertEquals("50.00", ledger.checkBalance("user1", "EUR").getBalance());
+		assertEquals("EUR", ledger.checkBalance("user1", "EUR").getCurrency());
+
+		// A currency the user holds is debited directly, without conversion.
+		assertEquals("APPROVED", ledger.authorize("user1", "20.00", 2000, "EUR").getResponseCode());
+		assertEquals("30.00", ledger.checkBalance("user1", "EUR").getBalance());
+		assertEquals("100.00", ledger.checkBalance("user1").getBalance());
+
+		try {
+			ledger.authorize("user1", "10.00", 1000, "GBP");
+			fail("Expected an authorization without a rate to fail");
+		}
+		catch (IllegalArgumentException e) {
+			// Nothing was debited or recorded.
+		}
+		rates.update(Collections.singletonMap("GBP", new BigDecimal("1.25")));
+		assertEquals("APPROVED", ledger.authorize("user1", "10.01", 1001, "GBP").getResponseCode());
+		rates.update(Collections.singletonMap("GBP", new BigDecimal("2")));
+		assertEquals("DENIED", ledger.authorize("user1", "45.00", 4500, "GBP").getResponseCode());
+		assertEquals("87.49", ledger.checkBalance("user1").getBalance());
+
+		List<Transaction> events = ledger.getEventStore().getTransactionsForUser("user1");
+		assertEquals(3, events.size());
+		assertEquals("12.51", events.get(1).getTransactionAmount().getAmount());
+		assertEquals("USD", events.get(1).getTransactionAmount().getCurrency());
+		assertEquals("10.01", events.get(1).getSourceAmount().getAmount());
+		assertEquals("GBP", events.get(1).getSourceAmount().getCurrency());
+		assertEquals(1, events.get(1).getFxRateVersion());
+		assertEquals(2, events.get(2).getFxRateVersion());
+		assertEquals(0, events.get(0).getFxRateVersion());
+		assertNull(events.get(0).getSourceAmount());
+		assertEquals(2, ledger.getEventStore().getTransactionsForUser(EventStore.accountKey("user1", "EUR")).size());
+
+		assertEquals(0, ledger.verifyConversions("user1"));
+		assertEquals(0, new BigDecimal("87.49").compareTo(ledger.getEventStore().computeBalance("user1")));
+		assertEquals(0, new BigDecimal("30.00").compareTo(ledger.getEventStore().computeBalance(EventStore.accountKey("user1", "EUR"))));
+	}
+
+	@Test
+	@DisplayName("Test sub-balances, conversions and rate versions survive a restart")
+	public void test2_restart_replays_conversions() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		Path ratesFile = dir.resolve("fx-rates.dat");
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			EventStore store = new EventStore(journal, 2);
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING, null, Ledger.DEFAULT_HOLD_TTL_MILLIS, new FxRateTable(ratesFile));
+			ledger.getFxRates().update(Collections.singletonMap("JPY", new BigDecimal("0.0067")));
+			ledger.load("user1", "10.00", 1000);
+			ledger.load("user1", "7.00", 700, "CHF");
+			ledger.authorize("user1", "1000", 100000, "JPY");
+			// The later events are only in the journal, so the restart replays them.
+			store.persistSnapshots();
+			ledger.load("user1", "1.00", 100, "CHF");
+			ledger.authorize("user1", "150", 15000, "JPY");
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 2)) {
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING, null, Ledger.DEFAULT_HOLD_TTL_MILLIS, new FxRateTable(ratesFile));
+			assertEquals(1, ledger.getFxRates().current().getVersion());
+			assertEquals("2.29", ledger.checkBalance("user1").getBalance());
+			assertEquals("8.00", ledger.checkBalance("user1", "CHF").getBalance());
+			assertEquals(2, store.accountKeys("user1").size());
+
+			Transaction converted = store.getTransactionsForUser("user1").get(0);
+			assertEquals("1.01", converted.getTransactionAmount().getAmount());
+			assertEquals("150.00", converted.getSourceAmount().getAmount());
+			assertEquals(1, converted.getFxRateVersion());
+			assertEquals(0, ledger.verifyConversions("user1"));
+
+			ledger.removeAccount("user1");
+			assertNull(ledger.findBalance(EventStore.accountKey("user1", "CHF")));
+			assertEquals(0, store.accountKeys("user1").size());
+		}
+	}
+}
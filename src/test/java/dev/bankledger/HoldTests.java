@@ -0,0 +1,97 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HoldTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	@DisplayName("Test holds reserve funds, captures settle them in part and releases return them")
+	public void test1_hold_capture_release() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		ledger.load("user1", "100.00", 10000);
+
+		HoldResponse hold = ledger.hold("user1", "60.00", 6000);
+		assertEquals("HELD", hold.getStatus());
+		assertEquals("40.00", hold.getBalance().getAmount());
+		assertEquals("100.00", hold.getLedgerBalance().getAmount());
+		assertEquals("DENIED", ledger.hold("user1", "50.00", 5000).getStatus());
+		HoldResponse second = ledger.hold("user1", "30.00", 3000);
+		assertEquals("10.00", ledger.checkBalance("user1").getBalance());
+		assertEquals("100.00", ledger.checkBalance("user1").getLedgerBalance());
+
+		HoldResponse capture = ledger.capture("user1", hold.getHoldId(), 4500);
+		assertEquals("CAPTURED", capture.getStatus());
+		assertEquals("25.00", capture.getBalance().getAmount());
+		assertEquals("55.00", capture.getLedgerBalance().getAmount());
+		assertNull(ledger.capture("user1", hold.getHoldId(), -1));
+		try {
+			ledger.capture("user1", second.getHoldId(), 3001);
+			fail("Expected a capture above the hold to fail");
+		}
+		catch (IllegalArgumentException e) {
+			// The hold stays open.
+		}
+		assertEquals("55.00", ledger.release("user1", second.getHoldId()).getBalance().getAmount());
+		assertNull(ledger.release("user1", second.getHoldId()));
+
+		List<Transaction> events = ledger.getEventStore().getTransactionsForUser("user1");
+		assertEquals(7, events.size());
+		assertEquals("CAPTURED", events.get(4).getStatus());
+		assertEquals("RELEASED", events.get(5).getStatus());
+		assertEquals("15.00", events.get(5).getTransactionAmount().getAmount());
+		assertEquals(hold.getHoldId(), events.get(5).getMessageId());
+		assertEquals(0, new BigDecimal("55.00").compareTo(ledger.getEventStore().computeBalance("user1")));
+		assertEquals("55.00", ledger.checkBalance("user1").getLedgerBalance());
+	}
+
+	@Test
+	@DisplayName("Test outstanding holds survive a restart and expire on the timer wheel")
+	public void test2_holds_expire_after_restart() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		String expiring;
+		String captured;
+		try (EventJournal journal = EventJournal.open(dir, 4096, false)) {
+			EventStore store = new EventStore(journal, 2);
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING, null, 1000);
+			ledger.load("user1", "10.00", 1000);
+			expiring = ledger.hold("user1", "4.00", 400).getHoldId();
+			captured = ledger.hold("user1", "1.00", 100).getHoldId();
+			// The holds are now folded into a persisted snapshot, so only the holds file recovers them.
+			store.persistSnapshots();
+			ledger.capture("user1", captured, -1);
+		}
+
+		try (EventStore store = new EventStore(EventJournal.open(dir, 4096, false), 2)) {
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING, null, 1000);
+			assertNotNull(store.getOpenHold("user1", expiring));
+			assertNull(store.getOpenHold("user1", captured));
+			assertEquals("5.00", ledger.checkBalance("user1").getBalance());
+			assertEquals("9.00", ledger.checkBalance("user1").getLedgerBalance());
+
+			ledger.startHoldExpiry();
+			ledger.expireHolds(System.currentTimeMillis() - 1000);
+			assertNotNull(store.getOpenHold("user1", expiring));
+			ledger.expireHolds(System.currentTimeMillis() + 3 * Ledger.HOLD_EXPIRY_TICK_MILLIS);
+			assertNull(store.getOpenHold("user1", expiring));
+			assertEquals("9.00", ledger.checkBalance("user1").getBalance());
+			List<Transaction> events = store.getTransactionsForUser("user1");
+			assertEquals("EXPIRED", events.get(events.size() - 1).getStatus());
+			assertEquals(0, new BigDecimal("9.00").compareTo(store.computeBalance("user1")));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdempotencyCacheTests {
+
+	@Test
+	@DisplayName("Test a retried load returns the original response and credits the account once")
+	public void test1_replays_original_response() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		IdempotencyCache cache = new IdempotencyCache(100, 60);
+
+		Object first = cache.execute("key1", "load user1 10.00",
+				() -> CompletableFuture.completedFuture(ledger.load("user1", "10.00", 1000))).get();
+		Object retry = cache.execute("key1", "load user1 10.00",
+				() -> CompletableFuture.completedFuture(ledger.load("user1", "10.00", 1000))).get();
+
+		assertSame(first, retry);
+		assertEquals("10.00", ledger.balanceOf("user1").getBalance().toPlainString());
+		assertEquals(1, ledger.getEventStore().getTransactionsForUser("user1").size());
+
+		try {
+			cache.execute("key1", "load user1 20.00", () -> CompletableFuture.completedFuture(ledger.load("user1", "20.00", 2000)));
+			fail("Expected the reused key to be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Idempotency-Key was already used for a different request", e.getMessage());
+		}
+	}
+
+	@Test
+	@DisplayName("Test a duplicate waits for the request in flight and a failed request can be retried")
+	public void test2_in_flight_and_failed_requests() throws Exception {
+		IdempotencyCache cache = new IdempotencyCache(100, 60);
+		CompletableFuture<String> inFlight = new CompletableFuture<>();
+		CompletableFuture<Object> first = cache.execute("key1", "load user1 1.00", () -> inFlight);
+		CompletableFuture<Object> duplicate = cache.execute("key1", "load user1 1.00", () -> CompletableFuture.completedFuture("again"));
+		inFlight.complete("once");
+		assertEquals("once", first.get(5, TimeUnit.SECONDS));
+		assertEquals("once", duplicate.get(5, TimeUnit.SECONDS));
+
+		CompletableFuture<String> busy = new CompletableFuture<>();
+		busy.completeExceptionally(new RejectedExecutionException());
+		try {
+			cache.execute("key2", "load user1 1.00", () -> busy).get();
+			fail("Expected the failure to be returned");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals("retried", cache.execute("key2", "load user1 1.00", () -> CompletableFuture.completedFuture("retried")).get());
+	}
+}
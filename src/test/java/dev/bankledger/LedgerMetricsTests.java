@@ -0,0 +1,31 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LedgerMetricsTests {
+
+	@Test
+	@DisplayName("Test authorization outcomes, lock waits and balance computations are recorded")
+	public void test1_records_ledger_metrics() throws InterruptedException {
+		double approved = LedgerMetrics.AUTHORIZATIONS_APPROVED.count();
+		double denied = LedgerMetrics.AUTHORIZATIONS_DENIED.count();
+		long lockWaits = LedgerMetrics.LOCK_WAIT.count();
+		long computations = LedgerMetrics.COMPUTE_BALANCE.count();
+
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		ledger.load("user1", "10.00", 1000);
+		ledger.authorize("user1", "4.00", 400);
+		ledger.authorize("user1", "40.00", 4000);
+		ledger.getEventStore().computeBalance("user1");
+
+		assertEquals(approved + 1, LedgerMetrics.AUTHORIZATIONS_APPROVED.count(), 0);
+		assertEquals(denied + 1, LedgerMetrics.AUTHORIZATIONS_DENIED.count(), 0);
+		assertEquals(lockWaits + 3, LedgerMetrics.LOCK_WAIT.count());
+		assertEquals(computations + 1, LedgerMetrics.COMPUTE_BALANCE.count());
+		assertTrue(LedgerMetrics.REGISTRY.scrape().contains("bankledger_authorizations_total{result=\"denied\",}"));
+	}
+}
@@ -0,0 +1,174 @@
+package dev.bankledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LedgerPipelineTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	@DisplayName("Test commands for one account are applied in submission order")
+	public void test1_applies_in_order() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		LedgerPipeline pipeline = new LedgerPipeline(ledger, 4, 1024);
+		try {
+			CompletableFuture<LoadResponse> load = pipeline.load("user1", "100.00", 10000);
+			CompletableFuture<AuthorizationResponse> approved = pipeline.authorize("user1", "75.00", 7500);
+			CompletableFuture<AuthorizationResponse> denied = pipeline.authorize("user1", "75.00", 7500);
+
+			assertEquals("100.00", load.get(5, TimeUnit.SECONDS).getBalance().getAmount());
+			assertEquals("APPROVED", approved.get(5, TimeUnit.SECONDS).getResponseCode());
+			assertEquals("25.00", approved.get().getBalance().getAmount());
+			assertEquals("DENIED", denied.get(5, TimeUnit.SECONDS).getResponseCode());
+			assertEquals("25.00", denied.get().getBalance().getAmount());
+			assertEquals(3, ledger.getEventStore().getTransactionsForUser("user1").size());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Test concurrent producers across shards keep balances and event logs consistent")
+	public void test2_concurrent_producers() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		LedgerPipeline pipeline = new LedgerPipeline(ledger, 4, 1024);
+		Queue<CompletableFuture<?>> futures = new ConcurrentLinkedQueue<>();
+		List<Thread> producers = new ArrayList<>();
+		try {
+			for (int t = 0; t < 8; t++) {
+				Thread producer = new Thread(() -> {
+					for (int i = 0; i < 2000; i++) {
+						String userId = "user" + (i % 10);
+						boolean authorization = i % 3 == 0;
+						CompletableFuture<?> future;
+						do {
+							future = authorization ? pipeline.authorize(userId, "2.00", 200) : pipeline.load(userId, "1.00", 100);
+						} while (future.isCompletedExceptionally());
+						futures.add(future);
+					}
+				});
+				producers.add(producer);
+				producer.start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			for (CompletableFuture<?> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+
+			int events = 0;
+			for (int u = 0; u < 10; u++) {
+				String userId = "user" + u;
+				events += ledger.getEventStore().getTransactionsForUser(userId).size();
+				assertEquals(0, ledger.balanceOf(userId).getBalance().compareTo(ledger.getEventStore().computeBalance(userId)));
+				assertTrue(ledger.balanceOf(userId).getBalance().signum() >= 0);
+			}
+			assertEquals(16000, events);
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Test holds, captures, releases and expiries go through the shard writers alongside loads and authorizations")
+	public void test3_holds_through_pipeline() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING, null, 1000);
+		LedgerPipeline pipeline = new LedgerPipeline(ledger, 2, 1024);
+		List<Thread> clients = new ArrayList<>();
+		Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		try {
+			ledger.startHoldExpiry();
+			for (int t = 0; t < 4; t++) {
+				String userId = "user" + (t % 2);
+				Thread client = new Thread(() -> {
+					try {
+						for (int i = 0; i < 200; i++) {
+							pipeline.load(userId, "1.00", 100).get(10, TimeUnit.SECONDS);
+							HoldResponse hold = pipeline.hold(userId, "0.50", 50).get(10, TimeUnit.SECONDS);
+							assertEquals("HELD", hold.getStatus());
+							if (i % 3 == 0) {
+								assertEquals("CAPTURED", pipeline.capture(userId, hold.getHoldId(), 20).get(10, TimeUnit.SECONDS).getStatus());
+							}
+							else if (i % 3 == 1) {
+								assertEquals("RELEASED", pipeline.release(userId, hold.getHoldId()).get(10, TimeUnit.SECONDS).getStatus());
+							}
+							// The rest are left to expire.
+							pipeline.authorize(userId, "0.10", 10).get(10, TimeUnit.SECONDS);
+						}
+					}
+					catch (Throwable e) {
+						failures.add(e);
+					}
+				});
+				clients.add(client);
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			assertTrue(failures.toString(), failures.isEmpty());
+
+			ledger.expireHolds(System.currentTimeMillis() + 1000 + 3 * Ledger.HOLD_EXPIRY_TICK_MILLIS);
+			long deadline = System.currentTimeMillis() + 10_000;
+			while ((ledger.getEventStore().heldMinorUnits("user0") > 0 || ledger.getEventStore().heldMinorUnits("user1") > 0)
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			for (int u = 0; u < 2; u++) {
+				String userId = "user" + u;
+				assertEquals(0, ledger.getEventStore().heldMinorUnits(userId));
+				// Per client and round: +1.00 load, -0.10 authorization, and -0.20 for every third hold, which is captured.
+				assertEquals("333.20", ledger.checkBalance(userId).getBalance());
+				assertEquals(0, ledger.findBalance(userId).getBalance().compareTo(ledger.getEventStore().computeBalance(userId)));
+				long expired = ledger.getEventStore().getTransactionsForUser(userId).stream()
+						.filter(event -> "EXPIRED".equals(event.getStatus())).count();
+				assertEquals(132, expired);
+			}
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Test each command completes once its own event is durable, with the sequence number it was appended with")
+	public void test4_completes_on_own_durable_sequence() throws Exception {
+		try (EventStore store = new EventStore(EventJournal.open(folder.getRoot().toPath(), 1 << 20, true), 2)) {
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING);
+			LedgerPipeline pipeline = new LedgerPipeline(ledger, 2, 1024);
+			try {
+				List<CompletableFuture<LoadResponse>> futures = new ArrayList<>();
+				for (int i = 0; i < 500; i++) {
+					futures.add(pipeline.load("user" + (i % 5), "1.00", 100));
+				}
+				for (CompletableFuture<LoadResponse> future : futures) {
+					LoadResponse response = future.get(10, TimeUnit.SECONDS);
+					assertTrue(store.durableSequence() >= response.sequence());
+					Transaction event = store.getTransactionsForUser(response.getUserId()).stream()
+							.filter(t -> t.getMessageId().equals(response.getMessageId())).findFirst().get();
+					assertEquals(event.getSequence(), response.sequence());
+				}
+			}
+			finally {
+				pipeline.close();
+			}
+		}
+	}
+}
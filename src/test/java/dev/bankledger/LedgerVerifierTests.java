@@ -0,0 +1,62 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LedgerVerifierTests {
+
+	@Test
+	@DisplayName("Test a verification job checks every account and reports only the mismatched ones")
+	public void test1_reports_discrepancies() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		for (int i = 0; i < 5000; i++) {
+			ledger.load("user" + i, "10.00", 1000);
+		}
+		// Change two balances without recording events.
+		ledger.balanceOf("user42").credit(500);
+		ledger.getBalances().put("ghost", BalanceEngine.FIXED_POINT.create(100));
+
+		LedgerVerifier.Job job = awaitJob(new LedgerVerifier(ledger, 4).start());
+
+		assertEquals(LedgerVerifier.State.COMPLETED, job.getState());
+		assertEquals(5001, job.getAccounts());
+		assertEquals(5001, job.getChecked());
+		assertEquals(2, job.getDiscrepancyCount());
+		assertEquals(2, job.getDiscrepancies().size());
+		for (VerificationResponse discrepancy : job.getDiscrepancies()) {
+			if (discrepancy.getUserId().equals("user42")) {
+				assertEquals("15.00", discrepancy.getCurrentBalance().toPlainString());
+				assertEquals("10.00", discrepancy.getLogBalance().toPlainString());
+			}
+			else {
+				assertEquals("ghost", discrepancy.getUserId());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Test verifying accounts never creates them")
+	public void test2_does_not_create_accounts() throws Exception {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		ledger.load("user1", "10.00", 1000);
+		LedgerVerifier verifier = new LedgerVerifier(ledger, 2);
+
+		assertNull(verifier.verify("unknown"));
+		LedgerVerifier.Job job = awaitJob(verifier.start());
+
+		assertEquals(0, job.getDiscrepancyCount());
+		assertEquals(1, ledger.getBalances().size());
+		assertEquals(job, verifier.job(job.getJobId()));
+	}
+
+	private static LedgerVerifier.Job awaitJob(LedgerVerifier.Job job) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (job.getState() == LedgerVerifier.State.RUNNING && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return job;
+	}
+}
@@ -0,0 +1,92 @@
+package dev.bankledger;
+
+import io.javalin.Javalin;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionRouterTests {
+
+	@Test
+	@DisplayName("Test adding a partition to the hash ring only moves accounts to the new partition")
+	public void test1_ring_moves_only_to_new_partition() {
+		HashRing before = new HashRing(Arrays.asList("a", "b", "c"));
+		HashRing after = new HashRing(Arrays.asList("a", "b", "c", "d"));
+		int[] owned = new int[4];
+		int moved = 0;
+		for (int i = 0; i < 10000; i++) {
+			String userId = "user" + i;
+			String owner = after.owner(userId);
+			owned[owner.charAt(0) - 'a']++;
+			if (!owner.equals(before.owner(userId))) {
+				assertEquals("d", owner);
+				moved++;
+			}
+		}
+		assertEquals(owned[3], moved);
+		for (int count : owned) {
+			assertTrue("Unbalanced ring: " + Arrays.toString(owned), count > 1500 && count < 3500);
+		}
+	}
+
+	@Test
+	@DisplayName("Test rebalancing streams the accounts a new partition owns to it and redirects their requests there")
+	public void test2_rebalance_between_local_instances() throws Exception {
+		Ledger ledgerA = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Ledger ledgerB = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Javalin appA = Javalin.create().start(0);
+		Javalin appB = Javalin.create().start(0);
+		try {
+			String a = "http://127.0.0.1:" + appA.port();
+			String b = "http://127.0.0.1:" + appB.port();
+			PartitionRouter routerA = new PartitionRouter(ledgerA, a, new HashRing(Arrays.asList(a)));
+			routerA.install(appA);
+			appA.get("/balance/{userId}", ctx -> ctx.json(ledgerA.checkBalance(ctx.pathParam("userId"))));
+			new PartitionRouter(ledgerB, b, new HashRing(Arrays.asList(a, b))).install(appB);
+
+			for (int i = 0; i < 200; i++) {
+				ledgerA.load("user" + i, "10.00", 1000);
+				ledgerA.authorize("user" + i, "2.50", 250);
+			}
+
+			HashRing ring = new HashRing(Arrays.asList(a, b));
+			List<String> movedUsers = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				if (ring.owner("user" + i).equals(b)) {
+					movedUsers.add("user" + i);
+				}
+			}
+			assertEquals(movedUsers.size(), routerA.rebalance(ring));
+			assertFalse(movedUsers.isEmpty());
+			assertEquals(200 - movedUsers.size(), ledgerA.getBalances().size());
+
+			for (String userId : movedUsers) {
+				assertNull(ledgerA.findBalance(userId));
+				assertEquals(new BigDecimal("7.50"), ledgerB.findBalance(userId).getBalance());
+				assertEquals(2, ledgerB.getEventStore().getTransactionsForUser(userId).size());
+			}
+
+			String userId = movedUsers.get(0);
+			HttpURLConnection connection = (HttpURLConnection) new URL(a + "/balance/" + userId).openConnection();
+			connection.setInstanceFollowRedirects(false);
+			assertEquals(307, connection.getResponseCode());
+			assertEquals(b + "/balance/" + userId, connection.getHeaderField("Location"));
+			assertFalse(routerA.owns(userId));
+		}
+		finally {
+			appA.stop();
+			appB.stop();
+		}
+	}
+}
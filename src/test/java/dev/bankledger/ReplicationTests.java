@@ -0,0 +1,93 @@
+package dev.bankledger;
+
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicationTests {
+
+	@Test
+	@DisplayName("Test a leader acknowledges after a quorum and in-process followers end up with its balances and events")
+	public void test1_in_process_followers() throws Exception {
+		Ledger leader = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Ledger follower1 = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Ledger follower2 = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		List<ReplicationTransport> followers = Arrays.asList(
+				new InProcessReplicationTransport(new ReplicationFollower(follower1), "follower1"),
+				new InProcessReplicationTransport(new ReplicationFollower(follower2), "follower2"));
+
+		try (ReplicationLeader replication = new ReplicationLeader(leader.getEventStore(), followers, 2, 5000, 1000)) {
+			leader.load("user1", "100.00", 10000);
+			leader.authorize("user1", "30.00", 3000);
+			leader.authorize("user1", "90.00", 9000);
+			leader.load("user2", "5", 500);
+			assertTrue(replication.replicatedSequence() >= 4);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (Arrays.stream(replication.followerSequences()).anyMatch(sequence -> sequence < 4)) {
+				assertTrue("Followers did not catch up", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+
+		for (Ledger follower : Arrays.asList(follower1, follower2)) {
+			assertEquals(new BigDecimal("70.00"), follower.findBalance("user1").getBalance());
+			assertEquals(new BigDecimal("5.00"), follower.findBalance("user2").getBalance());
+			assertEquals(0, follower.getEventStore().computeBalance("user1").compareTo(new BigDecimal("70.00")));
+			List<Transaction> events = follower.getEventStore().getTransactionsForUser("user1");
+			assertEquals(3, events.size());
+			assertEquals("DENIED", events.get(2).getStatus());
+			assertEquals(leader.getEventStore().getTransactionsForUser("user1").get(2).getMessageId(), events.get(2).getMessageId());
+		}
+	}
+
+	@Test
+	@DisplayName("Test a leader replicates to a localhost follower over TCP and fails writes when the quorum is unreachable")
+	public void test2_tcp_follower_and_unreachable_quorum() throws Exception {
+		Ledger leader = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		Ledger follower = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		try (ReplicationServer server = new ReplicationServer(new ReplicationFollower(follower), 0)) {
+			// The second follower never answers, so only a quorum of two nodes can be reached.
+			List<ReplicationTransport> followers = Arrays.asList(
+					new TcpReplicationTransport("127.0.0.1", server.getPort()),
+					new ReplicationTransport() {
+						@Override
+						public long replicate(List<Transaction> events) throws IOException {
+							throw new IOException("unreachable");
+						}
+
+						@Override
+						public String describe() {
+							return "unreachable";
+						}
+
+						@Override
+						public void close() {
+						}
+					});
+
+			try (ReplicationLeader replication = new ReplicationLeader(leader.getEventStore(), followers, 2, 5000, 1000)) {
+				leader.load("user1", "12.34", 1234);
+				assertEquals(new BigDecimal("12.34"), follower.findBalance("user1").getBalance());
+				assertEquals(1, replication.followerSequences()[0]);
+			}
+
+			Ledger isolated = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+			try (ReplicationLeader replication = new ReplicationLeader(isolated.getEventStore(), followers.subList(1, 2), 2, 200, 1000)) {
+				isolated.load("user1", "1.00", 100);
+				fail("Expected the write to fail without a quorum");
+			}
+			catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("quorum"));
+			}
+		}
+	}
+}
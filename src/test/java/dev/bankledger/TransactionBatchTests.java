@@ -0,0 +1,122 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransactionBatchTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String process(TransactionBatch batch, String body, boolean ndjson) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		batch.process(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), out, ndjson);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	@DisplayName("Test a JSON array batch is applied in order per account with results in input order")
+	public void test1_json_array_batch() throws IOException {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.FIXED_POINT);
+		String body = "["
+				+ "{\"type\":\"load\",\"userId\":\"user1\",\"amount\":\"100.00\"},"
+				+ "{\"type\":\"load\",\"userId\":\"user2\",\"amount\":\"5\"},"
+				+ "{\"type\":\"authorization\",\"userId\":\"user1\",\"amount\":\"75.00\"},"
+				+ "{\"type\":\"authorization\",\"userId\":\"user1\",\"amount\":\"75.00\"},"
+				+ "{\"type\":\"refund\",\"userId\":\"user1\",\"amount\":\"1.00\"},"
+				+ "{\"type\":\"load\",\"userId\":\"user2\",\"amount\":\"abc\"}"
+				+ "]";
+
+		JsonNode results = MAPPER.readTree(process(new TransactionBatch(ledger, null), body, false));
+
+		assertEquals(6, results.size());
+		assertEquals("100.00", results.get(0).get("balance").get("amount").asText());
+		assertEquals("5.00", results.get(1).get("balance").get("amount").asText());
+		assertEquals("APPROVED", results.get(2).get("responseCode").asText());
+		assertEquals("25.00", results.get(2).get("balance").get("amount").asText());
+		assertEquals("DENIED", results.get(3).get("responseCode").asText());
+		assertEquals("400", results.get(4).get("code").asText());
+		assertEquals("Amount must be a non-negative number with up to two decimal places", results.get(5).get("message").asText());
+
+		assertEquals(3, ledger.getEventStore().getTransactionsForUser("user1").size());
+		assertEquals(0, ledger.balanceOf("user1").getBalance().compareTo(ledger.getEventStore().computeBalance("user1")));
+	}
+
+	@Test
+	@DisplayName("Test an NDJSON batch spanning several chunks streams one result line per item")
+	public void test2_ndjson_batch() throws IOException {
+		Ledger ledger = new Ledger(new EventStore(), BalanceEngine.LOCKING);
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			body.append("{\"type\":\"load\",\"userId\":\"user").append(i % 100).append("\",\"amount\":\"0.01\"}\n");
+		}
+
+		String[] lines = process(new TransactionBatch(ledger, null), body.toString(), true).split("\n");
+
+		assertEquals(10000, lines.length);
+		assertEquals("1.00", MAPPER.readTree(lines[9999]).get("balance").get("amount").asText());
+		assertEquals("1.00", ledger.balanceOf("user42").getBalance().toString());
+	}
+
+	@Test
+	@DisplayName("Test an operation whose append fails has its balance change undone and is reported as an error, without affecting the others")
+	public void test3_append_failure() throws IOException {
+		ExecutorService appliers = TransactionBatch.newAppliers();
+		try (EventStore store = new EventStore(EventJournal.open(folder.getRoot().toPath(), 4096, true), 0)) {
+			Ledger ledger = new Ledger(store, BalanceEngine.LOCKING);
+			// An event for this user does not fit in a journal segment, so its append fails.
+			String tooLarge = "x".repeat(5000);
+			List<String> users = new ArrayList<>();
+			StringBuilder body = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				String userId = "user" + (i % 4);
+				body.append("{\"type\":\"load\",\"userId\":\"").append(userId).append("\",\"amount\":\"1.00\"}\n");
+				users.add(userId);
+				if (i == 0) {
+					body.append("{\"type\":\"load\",\"userId\":\"").append(tooLarge).append("\",\"amount\":\"5.00\"}\n");
+					users.add(tooLarge);
+				}
+				body.append("{\"type\":\"authorization\",\"userId\":\"").append(userId).append("\",\"amount\":\"0.25\"}\n");
+				users.add(userId);
+			}
+
+			String[] lines = process(new TransactionBatch(ledger, null, appliers), body.toString(), true).split("\n");
+
+			assertEquals(users.size(), lines.length);
+			for (int i = 0; i < lines.length; i++) {
+				JsonNode result = MAPPER.readTree(lines[i]);
+				if (users.get(i).equals(tooLarge)) {
+					assertEquals("500", result.get("code").asText());
+				}
+				else {
+					assertEquals(users.get(i), result.get("userId").asText());
+				}
+			}
+			for (String userId : new String[] {"user0", "user1", "user2", "user3", tooLarge}) {
+				assertEquals(0, ledger.balanceOf(userId).getBalance().compareTo(store.computeBalance(userId)));
+			}
+			assertEquals("7.50", ledger.balanceOf("user1").getBalance().toString());
+			assertEquals(0, ledger.balanceOf(tooLarge).getBalance().signum());
+			assertEquals(80, store.lastSequence());
+		}
+		finally {
+			appliers.shutdown();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package dev.bankledger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionHistoryTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static JsonNode page(EventStore store, TransactionQuery query) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new TransactionHistory(store).write("user1", query, out);
+		return MAPPER.readTree(out.toByteArray());
+	}
+
+	private static Transaction transaction(DebitCredit debitOrCredit, String status, long serverTime) {
+		return new Transaction("user1", UUID.randomUUID().toString(),
+				new Amount("1.00", "USD", debitOrCredit), status, serverTime, 0);
+	}
+
+	@Test
+	@DisplayName("Test history pages follow the sequence cursor until the history is exhausted")
+	public void test1_paginates_by_cursor() throws IOException {
+		EventStore store = new EventStore();
+		for (int i = 0; i < 25; i++) {
+			store.addTransaction(transaction(DebitCredit.CREDIT, "APPROVED", 1000 + i));
+			store.addTransaction(new Transaction("user2", new Amount("1.00", "USD", DebitCredit.CREDIT), "APPROVED"));
+		}
+
+		int seen = 0;
+		long cursor = 0;
+		int pages = 0;
+		do {
+			JsonNode page = page(store, new TransactionQuery(cursor, Long.MIN_VALUE, Long.MAX_VALUE, null, 10));
+			for (JsonNode transaction : page.get("transactions")) {
+				assertTrue(transaction.get("sequence").asLong() > cursor);
+				seen++;
+			}
+			cursor = page.get("nextCursor").asLong();
+			pages++;
+		} while (cursor != 0);
+
+		assertEquals(25, seen);
+		assertEquals(3, pages);
+	}
+
+	@Test
+	@DisplayName("Test history is filtered by serverTime range and status")
+	public void test2_filters_by_time_and_status() throws IOException {
+		EventStore store = new EventStore();
+		for (int i = 0; i < 20; i++) {
+			store.addTransaction(transaction(DebitCredit.DEBIT, i % 2 == 0 ? "APPROVED" : "DENIED", 1000 + i));
+		}
+
+		JsonNode page = page(store, new TransactionQuery(0, 1005, 1015, "DENIED", 100));
+		assertEquals(5, page.get("transactions").size());
+		assertEquals(1005, page.get("transactions").get(0).get("serverTime").asLong());
+		assertEquals("DENIED", page.get("transactions").get(4).get("status").asText());
+		assertTrue(page.get("nextCursor").isNull());
+		assertEquals(20, page(store, new TransactionQuery(0, 0, Long.MAX_VALUE, null, 100)).get("transactions").size());
+	}
+
+	@Test
+	@DisplayName("Test paging a history written by several threads at once returns every event once, in sequence order")
+	public void test3_paginates_concurrently_written_history() throws Exception {
+		EventStore store = new EventStore();
+		int threads = 8;
+		int perThread = 5000;
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			writers.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					store.addTransaction(transaction(DebitCredit.CREDIT, "APPROVED", 1000 + i));
+				}
+			}));
+		}
+		writers.forEach(Thread::start);
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		Set<String> seen = new HashSet<>();
+		long cursor = 0;
+		int pages = 0;
+		do {
+			JsonNode page = page(store, new TransactionQuery(cursor, Long.MIN_VALUE, Long.MAX_VALUE, null, 7));
+			for (JsonNode transaction : page.get("transactions")) {
+				assertTrue(transaction.get("sequence").asLong() > cursor);
+				cursor = transaction.get("sequence").asLong();
+				assertTrue(seen.add(transaction.get("messageId").asText()));
+			}
+			long next = page.get("nextCursor").asLong();
+			assertTrue(next == 0 || next == cursor);
+			cursor = next;
+			assertTrue("Paging did not end", ++pages <= threads * perThread / 7 + 1);
+		} while (cursor != 0);
+
+		assertEquals(threads * perThread, seen.size());
+	}
+}